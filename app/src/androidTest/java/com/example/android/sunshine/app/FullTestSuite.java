@@ -16,14 +16,50 @@
 package com.example.android.sunshine.app;
 
 import android.test.suitebuilder.TestSuiteBuilder;
+import android.test.suitebuilder.annotation.LargeTest;
 
 import junit.framework.Test;
+import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+
 public class FullTestSuite extends TestSuite {
     public static Test suite() {
-        return new TestSuiteBuilder(FullTestSuite.class)
-                .includeAllPackagesUnderHere().build();
+        return withoutLargeTests(new TestSuiteBuilder(FullTestSuite.class)
+                .includeAllPackagesUnderHere().build());
+    }
+
+    /*
+        The benchmarks are @LargeTest: they load hundreds of thousands of rows and only log
+        how long that took, so they stay out of the everyday run.  Run them with
+        "am instrument -e size large".
+     */
+    private static TestSuite withoutLargeTests(TestSuite suite) {
+        TestSuite filtered = new TestSuite(suite.getName());
+        Enumeration tests = suite.tests();
+        while (tests.hasMoreElements()) {
+            Test test = (Test) tests.nextElement();
+            if (test instanceof TestSuite) {
+                filtered.addTest(withoutLargeTests((TestSuite) test));
+            } else if (!isLargeTest(test)) {
+                filtered.addTest(test);
+            }
+        }
+        return filtered;
+    }
+
+    private static boolean isLargeTest(Test test) {
+        if (!(test instanceof TestCase)) {
+            return false;
+        }
+        try {
+            Method method = test.getClass().getMethod(((TestCase) test).getName());
+            return method.isAnnotationPresent(LargeTest.class);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
     public FullTestSuite() {
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Loads a synthetic history of 100,000 weather rows, the way a history import or a big
+    multi-location sync would, and reports rows per second for the provider's bulkInsert
+    and for the per-row db.insert path it replaced.  The numbers end up in logcat.  It is a
+    @LargeTest, left out of FullTestSuite; TestProvider covers bulkInsert itself.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "bulk_insert_test.db";
+
+    static final int LOCATIONS = 100;
+    static final int DAYS = 1000;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @LargeTest
+    public void testBulkInsertBenchmark() {
+        long[] locationIds = new long[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, "benchmark " + i);
+            locationIds[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, location));
+        }
+        ContentValues[] rows = createRows(locationIds, 0);
+
+        long start = System.nanoTime();
+        int written = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        report("bulkInsert, new rows", rows.length, start);
+        assertEquals(rows.length, written);
+
+        rows = createRows(locationIds, 0);
+        start = System.nanoTime();
+        written = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        report("bulkInsert, unchanged rows", rows.length, start);
+        assertEquals("Error: unchanged rows were written again", 0, written);
+
+        rows = createRows(locationIds, 1);
+        start = System.nanoTime();
+        written = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, rows);
+        report("bulkInsert, changed rows", rows.length, start);
+        assertEquals(rows.length, written);
+
+        // What bulkInsert used to do: normalize with a Time and db.insert a ContentValues,
+        // compiling the INSERT again for every row.  Only the encoding is today's.
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        SQLiteDatabase db = new WeatherDbHelper(mContext, TEST_DATABASE_NAME)
+                .getWritableDatabase();
+        rows = createRows(locationIds, 0);
+        start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (ContentValues row : rows) {
+                row.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(row.getAsLong(WeatherEntry.COLUMN_DATE)));
+                db.insertWithOnConflict(WeatherEntry.TABLE_NAME, null,
+                        WeatherEncoding.encodeValues(row), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        report("db.insert per row", rows.length, start);
+        db.close();
+    }
+
+    private static ContentValues[] createRows(long[] locationIds, int version) {
+        long firstDay = System.currentTimeMillis() - DAYS * DAY_IN_MILLIS;
+        ContentValues[] rows = new ContentValues[locationIds.length * DAYS];
+        int i = 0;
+        for (long locationId : locationIds) {
+            for (int day = 0; day < DAYS; day++) {
+                ContentValues row = TestUtilities.createWeatherValues(locationId);
+                row.put(WeatherEntry.COLUMN_DATE, firstDay + day * DAY_IN_MILLIS);
+                row.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + version);
+                rows[i++] = row;
+            }
+        }
+        return rows;
+    }
+
+    private static void report(String name, int rows, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Log.i(LOG_TAG, name + ": " + rows + " rows in " + elapsedNanos / 1000000 + "ms, " +
+                (long) (rows / (elapsedNanos / 1e9)) + " rows/s");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.CityIndex.City;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Checks the city index: completions come back most populous first whatever the case and
+    accents typed, resolving settles on one city per name, the bundled list compiles and
+    every city in it resolves to itself, and a large made-up list completes the same as
+    looking at every name.
+ */
+public class TestCityIndex extends AndroidTestCase {
+
+    public void testCompletes() throws IOException {
+        CityIndex index = buildSampleIndex();
+
+        List<City> cities = index.complete("lon", CityIndex.MAX_COMPLETIONS);
+        assertEquals(3, cities.size());
+        assertEquals("Error: completions aren't most populous first",
+                "London,GB", cities.get(0).getLocationSetting());
+        assertEquals("Long Beach,US", cities.get(1).getLocationSetting());
+        assertEquals("London,CA", cities.get(2).getLocationSetting());
+
+        assertEquals(1, index.complete("lon", 1).size());
+        assertEquals("Error: the country after the comma wasn't used",
+                "London,CA", index.complete("london, c", 8).get(0).getLocationSetting());
+        assertEquals("Error: accents should make no difference",
+                "S\u00e3o Paulo", index.complete("SAO p", 8).get(0).name);
+        assertEquals("St. Louis", index.complete("st lo", 8).get(0).name);
+        assertTrue(index.complete("x", 8).isEmpty());
+        assertTrue(index.complete("", 8).isEmpty());
+        assertTrue(index.complete(" , ", 8).isEmpty());
+    }
+
+    public void testResolves() throws IOException {
+        CityIndex index = buildSampleIndex();
+
+        City london = index.resolve("  LONDON ");
+        assertEquals("London", london.name);
+        assertEquals("GB", london.country);
+        assertEquals(1, london.id);
+        assertEquals(51.5085, london.latitude, 1e-6);
+        assertEquals(-0.1257, london.longitude, 1e-6);
+
+        assertEquals("London,CA", index.resolve("london, ca").getLocationSetting());
+        assertEquals("London,GB", index.resolve(london.toString()).getLocationSetting());
+        assertEquals("S\u00e3o Paulo,BR", index.resolve("Sao Paulo").getLocationSetting());
+        assertNull("Error: a prefix resolved to a city", index.resolve("Lon"));
+        assertNull(index.resolve("Londn"));
+        assertNull(index.resolve("London, FR"));
+        assertNull(index.resolve("94043"));
+        assertNull(index.resolve(""));
+    }
+
+    public void testBundledList() {
+        CityIndex index = CityIndex.getInstance(mContext);
+        assertNotNull("Error: the bundled city list didn't compile", index);
+        assertTrue(index.size() > 0);
+        for (int i = 0; i < index.size(); i++) {
+            City city = index.getCity(i);
+            assertEquals("Error: " + city + " doesn't resolve to itself",
+                    city.id, index.resolve(city.toString()).id);
+            assertEquals(city.id, index.resolve(city.getLocationSetting()).id);
+            assertTrue(Math.abs(city.latitude) <= 90);
+            assertTrue(Math.abs(city.longitude) <= 180);
+        }
+        assertEquals("Mountain View,US", index.resolve("mountain view").getLocationSetting());
+        assertSame(index, CityIndex.getInstance(mContext));
+        assertSame("Error: the open index isn't there for the main thread",
+                index, CityIndex.getOpenInstance());
+    }
+
+    /*
+        Thousands of names made of a few letters, so they share long prefixes, completed
+        from every prefix of some of them.
+     */
+    public void testCompletesLikeEveryName() throws IOException {
+        Random random = new Random(42);
+        int count = 5000;
+        String[] names = new String[count];
+        CityIndexWriter writer = new CityIndexWriter();
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                name.append("abcde".charAt(random.nextInt(5)));
+            }
+            names[i] = name.toString();
+            writer.add(i, names[i], "US", 0, 0);
+        }
+        CityIndex index = compile(writer);
+        assertEquals(count, index.size());
+
+        for (int i = 0; i < 200; i++) {
+            String name = names[random.nextInt(count)];
+            for (int length = 1; length <= name.length(); length++) {
+                String prefix = name.substring(0, length);
+                ArrayList<Integer> expected = new ArrayList<Integer>();
+                for (int j = 0; j < count && expected.size() < CityIndex.MAX_COMPLETIONS; j++) {
+                    if (names[j].startsWith(prefix)) {
+                        expected.add(j);
+                    }
+                }
+                ArrayList<Integer> found = new ArrayList<Integer>();
+                for (City city : index.complete(prefix, CityIndex.MAX_COMPLETIONS)) {
+                    found.add(city.id);
+                }
+                assertEquals("Error: wrong completions for " + prefix, expected, found);
+            }
+            assertEquals(name, index.resolve(name).name);
+        }
+    }
+
+    private static CityIndex buildSampleIndex() throws IOException {
+        CityIndexWriter writer = new CityIndexWriter();
+        writer.add(7, "S\u00e3o Paulo", "BR", -23.5475, -46.6361);
+        writer.add(1, "London", "GB", 51.5085, -0.1257);
+        writer.add(2, "Long Beach", "US", 33.767, -118.1892);
+        writer.add(3, "St. Louis", "US", 38.6273, -90.1979);
+        writer.add(4, "London", "CA", 42.9834, -81.233);
+        return compile(writer);
+    }
+
+    private static CityIndex compile(CityIndexWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        return new CityIndex(ByteBuffer.wrap(out.toByteArray()));
+    }
+}
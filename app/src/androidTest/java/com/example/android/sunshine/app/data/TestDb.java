@@ -60,6 +60,7 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherEncoding.CONDITION_TABLE_NAME);
 
         SQLiteDatabase db = new WeatherDbHelper(
                 this.mContext).getWritableDatabase();
@@ -239,15 +240,20 @@ public class TestDb extends AndroidTestCase {
         // Second Step (Weather): Create weather values
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        // Third Step (Weather): Insert ContentValues into database and get a row ID back
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        // Third Step (Weather): Insert ContentValues into database and get a row ID back.
+        // The table stores them encoded, with the description kept per condition.
+        WeatherEncoding.storeCondition(db, weatherValues.getAsLong(WeatherEntry.COLUMN_WEATHER_ID),
+                weatherValues.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null,
+                WeatherEncoding.encodeValues(weatherValues));
         assertTrue(weatherRowId != -1);
 
         // Fourth Step: Query the database and receive a Cursor back
         // A cursor is your primary interface to the query results.
         Cursor weatherCursor = db.query(
                 WeatherEntry.TABLE_NAME,  // Table to Query
-                null, // leaving "columns" null just returns all the columns.
+                // all the columns, decoded back into the contract's values
+                WeatherEncoding.decodeProjection(null, false),
                 null, // cols for "where" clause
                 null, // values for "where" clause
                 null, // columns to group by
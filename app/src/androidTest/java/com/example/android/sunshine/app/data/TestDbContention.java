@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Runs a writer that syncs continuously (bulk inserts followed by the old-data delete, the
+    way a multi-location sync does) against readers running the forecast list query in a
+    loop, once with the rollback journal and once in WAL mode.  The read latency percentiles
+    end up in logcat; there is nothing to assert about them, since they depend on the device.
+    It runs for seconds, so it is a @LargeTest, left out of FullTestSuite.
+ */
+public class TestDbContention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbContention.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "contention_test.db";
+
+    static final int LOCATIONS = 20;
+    static final int DAYS = 14;
+    static final int READERS = 2;
+    static final long RUN_MILLIS = 3000;
+
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    // The same join and projection the forecast list uses.
+    private static final String FORECAST_QUERY = "SELECT " + TextUtils.join(", ",
+            WeatherEncoding.decodeProjection(new String[]{
+                    WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                    WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                    WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP,
+                    LocationEntry.COLUMN_LOCATION_SETTING, WeatherEntry.COLUMN_WEATHER_ID,
+                    LocationEntry.COLUMN_COORD_LAT, LocationEntry.COLUMN_COORD_LONG}, true)) +
+            " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+            " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+            " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC";
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testReadLatencyUnderSync() throws Throwable {
+        long[] rollback = run(false);
+        long[] wal = run(true);
+
+        Log.i(LOG_TAG, "rollback journal: " + describe(rollback));
+        Log.i(LOG_TAG, "write-ahead log:  " + describe(wal));
+        assertTrue(rollback.length > 0);
+        assertTrue(wal.length > 0);
+    }
+
+    /**
+     * @return the latency of every read, in microseconds, sorted.
+     */
+    private long[] run(boolean writeAheadLogging) throws Throwable {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        final WeatherDbHelper helper =
+                new WeatherDbHelper(mContext, TEST_DATABASE_NAME, writeAheadLogging);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        insertLocations(db);
+        writeForecasts(db, today, 0);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 1; running.get(); round++) {
+                        writeForecasts(db, today, round);
+                        int deleted = db.delete(WeatherEntry.TABLE_NAME,
+                                WeatherEntry.COLUMN_DATE + " <= ?",
+                                new String[]{Long.toString(today - DAY_IN_MILLIS)});
+                        helper.checkpointIfNeeded(db, LOCATIONS * (DAYS + 1) + deleted);
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+
+        final ArrayList<ArrayList<Long>> latencies = new ArrayList<ArrayList<Long>>();
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            final ArrayList<Long> readerLatencies = new ArrayList<Long>();
+            latencies.add(readerLatencies);
+            final String locationSetting = "location " + i;
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String[] args = new String[]{locationSetting, Long.toString(today)};
+                        while (running.get()) {
+                            long start = System.nanoTime();
+                            Cursor cursor = db.rawQuery(FORECAST_QUERY, args);
+                            // Loaders fill the window straight away, so do we.
+                            cursor.getCount();
+                            cursor.close();
+                            readerLatencies.add((System.nanoTime() - start) / 1000);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        db.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        ArrayList<Long> all = new ArrayList<Long>();
+        for (ArrayList<Long> readerLatencies : latencies) {
+            all.addAll(readerLatencies);
+        }
+        Collections.sort(all);
+        long[] sorted = new long[all.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = all.get(i);
+        }
+        return sorted;
+    }
+
+    private static void insertLocations(SQLiteDatabase db) {
+        for (int i = 0; i < LOCATIONS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry._ID, i + 1);
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, "location " + i);
+            values.put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+            values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+            values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+            db.insert(LocationEntry.TABLE_NAME, null, values);
+        }
+        // The one condition every day of the test has.
+        WeatherEncoding.storeCondition(db, 321, "Asteroids");
+    }
+
+    /**
+     * Writes a full forecast for every location in one transaction, like a bulkInsert.
+     */
+    private static void writeForecasts(SQLiteDatabase db, long today, int round) {
+        db.beginTransaction();
+        try {
+            for (int location = 1; location <= LOCATIONS; location++) {
+                for (int day = -1; day < DAYS; day++) {
+                    ContentValues values = TestUtilities.createWeatherValues(location);
+                    values.put(WeatherEntry.COLUMN_DATE, today + day * DAY_IN_MILLIS);
+                    values.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + round % 10);
+                    db.insertWithOnConflict(WeatherEntry.TABLE_NAME, null,
+                            WeatherEncoding.encodeValues(values),
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String describe(long[] sorted) {
+        return sorted.length + " reads, p50 " + percentile(sorted, 50) + "us, p90 " +
+                percentile(sorted, 90) + "us, p99 " + percentile(sorted, 99) + "us, max " +
+                (sorted.length > 0 ? sorted[sorted.length - 1] : 0) + "us";
+    }
+
+    static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/*
+    Builds a database the way each released version of the app left it, upgrades it with the
+    current WeatherDbHelper and checks that it ends up with exactly the schema a fresh install
+    gets, without losing any weather.
+
+    When you bump DATABASE_VERSION, add the schema and sample rows of the new version below,
+    exactly as they are at that version, and never change the old ones.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "migration_test.db";
+
+    static final String SAMPLE_LOCATION_SETTING = "99705";
+    static final long SAMPLE_LOCATION_ID = 7;
+
+    // The schema of every version, by version.  Nothing is known about version 1 other than
+    // that it can't be upgraded, so it stands in as a table of the same name in another shape.
+    static final String[][] SCHEMAS = {
+            {},
+            {
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            "location_id INTEGER NOT NULL, date TEXT NOT NULL, " +
+                            "short_desc TEXT NOT NULL)"
+            },
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                            "location_setting TEXT UNIQUE NOT NULL, " +
+                            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+                            "min REAL NOT NULL, max REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, pressure REAL NOT NULL, " +
+                            "wind REAL NOT NULL, degrees REAL NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+            },
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                            "location_setting TEXT UNIQUE NOT NULL, " +
+                            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+                            "min REAL NOT NULL, max REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, pressure REAL NOT NULL, " +
+                            "wind REAL NOT NULL, degrees REAL NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date)"
+            },
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                            "location_setting TEXT UNIQUE NOT NULL, " +
+                            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather_condition (weather_id INTEGER PRIMARY KEY, " +
+                            "short_desc TEXT NOT NULL);",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                            "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date)"
+            },
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                            "location_setting TEXT UNIQUE NOT NULL, " +
+                            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL  );",
+                    "CREATE TABLE weather_condition (weather_id INTEGER PRIMARY KEY, " +
+                            "short_desc TEXT NOT NULL);",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                            "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date)",
+                    "CREATE TABLE weather_rollup (_id INTEGER PRIMARY KEY, " +
+                            "location_id INTEGER NOT NULL, period INTEGER NOT NULL, " +
+                            "start_date INTEGER NOT NULL, days INTEGER NOT NULL, " +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "temp_sum INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (location_id, period, start_date));",
+                    "CREATE INDEX weather_rollup_start_date ON weather_rollup (start_date)"
+            },
+            {
+                    "CREATE TABLE location (_id INTEGER PRIMARY KEY," +
+                            "location_setting TEXT UNIQUE NOT NULL, " +
+                            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, " +
+                            "coord_long REAL NOT NULL, geo_cell INTEGER );",
+                    "CREATE INDEX location_geo_cell ON location (geo_cell)",
+                    "CREATE TRIGGER location_geo_cell_insert AFTER INSERT ON location " +
+                            "BEGIN UPDATE location SET geo_cell = " +
+                            "CAST(coord_lat + 90 AS INTEGER) * 360 + " +
+                            "CAST(coord_long + 180 AS INTEGER) % 360 WHERE _id = NEW._id; END",
+                    "CREATE TRIGGER location_geo_cell_update AFTER UPDATE OF coord_lat, " +
+                            "coord_long ON location BEGIN UPDATE location SET geo_cell = " +
+                            "CAST(coord_lat + 90 AS INTEGER) * 360 + " +
+                            "CAST(coord_long + 180 AS INTEGER) % 360 WHERE _id = NEW._id; END",
+                    "CREATE TABLE weather_condition (weather_id INTEGER PRIMARY KEY, " +
+                            "short_desc TEXT NOT NULL);",
+                    "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                            "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+                    "CREATE INDEX weather_location_date ON weather (location_id, date)",
+                    "CREATE TABLE weather_rollup (_id INTEGER PRIMARY KEY, " +
+                            "location_id INTEGER NOT NULL, period INTEGER NOT NULL, " +
+                            "start_date INTEGER NOT NULL, days INTEGER NOT NULL, " +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "temp_sum INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (location_id, period, start_date));",
+                    "CREATE INDEX weather_rollup_start_date ON weather_rollup (start_date)"
+            },
+    };
+
+    // A location and a day of weather, as each version stored them.
+    static final String[][] SAMPLE_ROWS = {
+            {},
+            {
+                    "INSERT INTO weather (location_id, date, short_desc) " +
+                            "VALUES (7, '20141205', 'Asteroids')"
+            },
+            {
+                    "INSERT INTO location VALUES (7, '99705', 'North Pole', 64.7488, -147.353)",
+                    "INSERT INTO weather (location_id, date, short_desc, weather_id, min, max, " +
+                            "humidity, pressure, wind, degrees) VALUES (7, 1419033600000, " +
+                            "'Asteroids', 321, 65, 75, 1.2, 1.3, 5.5, 1.1)"
+            },
+            {
+                    "INSERT INTO location VALUES (7, '99705', 'North Pole', 64.7488, -147.353)",
+                    "INSERT INTO weather (location_id, date, short_desc, weather_id, min, max, " +
+                            "humidity, pressure, wind, degrees) VALUES (7, 1419033600000, " +
+                            "'Asteroids', 321, 65, 75, 1.2, 1.3, 5.5, 1.1)"
+            },
+            {
+                    "INSERT INTO location VALUES (7, '99705', 'North Pole', 64.7488, -147.353)",
+                    "INSERT INTO weather_condition VALUES (321, 'Asteroids')",
+                    "INSERT INTO weather (location_id, date, weather_id, min, max, " +
+                            "humidity, pressure, wind, degrees) VALUES (7, 1419033600000, " +
+                            "321, 6500, 7500, 120, 130, 550, 110)"
+            },
+            {
+                    "INSERT INTO location VALUES (7, '99705', 'North Pole', 64.7488, -147.353)",
+                    "INSERT INTO weather_condition VALUES (321, 'Asteroids')",
+                    "INSERT INTO weather (location_id, date, weather_id, min, max, " +
+                            "humidity, pressure, wind, degrees) VALUES (7, 1419033600000, " +
+                            "321, 6500, 7500, 120, 130, 550, 110)",
+                    "INSERT INTO weather_rollup (location_id, period, start_date, days, " +
+                            "min, max, temp_sum) VALUES (7, 2, 1417392000000, 19, 6000, " +
+                            "8000, 266000)"
+            },
+            {
+                    "INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                            "coord_long) VALUES (7, '99705', 'North Pole', 64.7488, -147.353)",
+                    "INSERT INTO weather_condition VALUES (321, 'Asteroids')",
+                    "INSERT INTO weather (location_id, date, weather_id, min, max, " +
+                            "humidity, pressure, wind, degrees) VALUES (7, 1419033600000, " +
+                            "321, 6500, 7500, 120, 130, 550, 110)",
+                    "INSERT INTO weather_rollup (location_id, period, start_date, days, " +
+                            "min, max, temp_sum) VALUES (7, 2, 1417392000000, 19, 6000, " +
+                            "8000, 266000)"
+            },
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        LocationIdCache.getInstance().clear();
+        super.tearDown();
+    }
+
+    public void testEveryVersionIsRecorded() {
+        assertEquals("Error: add the schema of the new version to SCHEMAS",
+                WeatherDbHelper.DATABASE_VERSION + 1, SCHEMAS.length);
+        assertEquals(SCHEMAS.length, SAMPLE_ROWS.length);
+    }
+
+    public void testMigrationsAreComplete() {
+        int version = WeatherDbHelper.OLDEST_MIGRATABLE_VERSION;
+        for (WeatherDbHelper.Migration migration : WeatherDbHelper.MIGRATIONS) {
+            assertEquals("Error: migrations have to go up one version at a time",
+                    version + 1, migration.toVersion);
+            version = migration.toVersion;
+        }
+        assertEquals("Error: the migrations don't reach DATABASE_VERSION",
+                WeatherDbHelper.DATABASE_VERSION, version);
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        SQLiteDatabase current = createCurrentDatabase();
+        ArrayList<String> expected = describeSchema(current);
+        current.close();
+
+        for (int version = 1; version <= WeatherDbHelper.DATABASE_VERSION; version++) {
+            createDatabase(version);
+
+            SQLiteDatabase db = new WeatherDbHelper(mContext, TEST_DATABASE_NAME)
+                    .getWritableDatabase();
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+            assertEquals("Error: upgrading from version " + version +
+                    " did not give the current schema", expected, describeSchema(db));
+
+            if (version >= WeatherDbHelper.OLDEST_MIGRATABLE_VERSION) {
+                assertSampleRowsKept(db, version);
+            }
+            db.close();
+            mContext.deleteDatabase(TEST_DATABASE_NAME);
+        }
+    }
+
+    /*
+        Stores a year of days for a few locations the way version 3 did, with REAL
+        measurements and a description on every day, and checks that the version 4 encoding
+        takes fewer pages for them.
+     */
+    public void testEncodingShrinksWeather() {
+        createDatabase(3);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TEST_DATABASE_NAME, 0, null);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO weather (location_id, date, " +
+                "short_desc, weather_id, min, max, humidity, pressure, wind, degrees) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int location = 1; location <= 20; location++) {
+                for (int day = 1; day <= 365; day++) {
+                    insert.bindLong(1, location);
+                    insert.bindLong(2, 1419033600000L + day * 86400000L);
+                    insert.bindString(3, day % 3 == 0 ? "Clear" : "Rain");
+                    insert.bindLong(4, day % 3 == 0 ? 800 : 500);
+                    insert.bindDouble(5, -3.17 + day % 20);
+                    insert.bindDouble(6, 4.62 + day % 20);
+                    insert.bindDouble(7, 81);
+                    insert.bindDouble(8, 1021.36);
+                    insert.bindDouble(9, 6.71);
+                    insert.bindDouble(10, 227);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        long before = usedPages(db);
+        db.close();
+
+        db = new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+        long after = usedPages(db);
+        Log.i(LOG_TAG, "7300 days took " + before + " pages as REALs, " + after + " encoded");
+        assertTrue("Error: the encoded weather isn't smaller", after < before);
+
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, WeatherEncoding.decodeProjection(
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_PRESSURE}, false),
+                WeatherEntry.COLUMN_LOC_KEY + " = 20", null, null, null,
+                WeatherEntry.COLUMN_DATE + " DESC");
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Rain", cursor.getString(0));
+        assertEquals(-3.17 + 365 % 20, cursor.getDouble(1), 0.005);
+        assertEquals(1021.36, cursor.getDouble(2), 0.05);
+        cursor.close();
+        db.close();
+    }
+
+    private static long usedPages(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) -
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
+
+    private SQLiteDatabase createCurrentDatabase() {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        return new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+    }
+
+    private void createDatabase(int version) {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(TEST_DATABASE_NAME, 0, null);
+        for (String sql : SCHEMAS[version]) {
+            db.execSQL(sql);
+        }
+        for (String sql : SAMPLE_ROWS[version]) {
+            db.execSQL(sql);
+        }
+        db.setVersion(version);
+        db.close();
+    }
+
+    private void assertSampleRowsKept(SQLiteDatabase db, int version) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING,
+                        LocationGrid.COLUMN_GEO_CELL},
+                null, null, null, null, null);
+        assertTrue("Error: the location was lost upgrading from version " + version,
+                cursor.moveToFirst());
+        assertEquals(SAMPLE_LOCATION_ID, cursor.getLong(0));
+        assertEquals(SAMPLE_LOCATION_SETTING, cursor.getString(1));
+        assertEquals("Error: the location has no grid cell after upgrading from version " +
+                version, LocationGrid.getRow(64.7488) * LocationGrid.COLUMNS +
+                LocationGrid.getColumn(-147.353), cursor.getLong(2));
+        cursor.close();
+
+        cursor = db.query(WeatherEntry.TABLE_NAME, WeatherEncoding.decodeProjection(
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_SHORT_DESC,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_WIND_SPEED}, false),
+                null, null, null, null, null);
+        assertTrue("Error: the weather was lost upgrading from version " + version,
+                cursor.moveToFirst());
+        assertEquals(SAMPLE_LOCATION_ID, cursor.getLong(0));
+        assertEquals("Asteroids", cursor.getString(1));
+        assertEquals(75.0, cursor.getDouble(2));
+        assertEquals(1.2, cursor.getDouble(3));
+        assertEquals(5.5, cursor.getDouble(4));
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+    }
+
+    /**
+     * @return every table, view, column and index in the database, in a form that doesn't
+     * depend on how they were created.
+     */
+    static ArrayList<String> describeSchema(SQLiteDatabase db) {
+        ArrayList<String> schema = new ArrayList<String>();
+        Cursor objects = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        while (objects.moveToNext()) {
+            String type = objects.getString(0);
+            String name = objects.getString(1);
+            if ("index".equals(type)) {
+                schema.add("index " + name + " on " + objects.getString(2) + " " +
+                        describeIndex(db, name));
+                continue;
+            }
+            schema.add(type + " " + name);
+            Cursor columns = db.rawQuery("PRAGMA table_info(" + name + ")", null);
+            while (columns.moveToNext()) {
+                schema.add(type + " " + name + " column " +
+                        columns.getString(columns.getColumnIndex("name")) + " " +
+                        columns.getString(columns.getColumnIndex("type")) +
+                        " notnull=" + columns.getInt(columns.getColumnIndex("notnull")) +
+                        " pk=" + columns.getInt(columns.getColumnIndex("pk")));
+            }
+            columns.close();
+            if ("table".equals(type)) {
+                // Constraints show up as automatic indexes, whose names depend on the order
+                // they were created in, so describe them by what they cover.
+                Cursor indexes = db.rawQuery("PRAGMA index_list(" + name + ")", null);
+                while (indexes.moveToNext()) {
+                    String index = indexes.getString(indexes.getColumnIndex("name"));
+                    if (index.startsWith("sqlite_autoindex")) {
+                        schema.add("table " + name + " unique " + describeIndex(db, index));
+                    }
+                }
+                indexes.close();
+            }
+        }
+        objects.close();
+        Collections.sort(schema);
+        return schema;
+    }
+
+    private static String describeIndex(SQLiteDatabase db, String index) {
+        StringBuilder sb = new StringBuilder("(");
+        Cursor columns = db.rawQuery("PRAGMA index_info(" + index + ")", null);
+        while (columns.moveToNext()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(columns.getString(columns.getColumnIndex("name")));
+        }
+        columns.close();
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Checks the grid index over the locations on a database of its own: the triggers put
+    every location in the cell LocationGrid expects, and the nearest-location search finds
+    the same locations as measuring the distance to every one of them.
+ */
+public class TestLocationGrid extends AndroidTestCase {
+
+    static final String TEST_DATABASE_NAME = "location_grid_test.db";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testTriggersKeepTheCell() {
+        double[][] coordinates = {
+                {64.7488, -147.353}, {-90, -180}, {90, 180}, {0, 0}, {-33.87, 151.21},
+                {51.5, -0.0001}, {-0.5, 179.999}
+        };
+        for (double[] coordinate : coordinates) {
+            long id = insertLocation(coordinate[0], coordinate[1]);
+            assertEquals("Error: the insert trigger put " + Arrays.toString(coordinate) +
+                    " in the wrong cell", expectedCell(coordinate[0], coordinate[1]),
+                    cellOf(id));
+        }
+
+        long id = insertLocation(10, 10);
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LONG, -75.5);
+        mDb.update(LocationEntry.TABLE_NAME, moved, LocationEntry._ID + " = " + id, null);
+        assertEquals("Error: the update trigger didn't move the cell",
+                expectedCell(10, -75.5), cellOf(id));
+    }
+
+    /*
+        Thousands of locations, most of them clustered the way a user's are and a few
+        scattered around the world, searched from points near and far from them.
+     */
+    public void testNearestMatchesEveryDistance() {
+        Random random = new Random(42);
+        int count = 3000;
+        double[][] locations = new double[count][];
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                double lat;
+                double lon;
+                if (i % 10 == 0) {
+                    lat = random.nextDouble() * 180 - 90;
+                    lon = random.nextDouble() * 360 - 180;
+                } else {
+                    lat = 47 + random.nextGaussian() * 2;
+                    lon = -122 + random.nextGaussian() * 2;
+                }
+                long id = insertLocation(lat, lon);
+                locations[(int) id - 1] = new double[]{lat, lon};
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        double[][] points = {
+                {47.6, -122.3}, {-77.8, 166.7}, {89.9, 0}, {0, 179.9}, {0, -179.9},
+                {35.7, 139.7}, {-90, 0}
+        };
+        LocationGrid grid = new LocationGrid(mDb);
+        for (double[] point : points) {
+            for (int k : new int[]{1, 5, 40}) {
+                Cursor cursor = grid.queryNearest(point[0], point[1], k,
+                        new String[]{LocationEntry._ID, LocationEntry.COLUMN_DISTANCE});
+                double[] expected = new double[count];
+                for (int i = 0; i < count; i++) {
+                    expected[i] = LocationGrid.getDistance(point[0], point[1],
+                            locations[i][0], locations[i][1]);
+                }
+                Arrays.sort(expected);
+                assertEquals(k, cursor.getCount());
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    assertEquals("Error: the " + (i + 1) + "th nearest to " +
+                            Arrays.toString(point) + " is wrong", expected[i],
+                            cursor.getDouble(1), 0.001);
+                }
+                cursor.close();
+            }
+        }
+    }
+
+    public void testFewerLocationsThanAskedFor() {
+        insertLocation(1, 1);
+        insertLocation(-1, -1);
+        Cursor cursor = new LocationGrid(mDb).queryNearest(0, 0, 10, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        mDb.delete(LocationEntry.TABLE_NAME, null, null);
+        cursor = new LocationGrid(mDb).queryNearest(0, 0, 10, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private long insertLocation(double lat, double lon) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, lat + "," + lon);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Somewhere");
+        values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return mDb.insert(LocationEntry.TABLE_NAME, null, values);
+    }
+
+    private long cellOf(long id) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + LocationGrid.COLUMN_GEO_CELL +
+                " FROM " + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry._ID + " = " +
+                id, null);
+    }
+
+    private static long expectedCell(double lat, double lon) {
+        return LocationGrid.getRow(lat) * LocationGrid.COLUMNS + LocationGrid.getColumn(lon);
+    }
+}
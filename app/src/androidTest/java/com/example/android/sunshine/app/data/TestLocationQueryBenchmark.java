@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Random;
+
+/*
+    Compares reading one location's weather through the join on the location table with
+    reading it from the weather table alone, on a database with thousands of locations and
+    a year of history for each.  The numbers end up in logcat.  The benchmark is a
+    @LargeTest, left out of FullTestSuite; testWeatherOnlyMatchesJoin checks the same
+    queries on a small database in every run.
+ */
+public class TestLocationQueryBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationQueryBenchmark.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "location_query_test.db";
+
+    static final int LOCATIONS = 2000;
+    static final int DAYS = 365;
+    static final int QUERIES = 200;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    // What the forecast list and the detail view ask for.
+    static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+    static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+    private long mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+        // The ids in this database aren't the provider's.
+        LocationIdCache.getInstance().clear();
+        mFirstDay = WeatherContract.normalizeDate(
+                System.currentTimeMillis() - (DAYS - 14) * DAY_IN_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        LocationIdCache.getInstance().clear();
+        super.tearDown();
+    }
+
+    public void testWeatherOnlyMatchesJoin() {
+        populate(10, 30);
+        String locationSetting = "location 7";
+        long today = mFirstDay + 20 * DAY_IN_MILLIS;
+
+        compare(WeatherProvider.queryWeatherByLocationWithJoin(mDb, locationSetting, 0, false,
+                        FORECAST_COLUMNS, SORT_ORDER),
+                WeatherProvider.queryWeatherByLocation(mDb, locationSetting, 0, false,
+                        FORECAST_COLUMNS, SORT_ORDER));
+        compare(WeatherProvider.queryWeatherByLocationWithJoin(mDb, locationSetting, today,
+                        false, FORECAST_COLUMNS, SORT_ORDER),
+                WeatherProvider.queryWeatherByLocation(mDb, locationSetting, today, false,
+                        FORECAST_COLUMNS, SORT_ORDER));
+        compare(WeatherProvider.queryWeatherByLocationWithJoin(mDb, locationSetting, today,
+                        true, DETAIL_COLUMNS, null),
+                WeatherProvider.queryWeatherByLocation(mDb, locationSetting, today, true,
+                        DETAIL_COLUMNS, null));
+
+        assertNull("Error: all columns should need the join",
+                WeatherProvider.buildWeatherOnlyProjection(null,
+                        LocationIdCache.getInstance().getLocation(mDb, 1)));
+        assertNull("Error: the location's _id should need the join",
+                WeatherProvider.buildWeatherOnlyProjection(
+                        new String[]{LocationEntry.TABLE_NAME + "." + LocationEntry._ID},
+                        LocationIdCache.getInstance().getLocation(mDb, 1)));
+    }
+
+    @LargeTest
+    public void testLocationQueryBenchmark() {
+        populate(LOCATIONS, DAYS);
+        long today = mFirstDay + (DAYS - 14) * DAY_IN_MILLIS;
+
+        benchmark("forecast list, all days", 0, false, FORECAST_COLUMNS, SORT_ORDER);
+        benchmark("forecast list, from today", today, false, FORECAST_COLUMNS, SORT_ORDER);
+        benchmark("detail, one day", today, true, DETAIL_COLUMNS, null);
+    }
+
+    private void benchmark(String name, long date, boolean singleDay, String[] projection,
+                           String sortOrder) {
+        Random random = new Random(42);
+        int rows = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            rows += drain(WeatherProvider.queryWeatherByLocationWithJoin(mDb,
+                    "location " + random.nextInt(LOCATIONS), date, singleDay, projection,
+                    sortOrder));
+        }
+        long joinNanos = System.nanoTime() - start;
+
+        random = new Random(42);
+        int weatherOnlyRows = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            weatherOnlyRows += drain(WeatherProvider.queryWeatherByLocation(mDb,
+                    "location " + random.nextInt(LOCATIONS), date, singleDay, projection,
+                    sortOrder));
+        }
+        long weatherOnlyNanos = System.nanoTime() - start;
+
+        assertEquals(rows, weatherOnlyRows);
+        Log.i(LOG_TAG, name + " (" + rows / QUERIES + " rows): join " +
+                joinNanos / QUERIES / 1000 + "us, weather table only " +
+                weatherOnlyNanos / QUERIES / 1000 + "us per query");
+    }
+
+    private static int drain(Cursor cursor) {
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+            rows++;
+        }
+        cursor.close();
+        return rows;
+    }
+
+    private static void compare(Cursor expected, Cursor actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getColumnCount(), actual.getColumnCount());
+        while (expected.moveToNext() && actual.moveToNext()) {
+            for (int i = 0; i < expected.getColumnCount(); i++) {
+                assertEquals(expected.getColumnName(i), actual.getColumnName(i));
+                assertEquals("Error: column " + expected.getColumnName(i) + " does not match",
+                        expected.getString(i), actual.getString(i));
+            }
+        }
+        expected.close();
+        actual.close();
+    }
+
+    private void populate(int locations, int days) {
+        SQLiteStatement location = mDb.compileStatement("INSERT INTO " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + ", " +
+                LocationEntry.COLUMN_LOCATION_SETTING + ", " + LocationEntry.COLUMN_CITY_NAME +
+                ", " + LocationEntry.COLUMN_COORD_LAT + ", " + LocationEntry.COLUMN_COORD_LONG +
+                ") VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement weather = mDb.compileStatement(WeatherBulkWriter.INSERT_SQL);
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            WeatherEncoding.storeCondition(mDb, 321, "Asteroids");
+            for (int i = 0; i < locations; i++) {
+                location.bindLong(1, i + 1);
+                location.bindString(2, "location " + i);
+                location.bindString(3, "City " + i);
+                location.bindDouble(4, 64.7488 - i * 0.01);
+                location.bindDouble(5, -147.353 + i * 0.01);
+                location.executeInsert();
+
+                for (int day = 0; day < days; day++) {
+                    weather.bindLong(1, i + 1);
+                    weather.bindLong(2, mFirstDay + day * DAY_IN_MILLIS);
+                    // Already encoded, in WeatherEncoding's units.
+                    weather.bindLong(3, 321);
+                    weather.bindLong(4, (65 - day % 10) * 100);
+                    weather.bindLong(5, (75 + day % 10) * 100);
+                    weather.bindLong(6, 120);
+                    weather.bindLong(7, 130);
+                    weather.bindLong(8, 550);
+                    weather.bindLong(9, 110);
+                    weather.executeInsert();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            location.close();
+            weather.close();
+        }
+        Log.i(LOG_TAG, "Loaded " + locations + " locations with " + days + " days each in " +
+                (System.nanoTime() - start) / 1000000 + "ms");
+    }
+}
@@ -16,20 +16,31 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -93,8 +104,13 @@ public class TestProvider extends AndroidTestCase {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         db.delete(WeatherEntry.TABLE_NAME, null, null);
+        db.delete(WeatherEncoding.CONDITION_TABLE_NAME, null, null);
+        db.delete(HistoryEntry.TABLE_NAME, null, null);
         db.delete(LocationEntry.TABLE_NAME, null, null);
         db.close();
+        // We went around the provider, so it can't have kept the caches up to date.
+        LocationIdCache.getInstance().clear();
+        QueryCache.getInstance().clear();
     }
 
     /*
@@ -169,11 +185,38 @@ public class TestProvider extends AndroidTestCase {
         assertEquals("Error: the WeatherEntry CONTENT_URI with location and date should return WeatherEntry.CONTENT_ITEM_TYPE",
                 WeatherEntry.CONTENT_ITEM_TYPE, type);
 
+        // content://com.example.android.sunshine.app/weather/94074/stats?bucket=day
+        type = mContext.getContentResolver().getType(StatsEntry.buildStatsUri(testLocation, 0,
+                Long.MAX_VALUE, StatsEntry.BUCKET_DAY));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/weather/stats
+        assertEquals("Error: the stats uri should return StatsEntry.CONTENT_TYPE",
+                StatsEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/location/near?lat=64.7488&lon=-147.353&k=1
+        type = mContext.getContentResolver().getType(
+                LocationEntry.buildNearUri(64.7488, -147.353, 1));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/location
+        assertEquals("Error: the near uri should return LocationEntry.CONTENT_TYPE",
+                LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/weather/today
+        type = mContext.getContentResolver().getType(WeatherEntry.buildWeatherTodayUri());
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/weather
+        assertEquals("Error: the today uri should return WeatherEntry.CONTENT_TYPE",
+                WeatherEntry.CONTENT_TYPE, type);
+
         // content://com.example.android.sunshine.app/location/
         type = mContext.getContentResolver().getType(LocationEntry.CONTENT_URI);
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/history/94074?period=2
+        type = mContext.getContentResolver().getType(
+                HistoryEntry.buildHistoryUri(testLocation, HistoryEntry.PERIOD_MONTH));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/history
+        assertEquals("Error: the HistoryEntry CONTENT_URI with location should return HistoryEntry.CONTENT_TYPE",
+                HistoryEntry.CONTENT_TYPE, type);
     }
 
 
@@ -193,7 +236,10 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        WeatherEncoding.storeCondition(db, weatherValues.getAsLong(WeatherEntry.COLUMN_WEATHER_ID),
+                weatherValues.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null,
+                WeatherEncoding.encodeValues(weatherValues));
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
@@ -523,6 +569,437 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    /*
+        Writing the same forecast twice should leave the rows alone, keep their _ids and not
+        wake up any observers.  Changing one day should update just that row in place.
+     */
+    public void testBulkInsertUpsert() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        long[] ids = readWeatherIds();
+
+        // Same values again: nothing should be written and nobody should be told.
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        weatherObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: an identical forecast should not write any rows", 0, insertCount);
+
+        // Change one day.
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: only the changed day should be written", 1, insertCount);
+
+        long[] idsAfter = readWeatherIds();
+        assertEquals(ids.length, idsAfter.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("Error: upserting changed the _id of row " + i, ids[i], idsAfter[i]);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testBulkInsertUpsert.  Error validating WeatherEntry " + i,
+                    cursor, changedValues[i]);
+        }
+        cursor.close();
+    }
+
+    private long[] readWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    public void testCompactStorage() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        // On disk the measurements are integers, and the description is stored once.
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT typeof(min), typeof(max), typeof(humidity), " +
+                "typeof(pressure), typeof(wind), typeof(degrees), max FROM weather " +
+                "ORDER BY date ASC", null);
+        assertTrue(cursor.moveToFirst());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("Error: measurement " + cursor.getColumnName(i) +
+                    " isn't stored as an integer", "integer", cursor.getString(i));
+        }
+        assertEquals(7500, cursor.getLong(6));
+        cursor.close();
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, WeatherEncoding.CONDITION_TABLE_NAME));
+        db.close();
+
+        // A new description for a condition shows on every day with that condition.
+        ContentValues[] renamed = createBulkInsertWeatherValues(locationRowId);
+        for (ContentValues values : renamed) {
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                renamed);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: no day's own values changed", 0, insertCount);
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC, WeatherEntry.COLUMN_HUMIDITY},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Meteors", cursor.getString(0));
+            assertEquals(renamed[i].getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    cursor.getDouble(1), 0.005);
+        }
+        cursor.close();
+
+        // Selections and sort orders see the measurements and descriptions as the contract
+        // describes them too, not as they are stored.
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP},
+                WeatherEntry.COLUMN_MAX_TEMP + " >= ? AND " + WeatherEntry.COLUMN_SHORT_DESC +
+                        " = ?", new String[]{"77", "Meteors"},
+                WeatherEntry.COLUMN_MAX_TEMP + " DESC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(75.0 + BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getDouble(0));
+        cursor.close();
+        assertEquals(1, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_MAX_TEMP + " < ?", new String[]{"75.5"}));
+    }
+
+    public void testDecodeExpression() {
+        assertEquals("CAST(weather.max / 100.0 AS REAL) < 10 AND date > ?",
+                WeatherEncoding.decodeExpression("max < 10 AND date > ?"));
+        assertEquals(WeatherEncoding.DESCRIPTION_EXPRESSION + " = ?",
+                WeatherEncoding.decodeExpression("weather.short_desc = ?"));
+        // Strings, quoted names, other tables' columns and functions are left alone.
+        String untouched = "location.max > 1 AND max(date) > 0 AND \"min\" = 'max'";
+        assertEquals(untouched, WeatherEncoding.decodeExpression(untouched));
+        assertNull(WeatherEncoding.decodeExpression(null));
+    }
+
+    public void testHistory() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        // Ten days just past the hot tier, and today.
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, -HistoryEntry.HOT_DAYS - 10);
+        ContentValues[] days = new ContentValues[11];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationRowId);
+            days[i].put(WeatherEntry.COLUMN_DATE, i < 10 ? calendar.getTimeInMillis() :
+                    System.currentTimeMillis());
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        TestUtilities.TestContentObserver historyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HistoryEntry.CONTENT_URI, true,
+                historyObserver);
+        Bundle result = mContext.getContentResolver().call(HistoryEntry.CONTENT_URI,
+                HistoryEntry.METHOD_COMPACT, null, null);
+        historyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(historyObserver);
+        assertEquals(10, result.getInt(HistoryEntry.KEY_DAYS_ROLLED_UP));
+        assertFalse(result.getBoolean(HistoryEntry.KEY_HAS_MORE));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: only today should be left in the weather table",
+                1, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                HistoryEntry.buildHistoryUri(TestUtilities.TEST_LOCATION,
+                        HistoryEntry.PERIOD_MONTH),
+                null, null, null, null);
+        int rolledUp = 0;
+        while (cursor.moveToNext()) {
+            rolledUp += cursor.getInt(cursor.getColumnIndex(HistoryEntry.COLUMN_DAYS));
+            assertEquals(65.0, cursor.getDouble(
+                    cursor.getColumnIndex(HistoryEntry.COLUMN_MIN_TEMP)));
+            assertEquals(75.0, cursor.getDouble(
+                    cursor.getColumnIndex(HistoryEntry.COLUMN_MAX_TEMP)));
+            assertEquals(70.0, cursor.getDouble(
+                    cursor.getColumnIndex(HistoryEntry.COLUMN_MEAN_TEMP)));
+        }
+        cursor.close();
+        assertEquals(10, rolledUp);
+
+        // The statistics still count the days that were rolled up.
+        cursor = mContext.getContentResolver().query(
+                StatsEntry.buildStatsUri(TestUtilities.TEST_LOCATION, 0, Long.MAX_VALUE,
+                        StatsEntry.BUCKET_MONTH),
+                new String[]{StatsEntry.COLUMN_DAYS, StatsEntry.COLUMN_MEAN_TEMP}, null, null,
+                null);
+        int days = 0;
+        while (cursor.moveToNext()) {
+            days += cursor.getInt(0);
+            if (cursor.getInt(0) > 0) {
+                assertEquals(70.0, cursor.getDouble(1));
+            }
+        }
+        cursor.close();
+        assertEquals(11, days);
+
+        // Deleting the location takes its weather and history with it, since its id can be
+        // given to the next location.
+        historyObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(HistoryEntry.CONTENT_URI, true,
+                historyObserver);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        historyObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(historyObserver);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        assertEquals("Error: deleting a location left its history behind", 0,
+                DatabaseUtils.queryNumEntries(db, HistoryEntry.TABLE_NAME,
+                        HistoryEntry.COLUMN_LOC_KEY + " = " + locationRowId));
+        assertEquals("Error: deleting a location left its weather behind", 0,
+                DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME,
+                        WeatherEntry.COLUMN_LOC_KEY + " = " + locationRowId));
+        db.close();
+    }
+
+    /*
+        location/near finds the stored locations nearest a point, nearest first, and sees a
+        location move once its coordinates are updated.
+     */
+    public void testNearLocations() {
+        String[] settings = {"fairbanks", "anchorage", "juneau", "seattle"};
+        double[][] coordinates = {{64.84, -147.72}, {61.22, -149.90}, {58.30, -134.42},
+                {47.61, -122.33}};
+        long[] ids = new long[settings.length];
+        for (int i = 0; i < settings.length; i++) {
+            ContentValues values = TestUtilities.createNorthPoleLocationValues();
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, settings[i]);
+            values.put(LocationEntry.COLUMN_COORD_LAT, coordinates[i][0]);
+            values.put(LocationEntry.COLUMN_COORD_LONG, coordinates[i][1]);
+            ids[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    LocationEntry.CONTENT_URI, values));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.buildNearUri(63.0, -148.0, 3), null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        String[] expected = {"fairbanks", "anchorage", "juneau"};
+        double lastDistance = -1;
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(expected[i], cursor.getString(
+                    cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING)));
+            double distance = cursor.getDouble(
+                    cursor.getColumnIndex(LocationEntry.COLUMN_DISTANCE));
+            assertTrue("Error: the locations aren't nearest first", distance > lastDistance);
+            lastDistance = distance;
+        }
+        cursor.close();
+
+        // Seattle moves to Anchorage's doorstep.
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, 61.3);
+        moved.put(LocationEntry.COLUMN_COORD_LONG, -149.8);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(ids[3])});
+        cursor = mContext.getContentResolver().query(
+                LocationEntry.buildNearUri(61.3, -149.8, 1),
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("seattle", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+        weather/latest gives every location its day on the date, or the last one before it,
+        with the location's columns, in one query; weather/today does the same for today.
+     */
+    public void testLatestWeather() {
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "south pole");
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "South Pole");
+        long southPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+        ContentValues[] northPoleValues = createBulkInsertWeatherValues(northPoleId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, northPoleValues);
+        // The south pole stops two days short.
+        ContentValues[] southPoleValues = createBulkInsertWeatherValues(southPoleId);
+        ContentValues[] shortValues = new ContentValues[5];
+        System.arraycopy(southPoleValues, 0, shortValues, 0, shortValues.length);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, shortValues);
+
+        String[] projection = {
+                LocationEntry.COLUMN_LOCATION_SETTING,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_SHORT_DESC
+        };
+        long date = northPoleValues[6].getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildLatestWeatherUri(date), projection, null, null,
+                LocationEntry.COLUMN_LOCATION_SETTING + " ASC");
+        assertEquals("Error: there should be one row for each location", 2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(0));
+        assertEquals(date, cursor.getLong(1));
+        assertEquals(northPoleValues[6].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                cursor.getDouble(2));
+        assertEquals("Asteroids", cursor.getString(3));
+        assertTrue(cursor.moveToNext());
+        assertEquals("south pole", cursor.getString(0));
+        assertEquals("Error: a location without the day should get its last one before it",
+                southPoleValues[4].getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                cursor.getLong(1));
+        cursor.close();
+
+        // Before either has weather, there is nothing to show.
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildLatestWeatherUri(TestUtilities.TEST_DATE - 1), projection,
+                null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        ContentValues today = TestUtilities.createWeatherValues(southPoleId);
+        today.put(WeatherEntry.COLUMN_DATE, System.currentTimeMillis());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{today});
+        cursor = mContext.getContentResolver().query(WeatherEntry.buildWeatherTodayUri(),
+                projection, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{"south pole"}, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(WeatherContract.normalizeDate(System.currentTimeMillis()),
+                cursor.getLong(1));
+        cursor.close();
+    }
+
+    /*
+        The statistics by day, week and month agree with the days they are worked out from,
+        and are dropped from the cache when one of those days changes.
+     */
+    public void testStats() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        long fromDate = values[2].getAsLong(WeatherEntry.COLUMN_DATE);
+        long toDate = values[5].getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor cursor = mContext.getContentResolver().query(
+                StatsEntry.buildStatsUri(TestUtilities.TEST_LOCATION, fromDate, toDate,
+                        StatsEntry.BUCKET_DAY), null, null, null, null);
+        assertEquals(4, cursor.getCount());
+        for (int i = 2; cursor.moveToNext(); i++) {
+            assertEquals(values[i].getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                    cursor.getLong(cursor.getColumnIndex(StatsEntry.COLUMN_START_DATE)));
+            assertEquals(1, cursor.getInt(cursor.getColumnIndex(StatsEntry.COLUMN_DAYS)));
+            assertEquals(65.0 - i, cursor.getDouble(
+                    cursor.getColumnIndex(StatsEntry.COLUMN_MIN_TEMP)));
+            assertEquals(75.0 + i, cursor.getDouble(
+                    cursor.getColumnIndex(StatsEntry.COLUMN_MAX_TEMP)));
+            assertEquals(70.0, cursor.getDouble(
+                    cursor.getColumnIndex(StatsEntry.COLUMN_MEAN_TEMP)));
+        }
+        cursor.close();
+
+        for (String bucket : new String[]{StatsEntry.BUCKET_WEEK, StatsEntry.BUCKET_MONTH}) {
+            Uri statsUri = StatsEntry.buildStatsUri(TestUtilities.TEST_LOCATION, 0,
+                    Long.MAX_VALUE, bucket);
+            cursor = mContext.getContentResolver().query(statsUri, null, null, null, null);
+            int days = 0;
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            long lastStart = -1;
+            while (cursor.moveToNext()) {
+                long start = cursor.getLong(cursor.getColumnIndex(StatsEntry.COLUMN_START_DATE));
+                assertTrue("Error: " + bucket + " buckets are out of order", start > lastStart);
+                lastStart = start;
+                int bucketDays = cursor.getInt(cursor.getColumnIndex(StatsEntry.COLUMN_DAYS));
+                days += bucketDays;
+                if (bucketDays > 0) {
+                    min = Math.min(min, cursor.getDouble(
+                            cursor.getColumnIndex(StatsEntry.COLUMN_MIN_TEMP)));
+                    max = Math.max(max, cursor.getDouble(
+                            cursor.getColumnIndex(StatsEntry.COLUMN_MAX_TEMP)));
+                    assertEquals(70.0, cursor.getDouble(
+                            cursor.getColumnIndex(StatsEntry.COLUMN_MEAN_TEMP)));
+                }
+            }
+            cursor.close();
+            assertEquals("Error: " + bucket + " buckets lost days",
+                    BULK_INSERT_RECORDS_TO_INSERT, days);
+            assertEquals(65.0 - (BULK_INSERT_RECORDS_TO_INSERT - 1), min);
+            assertEquals(75.0 + (BULK_INSERT_RECORDS_TO_INSERT - 1), max);
+        }
+
+        // A range far wider than the weather only has buckets where the weather is.
+        cursor = mContext.getContentResolver().query(
+                StatsEntry.buildStatsUri(TestUtilities.TEST_LOCATION, 1, Long.MAX_VALUE / 2,
+                        StatsEntry.BUCKET_DAY), null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(values[0].getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                cursor.getLong(cursor.getColumnIndex(StatsEntry.COLUMN_START_DATE)));
+        cursor.close();
+
+        // A changed day is seen, even with the first result cached.
+        Uri statsUri = StatsEntry.buildStatsUri(TestUtilities.TEST_LOCATION, fromDate, toDate,
+                StatsEntry.BUCKET_MONTH);
+        String[] projection = {StatsEntry.COLUMN_MAX_TEMP};
+        mContext.getContentResolver().query(statsUri, projection, null, null, null).close();
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+        cursor = mContext.getContentResolver().query(statsUri, projection, null, null, null);
+        double newMax = 0;
+        while (cursor.moveToNext()) {
+            newMax = Math.max(newMax, cursor.getDouble(0));
+        }
+        cursor.close();
+        assertEquals(99.5, newMax);
+    }
+
     /**
      * Helper method to handle insertion of a new location in the weather database.
      *
@@ -635,4 +1112,356 @@ public class TestProvider extends AndroidTestCase {
                     locationId, newLocationId);
         }
     }
+
+    /*
+        The location id cache should follow the location table through the provider.
+     */
+    public void testLocationIdCache() {
+        LocationIdCache cache = LocationIdCache.getInstance();
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        String locationSetting = testValues.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                testValues);
+        long locationId = ContentUris.parseId(locationUri);
+        assertEquals("Error: an inserted location was not cached",
+                locationId, cache.get(locationSetting));
+
+        // Querying weather by location setting resolves through the cache.
+        int hits = cache.hitCount();
+        mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(locationSetting), null, null, null, null)
+                .close();
+        assertEquals(hits + 1, cache.hitCount());
+
+        // Changing the location setting has to drop the old mapping.
+        ContentValues updatedValues = new ContentValues();
+        updatedValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "north pole, moved");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, updatedValues,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationId)});
+        assertEquals(-1, cache.get(locationSetting));
+
+        // And deleting it has to forget it entirely.
+        mContext.getContentResolver().query(WeatherEntry.buildWeatherLocation(
+                "north pole, moved"), null, null, null, null).close();
+        assertEquals(locationId, cache.get("north pole, moved"));
+        deleteAllRecordsFromProvider();
+        assertEquals(-1, cache.get("north pole, moved"));
+    }
+
+    /*
+        Changing one day of one location should only wake up the observers of that location
+        and that day, not those of other locations or other days.
+     */
+    public void testNotificationsAreLocationScoped() {
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "south pole");
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "South Pole");
+        long southPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(northPoleId));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(southPoleId));
+
+        // The dates as stored, which is what the detail uris carry.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        long[] dates = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            dates[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        Uri northPoleUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+
+        TestUtilities.TestContentObserver northPoleObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver changedDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver otherDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver southPoleObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(northPoleUri, true, northPoleObserver);
+        mContext.getContentResolver().registerContentObserver(northPoleUri.buildUpon()
+                .appendPath(Long.toString(dates[3])).build(), true, changedDayObserver);
+        mContext.getContentResolver().registerContentObserver(northPoleUri.buildUpon()
+                .appendPath(Long.toString(dates[5])).build(), true, otherDayObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("south pole"), true, southPoleObserver);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(northPoleId);
+        changedValues[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues));
+
+        northPoleObserver.waitForNotificationOrFail();
+        changedDayObserver.waitForNotificationOrFail();
+        otherDayObserver.assertNoNotification(500);
+        southPoleObserver.assertNoNotification(0);
+        mContext.getContentResolver().unregisterContentObserver(northPoleObserver);
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(southPoleObserver);
+    }
+
+    /*
+        A batch that adds a location and its forecast should land in one transaction and
+        tell each observer once, at the end.  Applying the same forecast again should change
+        nothing and tell nobody.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, locationObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+        weatherObserver.waitForNotificationOrFail();
+        locationObserver.waitForNotificationOrFail();
+        // Give any stray notifications the chance to arrive.
+        Thread.sleep(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        assertEquals("Error: the weather observer should be told about a batch once",
+                1, weatherObserver.mChangeCount);
+        assertEquals("Error: the location observer should be told about a batch once",
+                1, locationObserver.mChangeCount);
+
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        long[] ids = readWeatherIds();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, ids.length);
+        for (int i = 1; i < results.length; i++) {
+            assertFalse(WeatherEntry.isUnchangedUri(results[i].uri));
+        }
+
+        // The same forecast again, this time for the location we now have.
+        operations.clear();
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(locationRowId)) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .build());
+        }
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+        weatherObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        for (int i = 0; i < results.length; i++) {
+            assertTrue("Error: an identical day was reported as changed",
+                    WeatherEntry.isUnchangedUri(results[i].uri));
+            assertEquals("Error: an identical day came back with the wrong _id",
+                    ids[i], ContentUris.parseId(results[i].uri));
+        }
+    }
+
+    /*
+        If any operation in a batch fails, none of them should stick.
+     */
+    public void testApplyBatchRollsBack() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        String locationSetting = locationValues.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(locationValues)
+                .build());
+        // There is only ever one north pole, so this can't hold.
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withExpectedCount(2)
+                .build());
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, locationObserver);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the assertion in the batch should have failed");
+        } catch (OperationApplicationException expected) {
+        }
+        locationObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a failed batch left its location behind", 0, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: a failed batch left its location in the cache",
+                -1, LocationIdCache.getInstance().get(locationSetting));
+    }
+
+    /*
+        Asking for the same location twice should be served from the query cache, until a
+        write to that location, and only that location, drops it.
+     */
+    public void testQueryCache() {
+        QueryCache cache = QueryCache.getInstance();
+        if (!cache.isEnabled()) {
+            return;
+        }
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "south pole");
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "South Pole");
+        long southPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(northPoleId));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(southPoleId));
+
+        Uri northPoleUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        int misses = cache.missCount();
+        int hits = cache.hitCount();
+        Cursor first = mContext.getContentResolver().query(northPoleUri, projection, null, null,
+                sortOrder);
+        Cursor second = mContext.getContentResolver().query(northPoleUri, projection, null,
+                null, sortOrder);
+        assertEquals(misses + 1, cache.missCount());
+        assertEquals("Error: the same query twice should hit the cache",
+                hits + 1, cache.hitCount());
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, second.getCount());
+        while (first.moveToNext() && second.moveToNext()) {
+            assertEquals(first.getLong(0), second.getLong(0));
+            assertEquals(first.getDouble(1), second.getDouble(1));
+        }
+        first.close();
+        second.close();
+
+        // A change to the other location leaves it cached.
+        ContentValues[] southPoleValues = createBulkInsertWeatherValues(southPoleId);
+        southPoleValues[0].put(WeatherEntry.COLUMN_MAX_TEMP, -40);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, southPoleValues);
+        hits = cache.hitCount();
+        mContext.getContentResolver().query(northPoleUri, projection, null, null, sortOrder)
+                .close();
+        assertEquals("Error: a write to another location dropped the cached result",
+                hits + 1, cache.hitCount());
+
+        // A change to this one doesn't, and the next query sees it.
+        ContentValues[] northPoleValues = createBulkInsertWeatherValues(northPoleId);
+        northPoleValues[2].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, northPoleValues);
+        misses = cache.missCount();
+        Cursor cursor = mContext.getContentResolver().query(northPoleUri, projection, null,
+                null, sortOrder);
+        assertEquals("Error: a write to the location left a stale result cached",
+                misses + 1, cache.missCount());
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals(99.5, cursor.getDouble(1));
+        cursor.close();
+    }
+
+    /*
+        A date range returns just the days in it, and paging through a location with
+        "after" cursors returns every day once, in date order, whatever the projection.
+     */
+    public void testRangeAndPages() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        long startDate = values[3].getAsLong(WeatherEntry.COLUMN_DATE);
+        long endDate = values[6].getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDateRange(TestUtilities.TEST_LOCATION,
+                        startDate, endDate),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: the range should hold both its ends", 4, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(startDate, cursor.getLong(0));
+        assertTrue(cursor.moveToLast());
+        assertEquals(endDate, cursor.getLong(0));
+        cursor.close();
+
+        String[][] projections = {
+                {WeatherEntry.COLUMN_DATE},
+                {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME}
+        };
+        for (String[] projection : projections) {
+            Uri pageUri = WeatherEntry.buildWeatherLocationPage(TestUtilities.TEST_LOCATION,
+                    TestUtilities.TEST_DATE, 3);
+            int pages = 0;
+            int rows = 0;
+            long lastDate = -1;
+            while (true) {
+                // Pages come back in date order whatever the caller asks for.
+                cursor = mContext.getContentResolver().query(pageUri, projection, null, null,
+                        WeatherEntry.COLUMN_DATE + " DESC");
+                pages++;
+                int count = cursor.getCount();
+                assertTrue("Error: a page is longer than its limit", count <= 3);
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(0);
+                    assertEquals(values[rows].getAsLong(WeatherEntry.COLUMN_DATE).longValue(),
+                            date);
+                    assertTrue(date > lastDate);
+                    lastDate = date;
+                    rows++;
+                }
+                cursor.close();
+                if (count < 3) {
+                    break;
+                }
+                pageUri = WeatherEntry.buildNextPageUri(pageUri, lastDate);
+            }
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, rows);
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT / 3 + 1, pages);
+        }
+    }
+
+    /*
+        The sync stats ring keeps only the newest CAPACITY syncs, serves them newest first,
+        and can't be written through the provider.
+     */
+    public void testSyncStatsRing() {
+        SyncStatsLog log = new SyncStatsLog(mContext);
+        log.clear();
+
+        final int records = SyncStatsLog.CAPACITY + 5;
+        for (int i = 0; i < records; i++) {
+            SyncStatsLog.Record record = new SyncStatsLog.Record();
+            record.rowsWritten = i;
+            log.append(record);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                new String[]{SyncStatsEntry._ID, SyncStatsEntry.COLUMN_ROWS_WRITTEN},
+                null, null, null);
+        assertEquals("Error: the ring grew past its capacity",
+                SyncStatsLog.CAPACITY, cursor.getCount());
+        for (int i = records - 1; cursor.moveToNext(); i--) {
+            assertEquals(i, cursor.getLong(0));
+            assertEquals("Error: sync stats were not returned newest first",
+                    i, cursor.getLong(1));
+        }
+        cursor.close();
+
+        try {
+            mContext.getContentResolver().insert(SyncStatsEntry.CONTENT_URI, new ContentValues());
+            fail("Error: the sync stats should be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+        log.clear();
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Asks SQLite how it runs each query the provider and the sync make, and fails if any of
+    them reads a whole table or sorts in a temporary B-tree.  A schema change or a rewritten
+    query that loses its index shows up here rather than as a slow forecast list on a phone
+    with a long history.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "query_plan_test.db";
+
+    static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+    static final String[] JOINED_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_COORD_LAT
+    };
+    static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    // WEATHER_WITH_LOCATION, once the location is resolved to an id.
+    public void testWeatherWithLocation() {
+        assertIndexed("weather/*", weatherQuery(WeatherProvider.sLocationIdSelection));
+        assertIndexed("weather/*?date=", weatherQuery(
+                WeatherProvider.sLocationIdWithStartDateSelection));
+    }
+
+    // WEATHER_WITH_LOCATION_AND_DATE, once the location is resolved to an id.
+    public void testWeatherWithLocationAndDate() {
+        assertIndexed("weather/*/#", weatherQuery(WeatherProvider.sLocationIdAndDaySelection));
+    }
+
+    // The same routes when the projection needs the join.
+    public void testJoinedWeatherWithLocation() {
+        assertIndexed("joined weather/*", joinQuery(WeatherProvider.sWeatherLocationIdSelection));
+        assertIndexed("joined weather/*?date=", joinQuery(
+                WeatherProvider.sWeatherLocationIdWithStartDateSelection));
+        assertIndexed("joined weather/*/#", joinQuery(
+                WeatherProvider.sWeatherLocationIdAndDaySelection));
+    }
+
+    // And when the location setting isn't one we know yet.
+    public void testJoinedWeatherByLocationSetting() {
+        assertIndexed("weather/* by setting", joinQuery(
+                WeatherProvider.sLocationSettingSelection));
+        assertIndexed("weather/*?date= by setting", joinQuery(
+                WeatherProvider.sLocationSettingWithStartDateSelection));
+        assertIndexed("weather/*/# by setting", joinQuery(
+                WeatherProvider.sLocationSettingAndDaySelection));
+    }
+
+    // Date ranges and pages, once the location is resolved to an id and when it isn't.
+    public void testDateRanges() {
+        assertIndexed("weather/*?end_date=", weatherQuery(
+                WeatherProvider.sLocationIdWithDateRangeSelection, null));
+        assertIndexed("joined weather/*?end_date=", joinQuery(
+                WeatherProvider.sWeatherLocationIdWithDateRangeSelection));
+        assertIndexed("weather/*?end_date= by setting", joinQuery(
+                WeatherProvider.sLocationSettingWithDateRangeSelection));
+        assertIndexed("weather/*?limit=&after=", weatherQuery(
+                WeatherProvider.sLocationIdWithDateRangeSelection, "10"));
+    }
+
+    // The sync deleting old days before API 11, and the provider finding out which locations that touches.
+    public void testRetentionDelete() {
+        String selection = WeatherEntry.COLUMN_DATE + " <= ?";
+        assertIndexed("retention delete",
+                "DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " + selection);
+        assertIndexed("rows the retention delete changes",
+                SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                        new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                        selection, null, null, null, null));
+    }
+
+    // The maintenance moving old days into the history, and the history being read.
+    public void testHistory() {
+        assertIndexed("old days", WeatherRetention.SELECT_OLD_DAYS_SQL);
+        assertIndexed("day delete", WeatherRetention.DELETE_DAY_SQL);
+        assertIndexed("rollup update", WeatherRetention.ROLLUP_UPDATE_SQL);
+        assertIndexed("week expiry", WeatherRetention.EXPIRE_WEEKS_SQL);
+        assertIndexed("oldest rollups", WeatherRetention.DROP_OLDEST_SQL);
+        assertIndexed("expiring week locations", WeatherRetention.EXPIRING_WEEK_LOCATIONS_SQL);
+        assertIndexed("oldest rollup locations", WeatherRetention.OLDEST_ROLLUP_LOCATIONS_SQL);
+        assertIndexed("history/*", SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.HistoryEntry.TABLE_NAME,
+                WeatherRetention.decodeProjection(null), WeatherRetention.HISTORY_SELECTION,
+                null, null, WeatherRetention.HISTORY_SORT_ORDER, null));
+    }
+
+    // weather/*/stats: each bucket's range of days, and its rollup for weeks and months.
+    public void testStats() {
+        DateNormalizer dates = new DateNormalizer();
+        long toDate = dates.normalize(System.currentTimeMillis());
+        long fromDate = dates.normalize(toDate - 1000L * 60 * 60 * 24 * 60);
+        // The buckets only span the weather there is, so there has to be some.
+        for (long date : new long[]{fromDate, toDate}) {
+            mDb.execSQL("INSERT INTO weather (location_id, date, weather_id, min, max, " +
+                    "humidity, pressure, wind, degrees) VALUES (1, ?, 800, 0, 0, 0, 0, 0, 0)",
+                    new Object[]{date});
+        }
+        String[] buckets = {WeatherContract.StatsEntry.BUCKET_DAY,
+                WeatherContract.StatsEntry.BUCKET_WEEK, WeatherContract.StatsEntry.BUCKET_MONTH};
+        for (String bucket : buckets) {
+            WeatherStats stats = new WeatherStats(mDb, 1, fromDate, toDate, bucket);
+            assertIndexed("weather/*/stats?bucket=" + bucket,
+                    stats.buildQuery(WeatherStats.STATS_COLUMNS, 0, 2));
+        }
+        assertIndexed("first day", WeatherStats.FIRST_DAY_SQL);
+        assertIndexed("last day", WeatherStats.LAST_DAY_SQL);
+        assertIndexed("first rollup", WeatherStats.FIRST_ROLLUP_SQL);
+        assertIndexed("last rollup", WeatherStats.LAST_ROLLUP_SQL);
+    }
+
+    // weather/today and weather/latest: every location has to be read, but none of the
+    // weather beyond each one's latest day.
+    public void testLatestWeather() {
+        assertIndexed("weather/latest", WeatherProvider.sLatestWeatherQueryBuilder.buildQuery(
+                WeatherEncoding.decodeProjection(JOINED_COLUMNS, true), null, null, null, null,
+                null), LocationEntry.TABLE_NAME);
+    }
+
+    // location/near: the squares of grid cells it reads, small, wrapping and whole rows.
+    public void testNearestLocations() {
+        String[] columns = {LocationEntry._ID, LocationEntry.COLUMN_COORD_LAT,
+                LocationEntry.COLUMN_COORD_LONG};
+        assertIndexed("one cell", SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, columns,
+                LocationGrid.buildSquareSelection(137, 57, 0, false), null, null, null, null));
+        assertIndexed("square across 180", SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, columns,
+                LocationGrid.buildSquareSelection(90, 358, 3, false), null, null, null, null));
+        assertIndexed("whole rows", SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, columns,
+                LocationGrid.buildSquareSelection(90, 0, 63, true), null, null, null, null));
+    }
+
+    // Storing a day and its condition, and reading back its _id.
+    public void testUpsert() {
+        assertIndexed("upsert update", WeatherBulkWriter.UPDATE_SQL);
+        assertIndexed("upsert find", WeatherBulkWriter.FIND_SQL);
+        assertIndexed("condition update", WeatherBulkWriter.CONDITION_UPDATE_SQL);
+    }
+
+    // Resolving a location setting, and WeatherChanges turning location ids back into settings.
+    public void testLocationLookups() {
+        assertIndexed("location by setting", SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME, new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null, null, null, null));
+        assertIndexed("locations by id", SQLiteQueryBuilder.buildQueryString(false,
+                LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " IN (1, 2, 3)", null, null, null, null));
+    }
+
+    private static String weatherQuery(String selection) {
+        return weatherQuery(selection, null);
+    }
+
+    private static String weatherQuery(String selection, String limit) {
+        return SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                WeatherEncoding.decodeProjection(FORECAST_COLUMNS, false), selection, null, null,
+                SORT_ORDER, limit);
+    }
+
+    private static String joinQuery(String selection) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                WeatherEncoding.decodeProjection(JOINED_COLUMNS, true), selection, null, null,
+                SORT_ORDER, null);
+    }
+
+    private void assertIndexed(String name, String sql) {
+        assertIndexed(name, sql, null);
+    }
+
+    /**
+     * @param scannedTable a table the query is meant to read in full, or null for none.
+     */
+    private void assertIndexed(String name, String sql, String scannedTable) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            assertTrue(plan.getCount() > 0);
+            // The last column is the description, whatever the SQLite version calls the rest.
+            int detail = plan.getColumnCount() - 1;
+            while (plan.moveToNext()) {
+                String step = plan.getString(detail);
+                Log.d(LOG_TAG, name + ": " + step);
+                boolean expectedScan = scannedTable != null &&
+                        step.matches("SCAN (TABLE )?" + scannedTable + "( .*)?");
+                assertFalse("Error: " + name + " scans a table: " + step + "\n" + sql,
+                        step.startsWith("SCAN") && !expectedScan);
+                assertFalse("Error: " + name + " sorts in a temporary B-tree: " + step +
+                        "\n" + sql, step.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+}
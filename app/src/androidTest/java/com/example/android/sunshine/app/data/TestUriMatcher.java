@@ -34,8 +34,23 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    // content://com.example.android.sunshine.app/weather/London,%20UK/stats?bucket=week"
+    private static final Uri TEST_WEATHER_STATS_DIR = WeatherContract.StatsEntry.buildStatsUri(
+            LOCATION_QUERY, 0, Long.MAX_VALUE, WeatherContract.StatsEntry.BUCKET_WEEK);
+    // content://com.example.android.sunshine.app/weather/today"
+    private static final Uri TEST_WEATHER_TODAY_DIR = WeatherContract.WeatherEntry.buildWeatherTodayUri();
+    // content://com.example.android.sunshine.app/weather/latest?date=1419033600"
+    private static final Uri TEST_WEATHER_LATEST_DIR = WeatherContract.WeatherEntry.buildLatestWeatherUri(TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/location/near?lat=64.7488&lon=-147.353&k=3"
+    private static final Uri TEST_LOCATION_NEAR_DIR = WeatherContract.LocationEntry.buildNearUri(
+            64.7488, -147.353, 3);
+    // content://com.example.android.sunshine.app/sync_stats"
+    private static final Uri TEST_SYNC_STATS_DIR = WeatherContract.SyncStatsEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/history/London,%20UK?period=1"
+    private static final Uri TEST_HISTORY_WITH_LOCATION_DIR = WeatherContract.HistoryEntry.buildHistoryUri(
+            LOCATION_QUERY, WeatherContract.HistoryEntry.PERIOD_WEEK);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -50,7 +65,19 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER STATS URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_STATS_DIR), WeatherProvider.WEATHER_STATS);
+        assertEquals("Error: The WEATHER TODAY URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_TODAY_DIR), WeatherProvider.WEATHER_TODAY);
+        assertEquals("Error: The WEATHER LATEST URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_LATEST_DIR), WeatherProvider.WEATHER_LATEST);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION NEAR URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_NEAR_DIR), WeatherProvider.LOCATION_NEAR);
+        assertEquals("Error: The SYNC STATS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_STATS_DIR), WeatherProvider.SYNC_STATS);
+        assertEquals("Error: The HISTORY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HISTORY_WITH_LOCATION_DIR), WeatherProvider.HISTORY_WITH_LOCATION);
     }
 }
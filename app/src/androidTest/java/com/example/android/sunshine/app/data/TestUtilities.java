@@ -143,6 +143,7 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -164,6 +165,7 @@ public class TestUtilities extends AndroidTestCase {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             mContentChanged = true;
+            mChangeCount++;
         }
 
         /**
@@ -182,6 +184,20 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /**
+         * Waits the given time and fails if the ContentObserver callback was called.
+         */
+        public void assertNoNotification(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertFalse("Error: the observer was notified, but nothing should have changed",
+                    mContentChanged);
+            mHT.quit();
+        }
     }
 
     /**
@@ -18,6 +18,9 @@ package com.example.android.sunshine.app.data;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
+import java.util.Calendar;
+import java.util.TimeZone;
+
 /*
     Students: This is NOT a complete test for the WeatherContract --- just for the functions
     that we expect you to write.
@@ -38,4 +41,81 @@ public class TestWeatherContract extends AndroidTestCase {
         assertEquals("Error: Weather location Uri doesn't match our expected result",
                 locationUri.toString(), "content://com.example.android.sunshine.app/weather/%2FNorth%20Pole");
     }
+
+    /*
+        The next page keeps the location, start date and limit, and moves only the cursor.
+     */
+    public void testBuildNextPageUri() {
+        Uri firstPage = WeatherContract.WeatherEntry.buildWeatherLocationPage(
+                TEST_WEATHER_LOCATION, TEST_WEATHER_DATE, 7);
+        Uri secondPage = WeatherContract.WeatherEntry.buildNextPageUri(firstPage, 100L);
+        Uri thirdPage = WeatherContract.WeatherEntry.buildNextPageUri(secondPage, 200L);
+
+        assertEquals(TEST_WEATHER_LOCATION,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(thirdPage));
+        assertEquals(WeatherContract.WeatherEntry.getStartDateFromUri(firstPage),
+                WeatherContract.WeatherEntry.getStartDateFromUri(thirdPage));
+        assertEquals(7, WeatherContract.WeatherEntry.getLimitFromUri(thirdPage));
+        assertEquals(-1, WeatherContract.WeatherEntry.getAfterDateFromUri(firstPage));
+        assertEquals(100L, WeatherContract.WeatherEntry.getAfterDateFromUri(secondPage));
+        assertEquals("Error: the next page should replace the cursor, not add another",
+                200L, WeatherContract.WeatherEntry.getAfterDateFromUri(thirdPage));
+        assertEquals(1, thirdPage.getQueryParameters(
+                WeatherContract.WeatherEntry.PARAM_AFTER_DATE).size());
+    }
+
+    /*
+        The provider normalizes dates with arithmetic instead of a Time; the two have to
+        agree, or the same day could end up stored under two dates.  New York has daylight
+        saving, so a year either side of now crosses a change in both directions.
+     */
+    public void testDateNormalizerMatchesNormalizeDate() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        try {
+            DateNormalizer dates = new DateNormalizer();
+            long start = System.currentTimeMillis() - 1000L * 60 * 60 * 24 * 366;
+            long end = System.currentTimeMillis() + 1000L * 60 * 60 * 24 * 366;
+            // Seven hours doesn't divide a day, so this lands on every hour of the day.
+            for (long date = start; date < end; date += 1000L * 60 * 60 * 7) {
+                assertEquals("Error: normalizing " + date + " gave a different day",
+                        WeatherContract.normalizeDate(date), dates.normalize(date));
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    /*
+        A local midnight is already normalized, whichever side of a daylight saving change it
+        falls on, or a forecast that crosses one would write each day over the one before.
+     */
+    public void testNormalizeDateKeepsMidnightsAcrossDaylightSaving() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone newYork = TimeZone.getTimeZone("America/New_York");
+        TimeZone.setDefault(newYork);
+        try {
+            DateNormalizer dates = new DateNormalizer();
+            // The days around the spring and autumn changes of 2024.
+            checkMidnights(dates, newYork, 2024, Calendar.MARCH, 8);
+            checkMidnights(dates, newYork, 2024, Calendar.NOVEMBER, 1);
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    private static void checkMidnights(DateNormalizer dates, TimeZone zone, int year, int month,
+                                       int firstDay) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(year, month, firstDay);
+        for (int i = 0; i < 5; i++) {
+            long midnight = calendar.getTimeInMillis();
+            assertEquals("Error: " + midnight + " moved to another day",
+                    midnight, WeatherContract.normalizeDate(midnight));
+            assertEquals("Error: " + midnight + " moved to another day",
+                    midnight, dates.normalize(midnight));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
 }
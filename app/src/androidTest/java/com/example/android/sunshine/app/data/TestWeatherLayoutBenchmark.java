@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+    Compares the weather table's rowid layout with the clustered one (see
+    WeatherDbHelper.SQL_CREATE_CLUSTERED_WEATHER_TABLE): the size of the file, how fast the
+    sync's writes go in, and how long reading a location's days takes.  The numbers end up
+    in logcat.  The clustered layout needs Lollipop, so on older devices there is nothing
+    to compare.  The benchmark is a @LargeTest, left out of FullTestSuite;
+    testClusteredLayout checks the layout itself in every run.
+ */
+public class TestWeatherLayoutBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherLayoutBenchmark.class.getSimpleName();
+
+    static final String TEST_DATABASE_NAME = "weather_layout_test.db";
+
+    static final int LOCATIONS = 500;
+    static final int DAYS = 365;
+    static final int QUERIES = 200;
+    static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    private long mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mFirstDay = WeatherContract.normalizeDate(
+                System.currentTimeMillis() - (DAYS - 14) * DAY_IN_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testClusteredLayout() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME, true, true);
+        if (!helper.isClustered()) {
+            Log.i(LOG_TAG, "No clustered layout before Lollipop");
+            helper.close();
+            return;
+        }
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            ContentValues values = TestUtilities.createWeatherValues(1);
+            values.put(WeatherEntry.COLUMN_DATE, mFirstDay);
+            db.beginTransaction();
+            WeatherBulkWriter writer = new WeatherBulkWriter(db);
+            try {
+                assertEquals(WeatherProvider.UPSERT_INSERTED, writer.write(values));
+                assertEquals(WeatherProvider.UPSERT_UNCHANGED, writer.write(values));
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+                assertEquals(WeatherProvider.UPSERT_UPDATED, writer.write(values));
+                db.setTransactionSuccessful();
+            } finally {
+                writer.close();
+                db.endTransaction();
+            }
+            populate(db, 3, 30);
+
+            // Every day gets its own _id, and a location's days come back in date order
+            // without being sorted.
+            Cursor cursor = db.rawQuery(rangeQuery(true), new String[]{"2",
+                    Long.toString(mFirstDay)});
+            try {
+                assertEquals(30, cursor.getCount());
+                HashSet<Long> ids = new HashSet<Long>();
+                long lastDate = Long.MIN_VALUE;
+                while (cursor.moveToNext()) {
+                    assertTrue("Error: _id " + cursor.getLong(0) + " repeats",
+                            ids.add(cursor.getLong(0)));
+                    assertTrue(cursor.getLong(1) > lastDate);
+                    lastDate = cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            assertNotScanned(db, rangeQuery(true));
+            assertNotScanned(db, "DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                    WeatherEntry.COLUMN_DATE + " <= ?");
+        } finally {
+            helper.close();
+        }
+    }
+
+    /*
+        Auckland is twelve hours ahead in winter and thirteen in summer, so its local
+        midnights fall either side of UTC noon.  Every day still needs its own _id, from the
+        day it is locally, through both daylight saving changes of 2024.
+     */
+    public void testClusteredIdsAcrossDaylightSaving() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone auckland = TimeZone.getTimeZone("Pacific/Auckland");
+        TimeZone.setDefault(auckland);
+        SQLiteDatabase db = new WeatherDbHelper(mContext, TEST_DATABASE_NAME)
+                .getWritableDatabase();
+        try {
+            checkClusteredIds(db, auckland, Calendar.APRIL, 3);
+            checkClusteredIds(db, auckland, Calendar.SEPTEMBER, 26);
+        } finally {
+            db.close();
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    private static void checkClusteredIds(SQLiteDatabase db, TimeZone zone, int month,
+                                          int firstDay) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(2024, month, firstDay);
+        for (int i = 0; i < 7; i++) {
+            long midnight = calendar.getTimeInMillis();
+            long epochDay = (midnight + zone.getOffset(midnight)) / DAY_IN_MILLIS;
+            Cursor cursor = db.rawQuery("SELECT " + WeatherDbHelper.clusteredIdExpression() +
+                    " FROM (SELECT 2 AS " + WeatherEntry.COLUMN_LOC_KEY + ", " + midnight +
+                    " AS " + WeatherEntry.COLUMN_DATE + ")", null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("Error: the _id for " + midnight + " is not its local day",
+                        (2L << 24) + epochDay, cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+    }
+
+    @LargeTest
+    public void testLayoutBenchmark() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Log.i(LOG_TAG, "No clustered layout before Lollipop");
+            return;
+        }
+        String rowid = measure(false);
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        String clustered = measure(true);
+        Log.i(LOG_TAG, LOCATIONS + " locations with " + DAYS + " days each; rowid layout: " +
+                rowid + "; clustered layout: " + clustered);
+    }
+
+    private String measure(boolean clustered) {
+        WeatherDbHelper helper =
+                new WeatherDbHelper(mContext, TEST_DATABASE_NAME, true, clustered);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long insertNanos = populate(db, LOCATIONS, DAYS);
+        // Closing the last connection copies the write-ahead log back into the file.
+        helper.close();
+        long bytes = mContext.getDatabasePath(TEST_DATABASE_NAME).length();
+
+        db = new WeatherDbHelper(mContext, TEST_DATABASE_NAME, true, clustered)
+                .getReadableDatabase();
+        String sql = rangeQuery(clustered);
+        long today = mFirstDay + (DAYS - 14) * DAY_IN_MILLIS;
+        Random random = new Random(42);
+        int rows = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < QUERIES; i++) {
+                Cursor cursor = db.rawQuery(sql, new String[]{
+                        Integer.toString(random.nextInt(LOCATIONS) + 1), Long.toString(today)});
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                    rows++;
+                }
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+        long queryNanos = System.nanoTime() - start;
+        assertEquals(QUERIES * 14, rows);
+
+        return bytes / 1024 + "KB, " + (long) LOCATIONS * DAYS * 1000000000L / insertNanos +
+                " rows inserted per second, " + queryNanos / QUERIES / 1000 + "us per " +
+                rows / QUERIES + " day range";
+    }
+
+    // What the forecast list asks for, from one location and date onwards.
+    private static String rangeQuery(boolean clustered) {
+        return "SELECT " + (clustered ? WeatherDbHelper.clusteredIdExpression() + " AS " +
+                WeatherEntry._ID : WeatherEntry._ID) + ", " +
+                TextUtils.join(", ", WeatherEncoding.decodeProjection(new String[]{
+                        WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC,
+                        WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_WEATHER_ID}, false)) +
+                " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherProvider.sLocationIdWithStartDateSelection +
+                " ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC";
+    }
+
+    /**
+     * Writes the days the way a sync does: one transaction per location, through
+     * WeatherBulkWriter.
+     *
+     * @return how long it took.
+     */
+    private long populate(SQLiteDatabase db, int locations, int days) {
+        ContentValues values = TestUtilities.createWeatherValues(1);
+        long start = System.nanoTime();
+        for (int location = 1; location <= locations; location++) {
+            values.put(WeatherEntry.COLUMN_LOC_KEY, (long) location);
+            db.beginTransaction();
+            WeatherBulkWriter writer = new WeatherBulkWriter(db);
+            try {
+                for (int day = 0; day < days; day++) {
+                    values.put(WeatherEntry.COLUMN_DATE, mFirstDay + day * DAY_IN_MILLIS);
+                    values.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + day % 10);
+                    writer.write(values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                writer.close();
+                db.endTransaction();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void assertNotScanned(SQLiteDatabase db, String sql) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detail = plan.getColumnCount() - 1;
+            while (plan.moveToNext()) {
+                String step = plan.getString(detail);
+                assertFalse("Error: " + step + "\n" + sql, step.startsWith("SCAN") ||
+                        step.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+}
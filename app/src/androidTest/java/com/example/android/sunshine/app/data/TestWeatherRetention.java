@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+
+/*
+    Runs the history maintenance on a database of its own: days past the hot tier are
+    rolled up and removed, a chunk at a time, and the rollups are dropped once they are too
+    old or the database is over budget.  WeatherRetention needs API 11.
+ */
+public class TestWeatherRetention extends AndroidTestCase {
+
+    static final String TEST_DATABASE_NAME = "retention_test.db";
+
+    static final long LOCATION_ID = 1;
+    // Days of weather stored, ending with today.
+    static final int DAYS = 60;
+
+    private SQLiteDatabase mDb;
+    private long mNow;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, TEST_DATABASE_NAME).getWritableDatabase();
+        mNow = System.currentTimeMillis();
+        mToday = new DateNormalizer().normalize(mNow);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testRollsUpDaysPastTheHotTier() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        insertDays(DAYS);
+        int oldDays = DAYS - 1 - HistoryEntry.HOT_DAYS;
+
+        WeatherChanges changes = new WeatherChanges();
+        WeatherRetention.Result result = new WeatherRetention(mDb).compact(mNow, changes);
+        assertEquals(oldDays, result.daysRolledUp);
+        assertFalse(result.hasMore);
+        assertFalse("Error: removing days didn't report a change", changes.isEmpty());
+
+        assertEquals("Error: the hot tier should keep the last HOT_DAYS days and today",
+                HistoryEntry.HOT_DAYS + 1,
+                DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(addDays(mToday, -HistoryEntry.HOT_DAYS))}));
+
+        // Both periods account for every day once, with the right extremes and mean.
+        double expectedMean = 0;
+        for (int i = 0; i < oldDays; i++) {
+            expectedMean += (minOf(i) + maxOf(i)) / 200.0;
+        }
+        expectedMean /= oldDays;
+        for (int period : new int[]{HistoryEntry.PERIOD_WEEK, HistoryEntry.PERIOD_MONTH}) {
+            Cursor cursor = queryHistory(period);
+            int days = 0;
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            double meanSum = 0;
+            Calendar calendar = Calendar.getInstance();
+            while (cursor.moveToNext()) {
+                calendar.setTimeInMillis(cursor.getLong(0));
+                assertEquals(0, calendar.get(Calendar.HOUR_OF_DAY));
+                if (period == HistoryEntry.PERIOD_WEEK) {
+                    assertEquals("Error: a week doesn't start on the first day of the week",
+                            calendar.getFirstDayOfWeek(), calendar.get(Calendar.DAY_OF_WEEK));
+                } else {
+                    assertEquals("Error: a month doesn't start on its first day",
+                            1, calendar.get(Calendar.DAY_OF_MONTH));
+                }
+                days += cursor.getInt(1);
+                min = Math.min(min, cursor.getDouble(2));
+                max = Math.max(max, cursor.getDouble(3));
+                meanSum += cursor.getDouble(4) * cursor.getInt(1);
+            }
+            cursor.close();
+            assertEquals("Error: period " + period + " lost days", oldDays, days);
+            assertEquals(minOf(0) / 100.0, min);
+            assertEquals(maxOf(oldDays - 1) / 100.0, max);
+            assertEquals(expectedMean, meanSum / days, 0.0001);
+        }
+
+        // Nothing left to do the second time around.
+        result = new WeatherRetention(mDb).compact(mNow, new WeatherChanges());
+        assertEquals(0, result.daysRolledUp);
+        assertEquals(0, result.rollupsDropped);
+    }
+
+    public void testChunksGiveTheSameRollups() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        insertDays(DAYS);
+        WeatherRetention retention = new WeatherRetention(mDb, Long.MAX_VALUE, 7);
+        int chunks = 0;
+        int days = 0;
+        WeatherRetention.Result result;
+        do {
+            result = retention.compact(mNow, new WeatherChanges());
+            assertTrue("Error: a chunk did more than it should", result.daysRolledUp <= 7);
+            days += result.daysRolledUp;
+            chunks++;
+        } while (result.hasMore);
+        assertEquals(DAYS - 1 - HistoryEntry.HOT_DAYS, days);
+        assertTrue(chunks > 1);
+        ArrayList<String> chunked = dumpHistory();
+
+        mDb.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+        insertDays(DAYS);
+        new WeatherRetention(mDb).compact(mNow, new WeatherChanges());
+        assertEquals("Error: rolling up in chunks gave different rollups",
+                dumpHistory(), chunked);
+    }
+
+    public void testOldWeeksExpire() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long yearAgo = addDays(mToday, -365);
+        insertRollup(HistoryEntry.PERIOD_WEEK, yearAgo);
+        insertRollup(HistoryEntry.PERIOD_MONTH, yearAgo);
+        insertRollup(HistoryEntry.PERIOD_WEEK, addDays(mToday, -30));
+
+        WeatherChanges changes = new WeatherChanges();
+        WeatherRetention.Result result = new WeatherRetention(mDb).compact(mNow, changes);
+        assertEquals(1, result.rollupsDropped);
+        assertFalse("Error: dropping a rollup didn't report its location, whose statistics " +
+                "changed", changes.isEmpty());
+        assertEquals(1, queryHistory(HistoryEntry.PERIOD_WEEK).getCount());
+        assertEquals("Error: months should outlive their weeks",
+                1, queryHistory(HistoryEntry.PERIOD_MONTH).getCount());
+    }
+
+    public void testBudgetDropsOldestFirst() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        for (int i = 1; i <= 5; i++) {
+            insertRollup(HistoryEntry.PERIOD_MONTH, addDays(mToday, -30 * i));
+        }
+        insertDays(3);
+
+        // Over budget whatever we do.
+        WeatherRetention retention = new WeatherRetention(mDb, 1, 2);
+        WeatherRetention.Result result = retention.compact(mNow, new WeatherChanges());
+        assertEquals(2, result.rollupsDropped);
+        assertTrue(result.hasMore);
+        Cursor cursor = queryHistory(HistoryEntry.PERIOD_MONTH);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the oldest rollups should be dropped first",
+                addDays(mToday, -90), cursor.getLong(0));
+        cursor.close();
+
+        // Once the history is gone, the hot tier shrinks to today and the forecast.
+        while (result.hasMore) {
+            result = retention.compact(mNow, new WeatherChanges());
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, HistoryEntry.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, WeatherEntry.TABLE_NAME));
+    }
+
+    // Day i of the given number, the last of them today.
+    private void insertDays(int days) {
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < days; i++) {
+                mDb.execSQL("INSERT INTO weather (location_id, date, weather_id, min, max, " +
+                        "humidity, pressure, wind, degrees) VALUES (?, ?, 800, ?, ?, 0, 0, 0, 0)",
+                        new Object[]{LOCATION_ID, addDays(mToday, i - days + 1), minOf(i),
+                                maxOf(i)});
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void insertRollup(int period, long startDate) {
+        mDb.execSQL("INSERT INTO weather_rollup (location_id, period, start_date, days, " +
+                "min, max, temp_sum) VALUES (?, ?, ?, 7, 1000, 2000, 21000)",
+                new Object[]{LOCATION_ID, period, startDate});
+    }
+
+    private Cursor queryHistory(int period) {
+        return mDb.query(HistoryEntry.TABLE_NAME, WeatherRetention.decodeProjection(
+                        new String[]{HistoryEntry.COLUMN_START_DATE, HistoryEntry.COLUMN_DAYS,
+                                HistoryEntry.COLUMN_MIN_TEMP, HistoryEntry.COLUMN_MAX_TEMP,
+                                HistoryEntry.COLUMN_MEAN_TEMP}),
+                WeatherRetention.HISTORY_SELECTION,
+                new String[]{Long.toString(LOCATION_ID), Integer.toString(period)},
+                null, null, WeatherRetention.HISTORY_SORT_ORDER);
+    }
+
+    private ArrayList<String> dumpHistory() {
+        ArrayList<String> rows = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("SELECT location_id, period, start_date, days, min, max, " +
+                "temp_sum FROM weather_rollup ORDER BY location_id, period, start_date", null);
+        while (cursor.moveToNext()) {
+            StringBuilder row = new StringBuilder();
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                row.append(cursor.getLong(i)).append(' ');
+            }
+            rows.add(row.toString());
+        }
+        cursor.close();
+        return rows;
+    }
+
+    // Temperatures in hundredths that rise day by day, so the extremes are the ends.
+    private static long minOf(int day) {
+        return -500 + 10 * day;
+    }
+
+    private static long maxOf(int day) {
+        return 1500 + 15 * day;
+    }
+
+    private static long addDays(long date, int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return calendar.getTimeInMillis();
+    }
+}
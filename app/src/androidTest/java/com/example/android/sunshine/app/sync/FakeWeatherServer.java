@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A small in-process HTTP server that stands in for OpenWeatherMap, so the sync can be
+ * exercised and measured without a network.
+ *
+ * It either serves one fixed forecast (usually a recorded one) to every request, or builds a
+ * synthetic forecast for whichever location and number of days were asked for.  Responses
+ * carry an ETag and honour If-None-Match, are gzipped when the client accepts it, and can be
+ * slowed down or made to fail at a given rate.  Requests are served concurrently.
+ */
+public class FakeWeatherServer {
+    public static final String LOG_TAG = FakeWeatherServer.class.getSimpleName();
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+    // A fixed forecast served to everyone, or null to build synthetic ones.
+    private volatile String mForecast;
+    private volatile String mETag;
+    // Bumped to make every synthetic forecast look changed upstream.
+    private volatile int mSyntheticVersion = 1;
+    // Number of days in a synthetic forecast, or 0 to honour the cnt parameter.
+    private volatile int mSyntheticDays;
+    private volatile boolean mGzip = true;
+
+    private volatile long mLatencyMillis;
+    private volatile double mErrorRate;
+    private volatile int mErrorStatus = 503;
+    private final Random mRandom = new Random(42);
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private volatile String mLastIfNoneMatch;
+
+    public FakeWeatherServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, LOG_TAG);
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return a base URL to hand to {@link HttpWeatherSource}.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    /**
+     * Serves the given forecast to every request.
+     */
+    public void setForecast(String forecast, String eTag) {
+        mForecast = forecast;
+        mETag = eTag;
+    }
+
+    /**
+     * Builds a forecast for each request from its location and day count instead.
+     *
+     * @param days the number of days to serve, or 0 to serve as many as were asked for.
+     *             Use this to make responses bigger or smaller than a real one.
+     */
+    public void setSyntheticForecasts(int days) {
+        mForecast = null;
+        mSyntheticDays = days;
+    }
+
+    /**
+     * Makes every synthetic forecast look changed, so the next request for each gets a
+     * full response instead of a 304.
+     */
+    public void changeSyntheticForecasts() {
+        mSyntheticVersion++;
+    }
+
+    public void setGzip(boolean gzip) {
+        mGzip = gzip;
+    }
+
+    /**
+     * Delays every response by the given time, to stand in for a slow network.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Answers the given fraction of requests, between 0 and 1, with an error.  A 503
+     * unless setErrorStatus says otherwise.
+     */
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    public void setErrorStatus(int errorStatus) {
+        mErrorStatus = errorStatus;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return the largest number of requests that were being served at the same time.
+     */
+    public int getMaxConcurrentRequests() {
+        return mMaxInFlight.get();
+    }
+
+    public String getLastIfNoneMatch() {
+        return mLastIfNoneMatch;
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+            mAcceptThread.join();
+            mWorkers.shutdown();
+            mWorkers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error shutting down", e);
+        }
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown().
+                return;
+            }
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(socket);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Error handling request", e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, "Error closing socket", e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+
+        String ifNoneMatch = null;
+        boolean acceptsGzip = false;
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if ("If-None-Match".equalsIgnoreCase(name)) {
+                ifNoneMatch = value;
+            } else if ("Accept-Encoding".equalsIgnoreCase(name)) {
+                acceptsGzip = value.contains("gzip");
+            }
+        }
+        mRequestCount.incrementAndGet();
+        mLastIfNoneMatch = ifNoneMatch;
+
+        int inFlight = mInFlight.incrementAndGet();
+        try {
+            int max;
+            while (inFlight > (max = mMaxInFlight.get())) {
+                if (mMaxInFlight.compareAndSet(max, inFlight)) {
+                    break;
+                }
+            }
+            if (mLatencyMillis > 0) {
+                try {
+                    Thread.sleep(mLatencyMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            respond(socket.getOutputStream(), requestLine, ifNoneMatch, acceptsGzip);
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    private void respond(OutputStream out, String requestLine, String ifNoneMatch,
+                         boolean acceptsGzip) throws IOException {
+        boolean fail;
+        synchronized (mRandom) {
+            fail = mErrorRate > 0 && mRandom.nextDouble() < mErrorRate;
+        }
+        if (fail) {
+            mErrorCount.incrementAndGet();
+            out.write(("HTTP/1.1 " + mErrorStatus + " Error\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            return;
+        }
+
+        String forecast = mForecast;
+        String eTag = mETag;
+        if (forecast == null) {
+            String location = getQueryParameter(requestLine, HttpWeatherSource.QUERY_PARAM);
+            String cnt = getQueryParameter(requestLine, HttpWeatherSource.DAYS_PARAM);
+            int days = mSyntheticDays > 0 ? mSyntheticDays :
+                    (cnt != null ? Integer.parseInt(cnt) : 14);
+            eTag = "\"" + location + "-" + days + "-" + mSyntheticVersion + "\"";
+            if (!eTag.equals(ifNoneMatch)) {
+                forecast = ForecastPayloads.synthetic(location, days, false);
+            }
+        }
+
+        if (eTag != null && eTag.equals(ifNoneMatch)) {
+            mNotModifiedCount.incrementAndGet();
+            out.write(("HTTP/1.1 304 Not Modified\r\n" +
+                    "ETag: " + eTag + "\r\n" +
+                    "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.flush();
+            return;
+        }
+
+        byte[] body = forecast.getBytes("UTF-8");
+        boolean gzip = mGzip && acceptsGzip;
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder headers = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Type: application/json; charset=utf-8\r\n");
+        headers.append("Content-Length: ").append(body.length).append("\r\n");
+        if (gzip) {
+            headers.append("Content-Encoding: gzip\r\n");
+        }
+        if (eTag != null) {
+            headers.append("ETag: ").append(eTag).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Pulls a query parameter out of a request line such as
+     * "GET /data/2.5/forecast/daily?q=94043&cnt=14 HTTP/1.1".
+     */
+    private static String getQueryParameter(String requestLine, String name) throws IOException {
+        int start = requestLine.indexOf('?');
+        int end = requestLine.lastIndexOf(' ');
+        if (start < 0 || end <= start) {
+            return null;
+        }
+        for (String pair : requestLine.substring(start + 1, end).split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0 && name.equals(pair.substring(0, equals))) {
+                return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
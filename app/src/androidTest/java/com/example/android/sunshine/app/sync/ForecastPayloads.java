@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Forecast responses used by the sync tests, so they never need to talk to OpenWeatherMap.
+ */
+public class ForecastPayloads {
+
+    static final String RECORDED_CITY_NAME = "Mountain View";
+    static final double RECORDED_CITY_LAT = 37.386051;
+    static final double RECORDED_CITY_LON = -122.083847;
+    static final int RECORDED_DAYS = 14;
+
+    /**
+     * A 14 day, metric forecast for 94043 as returned by the daily forecast API.
+     */
+    static final String RECORDED_14_DAY =
+            "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"" +
+            "country\":\"US\",\"population\":0},\"cod\":\"200\",\"message\":0.0107,\"cnt\":14,\"list\":[{\"dt\":14190192" +
+            "00,\"temp\":{\"day\":13.85,\"min\":7.52,\"max\":13.85,\"night\":7.52,\"eve\":10.68,\"morn\":7.52},\"press" +
+            "ure\":1014.58,\"humidity\":45,\"weather\":[{\"id\":801,\"main\":\"Clouds\",\"description\":\"few clouds\"" +
+            ",\"icon\":\"02d\"}],\"speed\":0.87,\"deg\":205,\"clouds\":70},{\"dt\":1419105600,\"temp\":{\"day\":16.59,\"" +
+            "min\":10.0,\"max\":16.59,\"night\":10.0,\"eve\":13.29,\"morn\":10.0},\"pressure\":1009.44,\"humidity\":" +
+            "74,\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}],\"spee" +
+            "d\":2.48,\"deg\":88,\"clouds\":13},{\"dt\":1419192000,\"temp\":{\"day\":14.63,\"min\":7.07,\"max\":14.63," +
+            "\"night\":7.07,\"eve\":10.85,\"morn\":7.07},\"pressure\":1021.58,\"humidity\":91,\"weather\":[{\"id\":80" +
+            "3,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}],\"speed\":1.93,\"deg\":139,\"clo" +
+            "uds\":24},{\"dt\":1419278400,\"temp\":{\"day\":13.31,\"min\":7.55,\"max\":13.31,\"night\":7.55,\"eve\":10" +
+            ".43,\"morn\":7.55},\"pressure\":1019.64,\"humidity\":94,\"weather\":[{\"id\":801,\"main\":\"Clouds\",\"de" +
+            "scription\":\"few clouds\",\"icon\":\"02d\"}],\"speed\":5.17,\"deg\":190,\"clouds\":11},{\"dt\":141936480" +
+            "0,\"temp\":{\"day\":12.02,\"min\":7.69,\"max\":12.02,\"night\":7.69,\"eve\":9.86,\"morn\":7.69},\"pressur" +
+            "e\":1009.98,\"humidity\":55,\"weather\":[{\"id\":501,\"main\":\"Rain\",\"description\":\"moderate rain\"," +
+            "\"icon\":\"10d\"}],\"speed\":3.1,\"deg\":45,\"clouds\":70,\"rain\":5.09},{\"dt\":1419451200,\"temp\":{\"day" +
+            "\":15.97,\"min\":10.54,\"max\":15.97,\"night\":10.54,\"eve\":13.25,\"morn\":10.54},\"pressure\":1022.65" +
+            ",\"humidity\":94,\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01" +
+            "d\"}],\"speed\":4.71,\"deg\":99,\"clouds\":52},{\"dt\":1419537600,\"temp\":{\"day\":13.58,\"min\":8.99,\"m" +
+            "ax\":13.58,\"night\":8.99,\"eve\":11.29,\"morn\":8.99},\"pressure\":1008.23,\"humidity\":59,\"weather\"" +
+            ":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}],\"speed\":1.93,\"deg\":22," +
+            "\"clouds\":10,\"rain\":0.56},{\"dt\":1419624000,\"temp\":{\"day\":14.48,\"min\":8.59,\"max\":14.48,\"nigh" +
+            "t\":8.59,\"eve\":11.54,\"morn\":8.59},\"pressure\":1019.02,\"humidity\":49,\"weather\":[{\"id\":803,\"ma" +
+            "in\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}],\"speed\":5.99,\"deg\":100,\"clouds\":" +
+            "8},{\"dt\":1419710400,\"temp\":{\"day\":16.38,\"min\":10.57,\"max\":16.38,\"night\":10.57,\"eve\":13.47," +
+            "\"morn\":10.57},\"pressure\":1013.82,\"humidity\":51,\"weather\":[{\"id\":500,\"main\":\"Rain\",\"descrip" +
+            "tion\":\"light rain\",\"icon\":\"10d\"}],\"speed\":2.46,\"deg\":301,\"clouds\":41,\"rain\":3.92},{\"dt\":14" +
+            "19796800,\"temp\":{\"day\":13.13,\"min\":10.52,\"max\":13.13,\"night\":10.52,\"eve\":11.82,\"morn\":10.5" +
+            "2},\"pressure\":1006.23,\"humidity\":54,\"weather\":[{\"id\":801,\"main\":\"Clouds\",\"description\":\"fe" +
+            "w clouds\",\"icon\":\"02d\"}],\"speed\":2.03,\"deg\":298,\"clouds\":78},{\"dt\":1419883200,\"temp\":{\"day" +
+            "\":14.22,\"min\":6.61,\"max\":14.22,\"night\":6.61,\"eve\":10.42,\"morn\":6.61},\"pressure\":1010.82,\"h" +
+            "umidity\":41,\"weather\":[{\"id\":801,\"main\":\"Clouds\",\"description\":\"few clouds\",\"icon\":\"02d\"}]" +
+            ",\"speed\":0.74,\"deg\":357,\"clouds\":10},{\"dt\":1419969600,\"temp\":{\"day\":17.43,\"min\":9.67,\"max\"" +
+            ":17.43,\"night\":9.67,\"eve\":13.55,\"morn\":9.67},\"pressure\":1005.36,\"humidity\":58,\"weather\":[{" +
+            "\"id\":803,\"main\":\"Clouds\",\"description\":\"broken clouds\",\"icon\":\"04d\"}],\"speed\":2.27,\"deg\":7" +
+            "8,\"clouds\":99},{\"dt\":1420056000,\"temp\":{\"day\":17.53,\"min\":10.31,\"max\":17.53,\"night\":10.31," +
+            "\"eve\":13.92,\"morn\":10.31},\"pressure\":1018.6,\"humidity\":44,\"weather\":[{\"id\":500,\"main\":\"Rai" +
+            "n\",\"description\":\"light rain\",\"icon\":\"10d\"}],\"speed\":2.11,\"deg\":98,\"clouds\":56,\"rain\":1.96" +
+            "},{\"dt\":1420142400,\"temp\":{\"day\":15.68,\"min\":7.91,\"max\":15.68,\"night\":7.91,\"eve\":11.79,\"mo" +
+            "rn\":7.91},\"pressure\":1011.63,\"humidity\":40,\"weather\":[{\"id\":803,\"main\":\"Clouds\",\"descripti" +
+            "on\":\"broken clouds\",\"icon\":\"04d\"}],\"speed\":2.5,\"deg\":232,\"clouds\":21}]}";
+
+    /**
+     * Builds a forecast in the same shape as the recorded one, with any number of days.
+     * The city is written after the list when {@code cityLast} is set, which the server is
+     * free to do.
+     */
+    static String synthetic(String cityName, int numDays, boolean cityLast) {
+        StringBuilder sb = new StringBuilder(numDays * 280 + 256);
+        String city = "\"city\":{\"id\":" + Math.abs(cityName.hashCode()) +
+                ",\"name\":\"" + cityName + "\",\"coord\":{\"lon\":" + RECORDED_CITY_LON +
+                ",\"lat\":" + RECORDED_CITY_LAT + "},\"country\":\"US\",\"population\":0}";
+        sb.append('{');
+        if (!cityLast) {
+            sb.append(city).append(',');
+        }
+        sb.append("\"cod\":\"200\",\"message\":0.0107,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            double low = 5 + (i % 7);
+            double high = low + 4.25;
+            sb.append("{\"dt\":").append(1419019200L + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(high)
+                    .append(",\"min\":").append(low)
+                    .append(",\"max\":").append(high)
+                    .append(",\"night\":").append(low)
+                    .append(",\"eve\":").append(high)
+                    .append(",\"morn\":").append(low)
+                    .append("},\"pressure\":").append(1010.5 + i % 11)
+                    .append(",\"humidity\":").append(50 + i % 50)
+                    .append(",\"weather\":[{\"id\":").append(i % 2 == 0 ? 800 : 501)
+                    .append(",\"main\":\"").append(i % 2 == 0 ? "Clear" : "Rain")
+                    .append("\",\"description\":\"").append(i % 2 == 0 ? "sky is clear" : "moderate rain")
+                    .append("\",\"icon\":\"10d\"}],\"speed\":").append(1.5 + i % 5)
+                    .append(",\"deg\":").append((i * 37) % 360)
+                    .append(",\"clouds\":").append(i % 100).append('}');
+        }
+        sb.append(']');
+        if (cityLast) {
+            sb.append(',').append(city);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Vector;
+
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    // Enough iterations to get past the JIT warming up.
+    static final int BENCHMARK_WARMUP = 50;
+    static final int BENCHMARK_ITERATIONS = 500;
+
+    /**
+     * Keeps a copy of everything the parser reported.
+     */
+    static class RecordingListener implements ForecastParser.Listener {
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<double[]> days = new ArrayList<double[]>();
+        final ArrayList<String> descriptions = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, ForecastParser.DayForecast day) {
+            assertEquals("Error: days were reported out of order", days.size(), dayIndex);
+            days.add(new double[]{day.pressure, day.humidity, day.windSpeed, day.windDirection,
+                    day.high, day.low, day.weatherId});
+            descriptions.add(day.description);
+        }
+    }
+
+    public void testStreamingMatchesTreeParser() throws Throwable {
+        RecordingListener streamed = new RecordingListener();
+        int streamedDays = new ForecastParser().parse(
+                new StringReader(ForecastPayloads.RECORDED_14_DAY), streamed);
+
+        RecordingListener tree = new RecordingListener();
+        int treeDays = new ForecastParser().parse(ForecastPayloads.RECORDED_14_DAY, tree);
+
+        assertEquals("Error: the streaming parser returned the wrong number of days",
+                ForecastPayloads.RECORDED_DAYS, streamedDays);
+        assertEquals(treeDays, streamedDays);
+        assertEquals(ForecastPayloads.RECORDED_CITY_NAME, streamed.cityName);
+        assertEquals(ForecastPayloads.RECORDED_CITY_LAT, streamed.lat);
+        assertEquals(ForecastPayloads.RECORDED_CITY_LON, streamed.lon);
+
+        for (int i = 0; i < treeDays; i++) {
+            double[] expected = tree.days.get(i);
+            double[] actual = streamed.days.get(i);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals("Error: value " + j + " of day " + i + " does not match",
+                        expected[j], actual[j]);
+            }
+            assertEquals(tree.descriptions.get(i), streamed.descriptions.get(i));
+        }
+    }
+
+    public void testCityAfterList() throws Throwable {
+        RecordingListener streamed = new RecordingListener();
+        int days = new ForecastParser().parse(new StringReader(
+                ForecastPayloads.synthetic("Sunnydale", 7, true)), streamed);
+
+        assertEquals(7, days);
+        assertEquals("Error: the city was not reported when written after the list",
+                "Sunnydale", streamed.cityName);
+    }
+
+    public void testMalformedForecast() throws Throwable {
+        try {
+            new ForecastParser().parse(new StringReader("{\"cod\":\"404\",\"list\":[{]}"),
+                    new RecordingListener());
+            fail("Error: a malformed forecast should throw a JSONException");
+        } catch (JSONException expected) {
+        }
+
+        try {
+            new ForecastParser().parse(new StringReader("{\"cod\":\"404\"}"),
+                    new RecordingListener());
+            fail("Error: a forecast without a city should throw a JSONException");
+        } catch (JSONException expected) {
+        }
+    }
+
+    // A day without its temperatures is turned down by both parsers, rather than stored with
+    // zeros in place of the temperatures.
+    public void testDayMissingTemperature() throws Throwable {
+        String forecast = "{\"city\":{\"name\":\"Sunnydale\"," +
+                "\"coord\":{\"lat\":34.1,\"lon\":-118.3}},\"list\":[" +
+                "{\"pressure\":1012.5,\"humidity\":60,\"speed\":3.2,\"deg\":270," +
+                "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}]}";
+        try {
+            new ForecastParser().parse(new StringReader(forecast), new RecordingListener());
+            fail("Error: the streaming parser accepted a day without temp");
+        } catch (JSONException expected) {
+        }
+
+        try {
+            new ForecastParser().parse(forecast, new RecordingListener());
+            fail("Error: the tree parser accepted a day without temp");
+        } catch (JSONException expected) {
+        }
+    }
+
+    // Without a city name or coordinates the sync can't store the location, and without the
+    // list there is no forecast, so both parsers turn these down rather than reporting none.
+    public void testForecastMissingCityFields() throws Throwable {
+        String day = "{\"pressure\":1012.5,\"humidity\":60,\"speed\":3.2,\"deg\":270," +
+                "\"temp\":{\"max\":21.5,\"min\":12.25}," +
+                "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}";
+        String[] forecasts = {
+                "{\"city\":{\"coord\":{\"lat\":34.1,\"lon\":-118.3}},\"list\":[" + day + "]}",
+                "{\"city\":{\"name\":\"Sunnydale\"},\"list\":[" + day + "]}",
+                "{\"city\":{\"name\":\"Sunnydale\",\"coord\":{\"lat\":34.1}},\"list\":[" +
+                        day + "]}",
+                "{\"city\":{\"name\":\"Sunnydale\",\"coord\":{\"lat\":34.1,\"lon\":-118.3}}}"
+        };
+        for (String forecast : forecasts) {
+            try {
+                new ForecastParser().parse(new StringReader(forecast), new RecordingListener());
+                fail("Error: the streaming parser accepted " + forecast);
+            } catch (JSONException expected) {
+            }
+
+            try {
+                new ForecastParser().parse(forecast, new RecordingListener());
+                fail("Error: the tree parser accepted " + forecast);
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    /*
+        Compares what the sync used to do with a response (read it line by line into a
+        StringBuffer, build the JSONObject tree, copy it into a Vector of ContentValues)
+        against streaming it through ForecastParser.  The numbers end up in logcat; there
+        is nothing to assert, since they depend on the device, so it is a @LargeTest, left
+        out of FullTestSuite.  testStreamingMatchesTreeParser checks the results.
+     */
+    @LargeTest
+    public void testParserBenchmark() throws Throwable {
+        benchmark("recorded 14 day", ForecastPayloads.RECORDED_14_DAY.getBytes("UTF-8"));
+        benchmark("synthetic 16 day",
+                ForecastPayloads.synthetic("Sunnydale", 16, false).getBytes("UTF-8"));
+    }
+
+    private void benchmark(String name, byte[] payload) throws Throwable {
+        for (int i = 0; i < BENCHMARK_WARMUP; i++) {
+            parseTheOldWay(new ByteArrayInputStream(payload));
+            parseStreaming(new ByteArrayInputStream(payload));
+        }
+
+        long[] oldWay = measure(payload, false);
+        long[] streaming = measure(payload, true);
+
+        Log.i(LOG_TAG, name + " (" + payload.length + " bytes): old path " +
+                oldWay[0] / BENCHMARK_ITERATIONS + "ns, " +
+                oldWay[1] / BENCHMARK_ITERATIONS + " allocs, " +
+                oldWay[2] / BENCHMARK_ITERATIONS + " bytes allocated per parse; streaming " +
+                streaming[0] / BENCHMARK_ITERATIONS + "ns, " +
+                streaming[1] / BENCHMARK_ITERATIONS + " allocs, " +
+                streaming[2] / BENCHMARK_ITERATIONS + " bytes allocated per parse");
+    }
+
+    @SuppressWarnings("deprecation")
+    private long[] measure(byte[] payload, boolean streaming) throws Throwable {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            int days = streaming ? parseStreaming(new ByteArrayInputStream(payload))
+                    : parseTheOldWay(new ByteArrayInputStream(payload));
+            assertTrue(days > 0);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[]{elapsed, Debug.getThreadAllocCount(), Debug.getThreadAllocSize()};
+    }
+
+    private int parseStreaming(InputStream in) throws Throwable {
+        SunshineSyncAdapter.ForecastCollector collector =
+                new SunshineSyncAdapter.ForecastCollector(14);
+        new ForecastParser().parse(in, collector);
+        // Ends with the same array of ContentValues the old way builds, location id and all.
+        ContentValues[] cvArray = new ContentValues[collector.size()];
+        for (int i = 0; i < cvArray.length; i++) {
+            ContentValues weatherValues = collector.get(i);
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, 1L);
+            cvArray[i] = weatherValues;
+        }
+        return cvArray.length;
+    }
+
+    private int parseTheOldWay(InputStream in) throws Throwable {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        reader.close();
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONArray weatherArray = forecastJson.getJSONArray(ForecastParser.OWM_LIST);
+        JSONObject cityJson = forecastJson.getJSONObject(ForecastParser.OWM_CITY);
+        cityJson.getString(ForecastParser.OWM_CITY_NAME);
+        JSONObject cityCoord = cityJson.getJSONObject(ForecastParser.OWM_COORD);
+        cityCoord.getDouble(ForecastParser.OWM_LATITUDE);
+        cityCoord.getDouble(ForecastParser.OWM_LONGITUDE);
+
+        Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(ForecastParser.OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject =
+                    dayForecast.getJSONObject(ForecastParser.OWM_TEMPERATURE);
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, 1L);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, (long) i);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY,
+                    dayForecast.getInt(ForecastParser.OWM_HUMIDITY));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE,
+                    dayForecast.getDouble(ForecastParser.OWM_PRESSURE));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED,
+                    dayForecast.getDouble(ForecastParser.OWM_WINDSPEED));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES,
+                    dayForecast.getDouble(ForecastParser.OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP,
+                    temperatureObject.getDouble(ForecastParser.OWM_MAX));
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP,
+                    temperatureObject.getDouble(ForecastParser.OWM_MIN));
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC,
+                    weatherObject.getString(ForecastParser.OWM_DESCRIPTION));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID,
+                    weatherObject.getInt(ForecastParser.OWM_WEATHER_ID));
+            cVVector.add(weatherValues);
+        }
+        ContentValues[] cvArray = new ContentValues[cVVector.size()];
+        cVVector.toArray(cvArray);
+        return cvArray.length;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestHttpWeatherSource extends AndroidTestCase {
+
+    static final String TEST_LOCATION = "94043";
+
+    private FakeWeatherServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeWeatherServer();
+        mServer.setForecast(ForecastPayloads.RECORDED_14_DAY, "\"v1\"");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ValidatorCache(mContext).clear();
+        super.tearDown();
+    }
+
+    public void testConditionalGet() throws Throwable {
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl());
+
+        TestForecastParser.RecordingListener listener = new TestForecastParser.RecordingListener();
+        WeatherSource.Result result =
+                source.fetchForecast(TEST_LOCATION, 14, null, null, listener);
+
+        assertEquals(WeatherSource.STATUS_OK, result.status);
+        assertEquals(ForecastPayloads.RECORDED_DAYS, result.days);
+        assertEquals(ForecastPayloads.RECORDED_DAYS, listener.days.size());
+        assertEquals("Error: the ETag was not picked up from the response", "\"v1\"", result.eTag);
+        assertNull("Error: a first request should not be conditional",
+                mServer.getLastIfNoneMatch());
+
+        // Same forecast upstream, so asking again with the ETag should come back empty.
+        listener = new TestForecastParser.RecordingListener();
+        result = source.fetchForecast(TEST_LOCATION, 14, "\"v1\"", null, listener);
+
+        assertEquals("Error: an unchanged forecast was downloaded again",
+                WeatherSource.STATUS_NOT_MODIFIED, result.status);
+        assertEquals("\"v1\"", mServer.getLastIfNoneMatch());
+        assertEquals("Error: nothing should be parsed on a 304", 0, listener.days.size());
+        assertEquals(0, result.bytesOnWire);
+
+        // Once the forecast changes we should get the new one, with its new ETag.
+        mServer.setForecast(ForecastPayloads.synthetic("Mountain View", 14, false), "\"v2\"");
+        listener = new TestForecastParser.RecordingListener();
+        result = source.fetchForecast(TEST_LOCATION, 14, "\"v1\"", null, listener);
+
+        assertEquals(WeatherSource.STATUS_OK, result.status);
+        assertEquals("\"v2\"", result.eTag);
+        assertEquals(14, listener.days.size());
+        assertEquals(1, mServer.getNotModifiedCount());
+    }
+
+    public void testByteCounts() throws Throwable {
+        HttpWeatherSource source = new HttpWeatherSource(mServer.getBaseUrl());
+        int decodedLength = ForecastPayloads.RECORDED_14_DAY.getBytes("UTF-8").length;
+
+        WeatherSource.Result result = source.fetchForecast(TEST_LOCATION, 14, null, null,
+                new TestForecastParser.RecordingListener());
+        assertTrue("Error: a gzipped response should be smaller on the wire than decoded",
+                result.bytesOnWire < result.bytesDecoded);
+        assertTrue(result.bytesOnWire > 0);
+        assertEquals(decodedLength, result.bytesDecoded);
+
+        mServer.setGzip(false);
+        result = source.fetchForecast(TEST_LOCATION, 14, null, null,
+                new TestForecastParser.RecordingListener());
+        assertEquals(decodedLength, result.bytesOnWire);
+        assertEquals(decodedLength, result.bytesDecoded);
+    }
+
+    public void testValidatorCache() {
+        ValidatorCache cache = new ValidatorCache(mContext);
+        cache.put(TEST_LOCATION, "\"v1\"", "Sat, 20 Dec 2014 00:00:00 GMT");
+
+        ValidatorCache reopened = new ValidatorCache(mContext);
+        assertEquals("\"v1\"", reopened.getETag(TEST_LOCATION));
+        assertEquals("Sat, 20 Dec 2014 00:00:00 GMT", reopened.getLastModified(TEST_LOCATION));
+        assertNull("Error: validators leaked between locations", reopened.getETag("99705"));
+
+        reopened.remove(TEST_LOCATION);
+        assertNull(cache.getETag(TEST_LOCATION));
+        assertNull(cache.getLastModified(TEST_LOCATION));
+    }
+}
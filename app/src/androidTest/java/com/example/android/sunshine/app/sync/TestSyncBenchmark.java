@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.SyncStatsLog;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Runs the whole sync (fetch, parse, bulkInsert, old-data delete and notify) against
+    FakeWeatherServer, so it needs no network and no API key.
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncBenchmark.class.getSimpleName();
+
+    static final String BENCHMARK_LOCATION_PREFIX = "Benchmark City ";
+
+    private FakeWeatherServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        new ValidatorCache(mContext).clear();
+        new SyncFailurePolicy(mContext).clear();
+        mServer = new FakeWeatherServer();
+        mServer.setSyntheticForecasts(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ValidatorCache(mContext).clear();
+        new SyncFailurePolicy(mContext).clear();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /**
+     * Stores the given number of locations, as if the user had looked at each of them.
+     */
+    private void insertLocations(int count) {
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(LocationEntry.COLUMN_LOCATION_SETTING, BENCHMARK_LOCATION_PREFIX + i);
+            values.put(LocationEntry.COLUMN_CITY_NAME, BENCHMARK_LOCATION_PREFIX + i);
+            values.put(LocationEntry.COLUMN_COORD_LAT, ForecastPayloads.RECORDED_CITY_LAT);
+            values.put(LocationEntry.COLUMN_COORD_LONG, ForecastPayloads.RECORDED_CITY_LON);
+            mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        }
+    }
+
+    private SyncResult sync(boolean allLocations, int maxConcurrency) {
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false,
+                new HttpWeatherSource(mServer.getBaseUrl()));
+        Bundle extras = new Bundle();
+        // Refresh every location, whether or not the scheduler thinks it is due.
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        extras.putBoolean(SunshineSyncAdapter.SYNC_EXTRAS_ALL_LOCATIONS, allLocations);
+        extras.putInt(SunshineSyncAdapter.SYNC_EXTRAS_MAX_CONCURRENCY, maxConcurrency);
+        SyncResult syncResult = new SyncResult();
+        adapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                null, syncResult);
+        return syncResult;
+    }
+
+    private int countForecastDays(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(locationSetting,
+                        System.currentTimeMillis()),
+                new String[]{WeatherEntry.COLUMN_DATE},
+                null,
+                null,
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testSyncPreferredLocation() {
+        SyncResult syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+
+        assertEquals("Error: the preferred location was not synced",
+                SunshineSyncAdapter.NUM_DAYS,
+                countForecastDays(Utility.getPreferredLocation(mContext)));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, syncResult.stats.numEntries);
+    }
+
+    public void testSyncRecordsStats() {
+        new SyncStatsLog(mContext).clear();
+        SyncResult syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+
+        Cursor cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                new String[]{SyncStatsEntry.COLUMN_STATUS, SyncStatsEntry.COLUMN_LOCATIONS,
+                        SyncStatsEntry.COLUMN_BYTES_ON_WIRE, SyncStatsEntry.COLUMN_ROWS_WRITTEN},
+                null, null, null);
+        assertTrue("Error: the sync was not recorded", cursor.moveToFirst());
+        assertEquals(SyncStatsEntry.STATUS_UPDATED, cursor.getInt(0));
+        assertEquals(1, cursor.getInt(1));
+        assertTrue(cursor.getLong(2) > 0);
+        assertEquals(syncResult.stats.numUpdates, cursor.getLong(3));
+        cursor.close();
+    }
+
+    // Downloading the same forecast again stores it, but changes nothing, so the sync is not
+    // an update and nobody is told about new weather.
+    public void testUnchangedForecastIsNotAnUpdate() {
+        sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+        // Forget the validators, so the server sends the whole forecast again.
+        new ValidatorCache(mContext).clear();
+        new SyncStatsLog(mContext).clear();
+        SyncResult syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, syncResult.stats.numUpdates);
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, syncResult.stats.numSkippedEntries);
+        Cursor cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                new String[]{SyncStatsEntry.COLUMN_STATUS, SyncStatsEntry.COLUMN_ROWS_WRITTEN},
+                null, null, null);
+        assertTrue("Error: the sync was not recorded", cursor.moveToFirst());
+        assertEquals(SyncStatsEntry.STATUS_UNCHANGED, cursor.getInt(0));
+        assertEquals(0, cursor.getLong(1));
+        cursor.close();
+    }
+
+    public void testSyncAllLocations() {
+        final int locations = 8;
+        final int maxConcurrency = 3;
+        insertLocations(locations);
+        mServer.setLatencyMillis(100);
+
+        sync(true, maxConcurrency);
+
+        for (int i = 0; i < locations; i++) {
+            assertEquals("Error: location " + i + " was not synced",
+                    SunshineSyncAdapter.NUM_DAYS,
+                    countForecastDays(BENCHMARK_LOCATION_PREFIX + i));
+        }
+        assertTrue("Error: more downloads ran at once than the limit allows",
+                mServer.getMaxConcurrentRequests() <= maxConcurrency);
+        assertTrue("Error: the downloads did not run in parallel",
+                mServer.getMaxConcurrentRequests() > 1);
+
+        // Nothing changed upstream, so the second sync should only see 304s.
+        int requests = mServer.getRequestCount();
+        sync(true, maxConcurrency);
+        assertEquals(mServer.getRequestCount() - requests, mServer.getNotModifiedCount());
+    }
+
+    public void testFailuresDoNotStopOtherLocations() {
+        insertLocations(10);
+        mServer.setErrorRate(0.5);
+
+        sync(true, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+
+        int synced = 0;
+        for (int i = 0; i < 10; i++) {
+            if (countForecastDays(BENCHMARK_LOCATION_PREFIX + i) > 0) {
+                synced++;
+            }
+        }
+        assertTrue(mServer.getErrorCount() > 0);
+        assertEquals("Error: a failed location stopped the others from being stored",
+                mServer.getRequestCount() - mServer.getErrorCount(),
+                synced + (countForecastDays(Utility.getPreferredLocation(mContext)) > 0 ? 1 : 0));
+    }
+
+    public void testFailedLocationBacksOff() {
+        mServer.setErrorRate(1);
+
+        SyncResult syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+        assertEquals(1, syncResult.stats.numIoExceptions);
+        assertTrue("Error: the framework was not told when to come back",
+                syncResult.delayUntil > System.currentTimeMillis() / 1000);
+
+        // Asking again straight away should not go anywhere near the server.
+        syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue(syncResult.delayUntil > 0);
+    }
+
+    public void testRefusedLocationIsHardError() {
+        mServer.setErrorRate(1);
+        mServer.setErrorStatus(404);
+
+        SyncResult syncResult = sync(false, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+        assertEquals(0, syncResult.stats.numIoExceptions);
+        assertTrue("Error: a location the server refuses should be a hard error",
+                syncResult.hasHardError());
+    }
+
+    public void testCircuitOpensDuringOutage() {
+        final int locations = 2 * SyncFailurePolicy.CIRCUIT_FAILURE_THRESHOLD;
+        insertLocations(locations);
+        mServer.setErrorRate(1);
+
+        sync(true, 1);
+        assertEquals("Error: requests kept going out after the circuit should have opened",
+                SyncFailurePolicy.CIRCUIT_FAILURE_THRESHOLD, mServer.getRequestCount());
+    }
+
+    /*
+        End to end throughput, for a range of download pool sizes.  The numbers end up in
+        logcat; there is nothing to assert, since they depend on the device, so it is a
+        @LargeTest, left out of FullTestSuite.
+     */
+    @LargeTest
+    public void testSyncBenchmark() {
+        final int locations = 24;
+        insertLocations(locations);
+        mServer.setLatencyMillis(150);
+
+        int[] concurrencies = {1, 2, 4, 8};
+        for (int maxConcurrency : concurrencies) {
+            // Make every forecast look new, so each run does the full amount of work.
+            mServer.changeSyntheticForecasts();
+            long start = System.nanoTime();
+            sync(true, maxConcurrency);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            Log.i(LOG_TAG, (locations + 1) + " locations, " + maxConcurrency +
+                    " concurrent downloads, " + mServer.getRequestCount() +
+                    " requests so far: " + elapsedMillis + "ms");
+        }
+
+        // And once more with nothing changed upstream.
+        long start = System.nanoTime();
+        sync(true, SunshineSyncAdapter.DEFAULT_MAX_CONCURRENCY);
+        Log.i(LOG_TAG, (locations + 1) + " locations, all not modified: " +
+                (System.nanoTime() - start) / 1000000 + "ms");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+public class TestSyncFailurePolicy extends AndroidTestCase {
+
+    private static final String LOCATION = "sunnydale";
+
+    private SyncFailurePolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPolicy = new SyncFailurePolicy(mContext);
+        mPolicy.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPolicy.clear();
+        super.tearDown();
+    }
+
+    public void testClassify() {
+        assertEquals(SyncFailurePolicy.FAILURE_TRANSIENT,
+                SyncFailurePolicy.classify(new IOException()));
+        assertEquals(SyncFailurePolicy.FAILURE_TRANSIENT,
+                SyncFailurePolicy.classify(new HttpStatusException(503, 0)));
+        assertEquals(SyncFailurePolicy.FAILURE_TRANSIENT,
+                SyncFailurePolicy.classify(new HttpStatusException(429, 0)));
+        assertEquals(SyncFailurePolicy.FAILURE_PERMANENT,
+                SyncFailurePolicy.classify(new HttpStatusException(404, 0)));
+        assertEquals(SyncFailurePolicy.FAILURE_PERMANENT,
+                SyncFailurePolicy.classify(new JSONException("bad")));
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        long now = System.currentTimeMillis();
+        long expected = SyncFailurePolicy.INITIAL_BACKOFF_MILLIS;
+        for (int i = 0; i < 4; i++) {
+            long delay = mPolicy.recordFailure(LOCATION, new IOException(), now) - now;
+            assertTrue("Error: backoff " + delay + " below half of " + expected,
+                    delay >= expected / 2);
+            assertTrue("Error: backoff " + delay + " above " + expected, delay <= expected);
+            assertTrue(mPolicy.isBackingOff(LOCATION, now));
+            expected *= 2;
+        }
+
+        mPolicy.recordSuccess(LOCATION);
+        assertFalse("Error: success did not reset the backoff",
+                mPolicy.isBackingOff(LOCATION, now));
+    }
+
+    public void testPermanentFailureWaitsLonger() {
+        long now = System.currentTimeMillis();
+        long delay = mPolicy.recordFailure(LOCATION, new HttpStatusException(404, 0), now) - now;
+        assertTrue(delay >= SyncFailurePolicy.INITIAL_PERMANENT_BACKOFF_MILLIS / 2);
+    }
+
+    public void testRetryAfterIsHonoured() {
+        long now = System.currentTimeMillis();
+        long delay = mPolicy.recordFailure(LOCATION, new HttpStatusException(503, 3600), now)
+                - now;
+        assertTrue(delay >= 3600 * 1000);
+    }
+
+    public void testCircuitBreaker() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SyncFailurePolicy.CIRCUIT_FAILURE_THRESHOLD; i++) {
+            assertTrue(mPolicy.allowRequest(LOCATION + i, now));
+            mPolicy.recordFailure(LOCATION + i, new IOException(), now);
+        }
+        assertFalse("Error: the circuit did not open", mPolicy.allowRequest(LOCATION, now));
+
+        // Once it has been open long enough, exactly one probe gets through, even from
+        // another instance.
+        long later = mPolicy.getCircuitOpenUntil();
+        assertTrue(mPolicy.allowRequest(LOCATION, later));
+        assertFalse(mPolicy.allowRequest(LOCATION + 1, later));
+        assertFalse(new SyncFailurePolicy(mContext).allowRequest(LOCATION + 2, later));
+
+        // The probe failing opens it again, for longer.
+        mPolicy.recordFailure(LOCATION, new IOException(), later);
+        long reopenedUntil = mPolicy.getCircuitOpenUntil();
+        assertTrue(reopenedUntil - later > later - now);
+        assertFalse(mPolicy.allowRequest(LOCATION, later));
+
+        // And the probe succeeding closes it.
+        assertTrue(mPolicy.allowRequest(LOCATION, reopenedUntil));
+        mPolicy.recordSuccess(LOCATION);
+        assertEquals(0, mPolicy.getCircuitOpenUntil());
+        assertTrue(mPolicy.allowRequest(LOCATION + 1, reopenedUntil));
+    }
+
+    // With downloads running in parallel, requests that went out before the circuit opened
+    // can come back while it is open.  Only the probe's outcome counts.
+    public void testOnlyTheProbeChangesTheCircuit() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SyncFailurePolicy.CIRCUIT_FAILURE_THRESHOLD; i++) {
+            mPolicy.recordFailure(LOCATION + i, new IOException(), now);
+        }
+        long openUntil = mPolicy.getCircuitOpenUntil();
+        assertTrue(openUntil > 0);
+
+        mPolicy.recordSuccess(LOCATION + "-late");
+        assertEquals("Error: a success from before the circuit opened closed it",
+                openUntil, mPolicy.getCircuitOpenUntil());
+        mPolicy.recordFailure(LOCATION + "-late", new HttpStatusException(404, 0), now);
+        assertEquals(openUntil, mPolicy.getCircuitOpenUntil());
+
+        assertTrue(mPolicy.allowRequest(LOCATION, openUntil));
+        mPolicy.recordSuccess(LOCATION + 1);
+        assertEquals("Error: another location closed the circuit for the probe",
+                openUntil, mPolicy.getCircuitOpenUntil());
+        mPolicy.recordFailure(LOCATION + 2, new IOException(), openUntil);
+        assertEquals("Error: another location reopened the circuit for the probe",
+                openUntil, mPolicy.getCircuitOpenUntil());
+
+        // A probe that never reports back is given up on, and another goes out.
+        assertFalse(mPolicy.allowRequest(LOCATION + 1, openUntil));
+        long timedOut = openUntil + SyncFailurePolicy.PROBE_TIMEOUT_MILLIS;
+        assertTrue(mPolicy.allowRequest(LOCATION + 1, timedOut));
+        mPolicy.recordSuccess(LOCATION);
+        assertEquals(openUntil, mPolicy.getCircuitOpenUntil());
+        mPolicy.recordSuccess(LOCATION + 1);
+        assertEquals(0, mPolicy.getCircuitOpenUntil());
+    }
+}
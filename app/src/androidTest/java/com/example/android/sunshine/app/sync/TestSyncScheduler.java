@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final String LOCATION = "sunnydale";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getSharedPreferences(SyncScheduler.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        SyncScheduler.clearStartedActivities();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncScheduler.clearStartedActivities();
+        super.tearDown();
+    }
+
+    public void testNeverSyncedIsDueAtOnce() {
+        SyncScheduler scheduler = new SyncScheduler(mContext);
+        long now = System.currentTimeMillis();
+
+        assertTrue(scheduler.isDue(LOCATION, now));
+        assertEquals("Error: a location without data should be synced as often as allowed",
+                SyncScheduler.MIN_INTERVAL, scheduler.decide(LOCATION, now).intervalSeconds);
+    }
+
+    public void testStableForecastBacksOff() {
+        SyncScheduler scheduler = new SyncScheduler(mContext);
+        for (int i = 0; i < SyncScheduler.VOLATILITY_HISTORY; i++) {
+            scheduler.recordSync(LOCATION, 0, SunshineSyncAdapter.NUM_DAYS);
+        }
+        long now = System.currentTimeMillis();
+        scheduler.recordViewed(LOCATION);
+        now += SyncScheduler.IDLE_AFTER_MILLIS / 2;
+
+        int stable = new SyncScheduler(mContext).decide(LOCATION, now).intervalSeconds;
+        assertTrue("Error: an unchanging forecast should be synced less often",
+                stable > SyncScheduler.BASE_INTERVAL);
+        assertFalse(scheduler.isDue(LOCATION, System.currentTimeMillis()));
+
+        SyncScheduler.activityStarted();
+        assertEquals("Error: the app in the foreground should get the usual interval",
+                SyncScheduler.BASE_INTERVAL, scheduler.decide(LOCATION, now).intervalSeconds);
+    }
+
+    // Going from the forecast list to the detail view starts the one before stopping the
+    // other, and the app is in the foreground for as long as any of them is showing.
+    public void testForegroundFollowsActivities() {
+        assertFalse(SyncScheduler.isForeground());
+        SyncScheduler.activityStarted();
+        SyncScheduler.activityStarted();
+        SyncScheduler.activityStopped();
+        assertTrue("Error: the app left the foreground on moving to another activity",
+                SyncScheduler.isForeground());
+        SyncScheduler.activityStopped();
+        assertFalse(SyncScheduler.isForeground());
+        SyncScheduler.activityStopped();
+        assertFalse(SyncScheduler.isForeground());
+        SyncScheduler.activityStarted();
+        assertTrue("Error: an extra stop was counted", SyncScheduler.isForeground());
+    }
+
+    public void testVolatileForecastSyncsMoreOften() {
+        SyncScheduler scheduler = new SyncScheduler(mContext);
+        for (int i = 0; i < SyncScheduler.VOLATILITY_HISTORY; i++) {
+            scheduler.recordSync(LOCATION, SunshineSyncAdapter.NUM_DAYS,
+                    SunshineSyncAdapter.NUM_DAYS);
+        }
+        scheduler.recordViewed(LOCATION);
+
+        SyncScheduler.Decision decision =
+                scheduler.decide(LOCATION, System.currentTimeMillis());
+        assertTrue("Error: a changing forecast should be synced more often",
+                decision.intervalSeconds < SyncScheduler.BASE_INTERVAL);
+        assertTrue(decision.intervalSeconds >= SyncScheduler.MIN_INTERVAL);
+        assertTrue("Error: the reason was not recorded", decision.reason.length() > 0);
+    }
+
+    public void testStaleDataIsRefreshedQuickly() {
+        SyncScheduler scheduler = new SyncScheduler(mContext);
+        scheduler.recordSync(LOCATION, 0, SunshineSyncAdapter.NUM_DAYS);
+        long later = System.currentTimeMillis() + SyncScheduler.STALE_AFTER_MILLIS;
+
+        assertTrue(scheduler.isDue(LOCATION, later));
+        assertEquals(SyncScheduler.MIN_INTERVAL, scheduler.decide(LOCATION, later).intervalSeconds);
+    }
+}
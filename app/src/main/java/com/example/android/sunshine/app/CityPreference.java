@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.preference.EditTextPreference;
+import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.AutoCompleteTextView;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.data.CityIndex;
+import com.example.android.sunshine.app.data.CityIndex.City;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The location preference.  Suggests cities from the bundled {@link CityIndex} as the
+ * location is typed, and stores a city's own location setting however it was typed, so the
+ * same city is never fetched and stored twice under two spellings.  Anything the index
+ * doesn't know, a postal code say, is stored as typed.
+ */
+public class CityPreference extends EditTextPreference {
+
+    // Suggestions start once this many characters have been typed.
+    static final int THRESHOLD = 2;
+
+    private final AutoCompleteTextView mCityText;
+
+    public CityPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        // Stands in for EditTextPreference's own EditText, with the same attributes.
+        mCityText = new AutoCompleteTextView(context, attrs);
+        mCityText.setId(android.R.id.edit);
+        mCityText.setThreshold(THRESHOLD);
+        mCityText.setAdapter(new CityAdapter(context));
+    }
+
+    @Override
+    protected void onBindDialogView(View view) {
+        super.onBindDialogView(view);
+
+        // Swap our view in where EditTextPreference put its own.
+        EditText editText = getEditText();
+        ViewGroup container = (ViewGroup) editText.getParent();
+        if (container != null) {
+            ViewParent oldParent = mCityText.getParent();
+            if (oldParent != null) {
+                ((ViewGroup) oldParent).removeView(mCityText);
+            }
+            int index = container.indexOfChild(editText);
+            container.removeView(editText);
+            container.addView(mCityText, index, editText.getLayoutParams());
+        }
+        mCityText.setText(getText());
+
+        // Compile the index, if this install hasn't yet, while the user types.
+        CityIndex.openInBackground(getContext());
+    }
+
+    @Override
+    protected void onDialogClosed(boolean positiveResult) {
+        // Not EditTextPreference's, which would read its own EditText.
+        if (positiveResult) {
+            String value = getLocationSetting(mCityText.getText().toString());
+            if (callChangeListener(value)) {
+                setText(value);
+            }
+        }
+    }
+
+    /**
+     * @return the location setting for what the user typed: the city's own, if it names one.
+     * Called on the main thread, so an index that isn't open yet is not waited for, and the
+     * text is kept as typed.
+     */
+    static String getLocationSetting(String text) {
+        CityIndex index = CityIndex.getOpenInstance();
+        City city = index != null ? index.resolve(text) : null;
+        return city != null ? city.getLocationSetting() : text.trim();
+    }
+
+    /**
+     * Completes what has been typed from the index, on the filter's own thread.
+     */
+    static class CityAdapter extends BaseAdapter implements Filterable {
+        private final Context mContext;
+        private final LayoutInflater mInflater;
+        private List<City> mCities = Collections.emptyList();
+
+        CityAdapter(Context context) {
+            mContext = context.getApplicationContext();
+            mInflater = LayoutInflater.from(context);
+        }
+
+        @Override
+        public int getCount() {
+            return mCities.size();
+        }
+
+        @Override
+        public City getItem(int position) {
+            return mCities.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return getItem(position).id;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+            if (view == null) {
+                view = (TextView) mInflater.inflate(
+                        android.R.layout.simple_dropdown_item_1line, parent, false);
+            }
+            view.setText(getItem(position).toString());
+            return view;
+        }
+
+        @Override
+        public Filter getFilter() {
+            return new Filter() {
+                @Override
+                protected FilterResults performFiltering(CharSequence constraint) {
+                    FilterResults results = new FilterResults();
+                    CityIndex index = constraint != null ? CityIndex.getInstance(mContext) : null;
+                    List<City> cities = index != null ?
+                            index.complete(constraint, CityIndex.MAX_COMPLETIONS) :
+                            Collections.<City>emptyList();
+                    results.values = cities;
+                    results.count = cities.size();
+                    return results;
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                protected void publishResults(CharSequence constraint, FilterResults results) {
+                    mCities = (List<City>) results.values;
+                    if (results.count > 0) {
+                        notifyDataSetChanged();
+                    } else {
+                        notifyDataSetInvalidated();
+                    }
+                }
+
+                @Override
+                public CharSequence convertResultToString(Object resultValue) {
+                    return resultValue.toString();
+                }
+            };
+        }
+    }
+}
@@ -21,6 +21,8 @@ import android.support.v7.app.ActionBarActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.example.android.sunshine.app.sync.SyncScheduler;
+
 public class DetailActivity extends ActionBarActivity {
 
     @Override
@@ -44,6 +46,18 @@ public class DetailActivity extends ActionBarActivity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        SyncScheduler.activityStarted();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        SyncScheduler.activityStopped();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
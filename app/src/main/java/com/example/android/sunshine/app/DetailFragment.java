@@ -36,6 +36,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 /**
  * A placeholder fragment containing a simple view.
@@ -165,6 +166,10 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         if ( null != mUri ) {
+            // Looking at a location makes the scheduler keep it fresh.
+            new SyncScheduler(getActivity()).recordViewed(
+                    WeatherEntry.getLocationSettingFromUri(mUri));
+
             // Sort order:  Ascending, by date.
             String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
@@ -16,7 +16,11 @@
 package com.example.android.sunshine.app;
 
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
@@ -30,6 +34,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 
@@ -38,6 +43,8 @@ import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.ArrayList;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.widget.ListView} layout.
  */
@@ -51,7 +58,20 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
 
     private static final String SELECTED_KEY = "selected_position";
 
+    // The forecast is read a page at a time, each page by a loader of its own with the id
+    // FORECAST_LOADER + its index, and shown as one list.  The first paint only waits for
+    // the first page; each page after it is asked for as the list scrolls near the end of
+    // what it has, and starts after the last date of the page before.
     private static final int FORECAST_LOADER = 0;
+    static final int PAGE_SIZE = 10;
+    private static final String ARG_PAGE_URI = "page_uri";
+
+    // The pages asked for, null until loaded, and the date each last ended with.
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+    private final ArrayList<Long> mLastDates = new ArrayList<Long>();
+    // What the adapter shows when more than one page is loaded.  Ours to close, unlike the
+    // pages in it, which belong to their loaders.
+    private MergeCursor mMergedPages;
 
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
@@ -163,6 +183,21 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
             }
         });
 
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0 &&
+                        firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
         // If there's instance state, mine it for useful information.
         // The end-goal here is that the user never knows that turning their device sideways
         // does crazy lifecycle related things.  It should feel like some stuff stretched out,
@@ -181,15 +216,149 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
-        getLoaderManager().initLoader(FORECAST_LOADER, null, this);
+        // Loaders outlive a configuration change, so pick up every page that was loaded.
+        int pages = 1;
+        while (getLoaderManager().getLoader(FORECAST_LOADER + pages) != null) {
+            pages++;
+        }
+        for (int page = 0; page < pages; page++) {
+            mPages.add(null);
+            mLastDates.add(-1L);
+            getLoaderManager().initLoader(FORECAST_LOADER + page, null, this);
+        }
         super.onActivityCreated(savedInstanceState);
     }
 
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged( ) {
+        dropPagesAfter(0);
+        mLastDates.set(0, -1L);
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
 
+    /**
+     * Asks for the page after the last one, unless that is still loading or was short,
+     * which means there is nothing after it.
+     */
+    private void loadNextPage() {
+        int pages = mPages.size();
+        Cursor last = pages > 0 ? mPages.get(pages - 1) : null;
+        if (last == null || last.getCount() < PAGE_SIZE) {
+            return;
+        }
+        CursorLoader lastLoader = (CursorLoader) getLoaderManager().<Cursor>getLoader(
+                FORECAST_LOADER + pages - 1);
+        Bundle args = new Bundle();
+        args.putParcelable(ARG_PAGE_URI, WeatherEntry.buildNextPageUri(lastLoader.getUri(),
+                mLastDates.get(pages - 1)));
+        mPages.add(null);
+        mLastDates.add(-1L);
+        getLoaderManager().initLoader(FORECAST_LOADER + pages, args, this);
+    }
+
+    /**
+     * Forgets the pages after the given one.  They are asked for again as the list scrolls.
+     */
+    private void dropPagesAfter(int page) {
+        int pages = mPages.size();
+        if (pages <= page + 1) {
+            return;
+        }
+        while (mPages.size() > page + 1) {
+            mPages.remove(mPages.size() - 1);
+            mLastDates.remove(mLastDates.size() - 1);
+        }
+        // Off the adapter before their loaders close them.
+        showPages();
+        for (int i = page + 1; i < pages; i++) {
+            getLoaderManager().destroyLoader(FORECAST_LOADER + i);
+        }
+    }
+
+    /**
+     * Shows the pages that are loaded, up to the first one that isn't.
+     */
+    private void showPages() {
+        ArrayList<Cursor> loaded = new ArrayList<Cursor>(mPages.size());
+        for (Cursor page : mPages) {
+            if (page == null) {
+                break;
+            }
+            loaded.add(page);
+        }
+        MergeCursor previous = mMergedPages;
+        mMergedPages = null;
+        if (loaded.isEmpty()) {
+            mForecastAdapter.swapCursor(null);
+        } else if (loaded.size() == 1) {
+            mForecastAdapter.swapCursor(loaded.get(0));
+        } else {
+            Cursor[] pages = new Cursor[loaded.size()];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = new PageCursor(loaded.get(i));
+            }
+            mMergedPages = new MergeCursor(pages);
+            mForecastAdapter.swapCursor(mMergedPages);
+        }
+        if (previous != null) {
+            // Off the adapter now, so it can let go of the pages.
+            previous.close();
+        }
+    }
+
+    /**
+     * A page as a MergeCursor sees it.  Closing it takes back the observers the MergeCursor
+     * put on the page, and leaves the page itself open for its loader.
+     */
+    private static class PageCursor extends CursorWrapper {
+        private final Cursor mPage;
+        private final ArrayList<DataSetObserver> mDataSetObservers =
+                new ArrayList<DataSetObserver>();
+        private final ArrayList<ContentObserver> mContentObservers =
+                new ArrayList<ContentObserver>();
+
+        PageCursor(Cursor page) {
+            super(page);
+            mPage = page;
+        }
+
+        @Override
+        public void registerDataSetObserver(DataSetObserver observer) {
+            super.registerDataSetObserver(observer);
+            mDataSetObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterDataSetObserver(DataSetObserver observer) {
+            super.unregisterDataSetObserver(observer);
+            mDataSetObservers.remove(observer);
+        }
+
+        @Override
+        public void registerContentObserver(ContentObserver observer) {
+            super.registerContentObserver(observer);
+            mContentObservers.add(observer);
+        }
+
+        @Override
+        public void unregisterContentObserver(ContentObserver observer) {
+            super.unregisterContentObserver(observer);
+            mContentObservers.remove(observer);
+        }
+
+        @Override
+        public void close() {
+            for (DataSetObserver observer : mDataSetObservers) {
+                mPage.unregisterDataSetObserver(observer);
+            }
+            mDataSetObservers.clear();
+            for (ContentObserver observer : mContentObservers) {
+                mPage.unregisterContentObserver(observer);
+            }
+            mContentObservers.clear();
+        }
+    }
+
     private void updateWeather() {
         SunshineSyncAdapter.syncImmediately(getActivity());
     }
@@ -232,8 +401,9 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // This is called when a new Loader needs to be created.  This
-        // fragment only uses one loader, so we don't care about checking the id.
+        // This is called when a new Loader needs to be created.  Every loader of this
+        // fragment reads a page of the forecast; the first is built here, the ones after
+        // it by loadNextPage.
 
         // To only show current and future dates, filter the query to return weather only for
         // dates after or including today.
@@ -241,9 +411,14 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
         // Sort order:  Ascending, by date.
         String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
 
-        String location = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
+        Uri weatherForLocationUri;
+        if (id == FORECAST_LOADER) {
+            String location = Utility.getPreferredLocation(getActivity());
+            weatherForLocationUri = WeatherEntry.buildWeatherLocationPage(
+                    location, System.currentTimeMillis(), PAGE_SIZE);
+        } else {
+            weatherForLocationUri = args.getParcelable(ARG_PAGE_URI);
+        }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
@@ -259,8 +434,42 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page >= mPages.size()) {
+            // A page that was dropped while it loaded.
+            return;
+        }
+        mPages.set(page, data);
+        long lastDate = data.moveToLast() ? data.getLong(COL_WEATHER_DATE) : -1;
+        long previousLastDate = mLastDates.get(page);
+        mLastDates.set(page, lastDate);
+        if (previousLastDate != -1 && previousLastDate != lastDate) {
+            // The page ends somewhere else now, so the ones after it no longer follow on.
+            dropPagesAfter(page);
+        }
+        showPages();
         if (mPosition != ListView.INVALID_POSITION) {
+            restorePosition(page);
+        }
+    }
+
+    /**
+     * Scrolls back to the position we had, once the page it is on is showing, and asks for
+     * the pages up to it if it isn't yet.
+     */
+    private void restorePosition(int page) {
+        int rowsBefore = 0;
+        for (int i = 0; i < page; i++) {
+            Cursor before = mPages.get(i);
+            if (before == null) {
+                // Not showing until the pages before it are.
+                return;
+            }
+            rowsBefore += before.getCount();
+        }
+        if (mPosition >= mForecastAdapter.getCount()) {
+            loadNextPage();
+        } else if (page == 0 || mPosition >= rowsBefore) {
             // If we don't need to restart the loader, and there's a desired position to restore
             // to, do so now.
             mListView.smoothScrollToPosition(mPosition);
@@ -269,7 +478,12 @@ public class ForecastFragment extends Fragment implements LoaderCallbacks<Cursor
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mForecastAdapter.swapCursor(null);
+        int page = loader.getId() - FORECAST_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+        }
+        // Lets go of the merged pages too, if this one was in them.
+        showPages();
     }
 
     public void setUseTodayLayout(boolean useTodayLayout) {
@@ -23,6 +23,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 
 public class MainActivity extends ActionBarActivity implements ForecastFragment.Callback {
@@ -80,6 +81,19 @@ public class MainActivity extends ActionBarActivity implements ForecastFragment.
             }
             mLocation = location;
         }
+        new SyncScheduler(this).recordViewed(location);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        SyncScheduler.activityStarted();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        SyncScheduler.activityStopped();
     }
 
     @Override
@@ -26,6 +26,7 @@ import android.preference.PreferenceManager;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 
 /**
  * A {@link PreferenceActivity} that presents a set of application settings.
@@ -54,6 +55,18 @@ public class SettingsActivity extends PreferenceActivity
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        SyncScheduler.activityStarted();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        SyncScheduler.activityStopped();
+    }
+
     /**
      * Attaches a listener so the summary is always updated with the preference value.
      * Also fires the listener once, to initialize the summary (so it shows up before the value
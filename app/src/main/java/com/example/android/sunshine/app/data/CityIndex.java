@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The cities bundled with the app, searchable by the start of their name without the
+ * database or the network.  Settings uses it to suggest cities as the location is typed, and
+ * to turn what was typed into one location setting per city, so "london", "London " and
+ * "London, gb" are one location, fetched once, rather than three.
+ *
+ * The list ships as assets/cities.tsv, most populous city first.  The first time it is
+ * needed after an install or an update, {@link CityIndexWriter} compiles it into a trie in
+ * the app's files, which is then memory-mapped: opening it reads nothing but the header, and
+ * a lookup only touches the nodes on its path.  Every node keeps the best ranked cities below
+ * it, so completing a prefix never walks the rest of the trie.
+ *
+ * The file starts with a header (magic, format version, city count, root node), followed by
+ * one fixed-size record per city, in rank order, then the city names in UTF-8, then the
+ * nodes.  A node is its number of cities named exactly its key, of best ranked cities below
+ * it and of children, those cities' ranks, and then each child's character and offset, in
+ * character order.  Everything is big-endian, and offsets are from the start of the file.
+ *
+ * Safe to use from several threads at once, since nothing writes the index once it is mapped.
+ */
+public class CityIndex {
+    static final String LOG_TAG = CityIndex.class.getSimpleName();
+
+    static final String ASSET_NAME = "cities.tsv";
+    static final String FILE_PREFIX = "cities-";
+    static final String FILE_SUFFIX = ".idx";
+
+    static final int MAGIC = 0x43494458; // "CIDX"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    // id, latitude, longitude, name offset, name length and the two letters of the country.
+    static final int CITY_SIZE = 20;
+    // The count of cities, of best ranked cities and of children.
+    static final int NODE_HEADER_SIZE = 4;
+    static final int CHILD_SIZE = 6;
+    // Coordinates are stored in millionths of a degree.
+    static final double COORDINATE_SCALE = 1e6;
+
+    // The most cities one node names exactly, and the most best ranked cities it keeps, so
+    // the most one completion can return.
+    static final int MAX_EXACT = 255;
+    public static final int MAX_COMPLETIONS = 8;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Written under the class lock, read without it by getOpenInstance.
+    private static volatile CityIndex sInstance;
+    private static boolean sOpening;
+
+    public static class City {
+        public final int id;
+        public final String name;
+        // The ISO 3166 code of the city's country, in capitals.
+        public final String country;
+        public final double latitude;
+        public final double longitude;
+
+        City(int id, String name, String country, double latitude, double longitude) {
+            this.id = id;
+            this.name = name;
+            this.country = country;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        /**
+         * @return the location setting for this city, the same however it was typed.
+         */
+        public String getLocationSetting() {
+            return name + "," + country;
+        }
+
+        @Override
+        public String toString() {
+            return name + ", " + country;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCityCount;
+    private final int mRoot;
+
+    CityIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a city index");
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unknown city index version " + buffer.getInt(4));
+        }
+        mBuffer = buffer;
+        mCityCount = buffer.getInt(8);
+        mRoot = buffer.getInt(12);
+    }
+
+    /**
+     * @return the bundled index, or null if it can't be read.  The first call after an
+     * install or an update compiles it, which takes a moment, so make that call off the main
+     * thread.
+     */
+    public static synchronized CityIndex getInstance(Context context) {
+        if (sInstance == null) {
+            try {
+                sInstance = open(context.getApplicationContext());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error opening the city index", e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the index if it is already open, or null.  Never waits for a compile, so it
+     * is safe on the main thread.
+     */
+    public static CityIndex getOpenInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Opens the index on a thread of its own, unless it is open or being opened already.
+     */
+    public static void openInBackground(Context context) {
+        synchronized (CityIndex.class) {
+            if (sInstance != null || sOpening) {
+                return;
+            }
+            sOpening = true;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getInstance(appContext);
+                } finally {
+                    synchronized (CityIndex.class) {
+                        sOpening = false;
+                    }
+                }
+            }
+        }, LOG_TAG).start();
+    }
+
+    private static CityIndex open(Context context) throws IOException {
+        // Named for the install, so an update that brings a new list compiles it afresh.
+        long installTime;
+        try {
+            installTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Can't find our own package");
+        }
+        File file = new File(context.getFilesDir(), FILE_PREFIX + installTime + FILE_SUFFIX);
+        if (!file.exists()) {
+            compile(context, file);
+        }
+        return map(file);
+    }
+
+    private static void compile(Context context, File file) throws IOException {
+        long start = System.nanoTime();
+        CityIndexWriter writer = new CityIndexWriter();
+        InputStream in = context.getAssets().open(ASSET_NAME);
+        try {
+            writer.addAll(in);
+        } finally {
+            in.close();
+        }
+
+        // Written aside and renamed, so a compile that dies halfway isn't mapped next time.
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            writer.write(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Couldn't rename " + temp + " to " + file);
+        }
+
+        // Indexes of earlier installs are no use any more.
+        File[] files = file.getParentFile().listFiles();
+        if (files != null) {
+            for (File old : files) {
+                if (old.getName().startsWith(FILE_PREFIX) && !old.equals(file)) {
+                    old.delete();
+                }
+            }
+        }
+        Log.d(LOG_TAG, "Compiled " + writer.size() + " cities in " +
+                (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    static CityIndex map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid once the file is closed.
+            return new CityIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public int size() {
+        return mCityCount;
+    }
+
+    /**
+     * @param rank the city's place in the list, 0 for the most populous.
+     */
+    public City getCity(int rank) {
+        int record = HEADER_SIZE + rank * CITY_SIZE;
+        int nameOffset = mBuffer.getInt(record + 12);
+        byte[] name = new byte[mBuffer.getShort(record + 16) & 0xffff];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = mBuffer.get(nameOffset + i);
+        }
+        String country = new String(new char[]{
+                (char) mBuffer.get(record + 18), (char) mBuffer.get(record + 19)});
+        return new City(mBuffer.getInt(record), new String(name, UTF_8), country,
+                mBuffer.getInt(record + 4) / COORDINATE_SCALE,
+                mBuffer.getInt(record + 8) / COORDINATE_SCALE);
+    }
+
+    /**
+     * Suggests cities for what has been typed so far: the start of a name, in any case and
+     * with or without accents, optionally followed by a comma and the start of a country
+     * code.
+     *
+     * @return up to limit cities, most populous first.
+     */
+    public List<City> complete(CharSequence text, int limit) {
+        ArrayList<City> cities = new ArrayList<City>();
+        String[] parsed = parse(text);
+        int node = findNode(parsed[0]);
+        if (node == -1) {
+            return cities;
+        }
+        int exact = mBuffer.get(node) & 0xff;
+        int best = mBuffer.get(node + 1) & 0xff;
+        int ranks = node + NODE_HEADER_SIZE + 4 * exact;
+        for (int i = 0; i < best && cities.size() < limit; i++) {
+            City city = getCity(mBuffer.getInt(ranks + 4 * i));
+            if (parsed[1] == null || city.country.startsWith(parsed[1])) {
+                cities.add(city);
+            }
+        }
+        return cities;
+    }
+
+    /**
+     * Finds the city that was meant by what the user typed: its whole name, in any case and
+     * with or without accents, optionally followed by a comma and its country code.  Where
+     * cities share a name, the most populous is meant.
+     *
+     * @return the city, or null if there is no city of that name in the list.
+     */
+    public City resolve(CharSequence text) {
+        String[] parsed = parse(text);
+        int node = findNode(parsed[0]);
+        if (node == -1) {
+            return null;
+        }
+        int exact = mBuffer.get(node) & 0xff;
+        for (int i = 0; i < exact; i++) {
+            City city = getCity(mBuffer.getInt(node + NODE_HEADER_SIZE + 4 * i));
+            if (parsed[1] == null || city.country.equals(parsed[1])) {
+                return city;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the node for the key, or -1 if no city's name starts with it.
+     */
+    private int findNode(String key) {
+        if (key.length() == 0) {
+            return -1;
+        }
+        int node = mRoot;
+        for (int i = 0; i < key.length() && node != -1; i++) {
+            node = findChild(node, key.charAt(i));
+        }
+        return node;
+    }
+
+    private int findChild(int node, char c) {
+        int children = node + NODE_HEADER_SIZE +
+                4 * ((mBuffer.get(node) & 0xff) + (mBuffer.get(node + 1) & 0xff));
+        int low = 0;
+        int high = (mBuffer.getShort(node + 2) & 0xffff) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int child = children + middle * CHILD_SIZE;
+            char found = mBuffer.getChar(child);
+            if (found < c) {
+                low = middle + 1;
+            } else if (found > c) {
+                high = middle - 1;
+            } else {
+                return mBuffer.getInt(child + 2);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits what was typed into the key of the name and the country code after the last
+     * comma, in capitals, or null if there is no comma.
+     */
+    private static String[] parse(CharSequence text) {
+        String name = text.toString();
+        String country = null;
+        int comma = name.lastIndexOf(',');
+        if (comma != -1) {
+            country = name.substring(comma + 1).trim().toUpperCase(Locale.US);
+            name = name.substring(0, comma);
+        }
+        return new String[]{normalize(name), country};
+    }
+
+    /**
+     * @return the name in lower case, without accents, and with anything but letters and
+     * digits turned into a single space between words, so "S&atilde;o  Paulo" and "sao paulo"
+     * have the same key, as do "St. Louis" and "st louis".
+     */
+    static String normalize(CharSequence name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (space && key.length() > 0) {
+                    key.append(' ');
+                }
+                space = false;
+                key.append(Character.toLowerCase(c));
+            } else {
+                space = true;
+            }
+        }
+        return key.toString();
+    }
+}
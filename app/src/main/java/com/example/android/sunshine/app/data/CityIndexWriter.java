@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles a list of cities into the file {@link CityIndex} maps.  Cities are ranked in the
+ * order they are added, so add the most populous first.
+ */
+class CityIndexWriter {
+
+    private static class Entry {
+        final int id;
+        final byte[] name;
+        final String country;
+        final int latitude;
+        final int longitude;
+
+        Entry(int id, String name, String country, double latitude, double longitude) {
+            this.id = id;
+            this.name = name.getBytes(CityIndex.UTF_8);
+            this.country = country;
+            this.latitude = (int) Math.round(latitude * CityIndex.COORDINATE_SCALE);
+            this.longitude = (int) Math.round(longitude * CityIndex.COORDINATE_SCALE);
+        }
+    }
+
+    private static class Node {
+        final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+        // Ranks of the cities named exactly this node's key.
+        final ArrayList<Integer> exact = new ArrayList<Integer>();
+        // Ranks of the best ranked cities at or below this node, worked out as it is written.
+        final ArrayList<Integer> best = new ArrayList<Integer>();
+    }
+
+    private final ArrayList<Entry> mCities = new ArrayList<Entry>();
+    private final Node mRoot = new Node();
+
+    int size() {
+        return mCities.size();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name has no letters or digits, or the country
+     * isn't a two letter code.
+     */
+    void add(int id, String name, String country, double latitude, double longitude) {
+        String key = CityIndex.normalize(name);
+        if (key.length() == 0) {
+            throw new IllegalArgumentException("No city name in \"" + name + "\"");
+        }
+        if (country.length() != 2 || !country.equals(country.toUpperCase(Locale.US))) {
+            throw new IllegalArgumentException("Not a country code: " + country);
+        }
+        int rank = mCities.size();
+        mCities.add(new Entry(id, name, country, latitude, longitude));
+
+        Node node = mRoot;
+        for (int i = 0; i < key.length(); i++) {
+            Node child = node.children.get(key.charAt(i));
+            if (child == null) {
+                child = new Node();
+                node.children.put(key.charAt(i), child);
+            }
+            node = child;
+        }
+        // Past that, a name is so common that the later ones can only be asked for by country.
+        if (node.exact.size() < CityIndex.MAX_EXACT) {
+            node.exact.add(rank);
+        }
+    }
+
+    /**
+     * Adds the cities of a list in the bundled format: one city per line, with its id, name,
+     * country code, latitude and longitude separated by tabs.  Blank lines and lines starting
+     * with # are skipped.
+     */
+    void addAll(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CityIndex.UTF_8));
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length != 5) {
+                throw new IOException("Line " + lineNumber + " of the city list has " +
+                        fields.length + " fields");
+            }
+            try {
+                add(Integer.parseInt(fields[0]), fields[1], fields[2],
+                        Double.parseDouble(fields[3]), Double.parseDouble(fields[4]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + " of the city list: " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    void write(OutputStream out) throws IOException {
+        // The names follow the cities, and the nodes follow the names.
+        int namesStart = CityIndex.HEADER_SIZE + mCities.size() * CityIndex.CITY_SIZE;
+        int nodesStart = namesStart;
+        for (Entry city : mCities) {
+            nodesStart += city.name.length;
+        }
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        int root = writeNode(mRoot, new DataOutputStream(nodes), nodesStart);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(CityIndex.MAGIC);
+        data.writeInt(CityIndex.FORMAT_VERSION);
+        data.writeInt(mCities.size());
+        data.writeInt(root);
+        int nameOffset = namesStart;
+        for (Entry city : mCities) {
+            data.writeInt(city.id);
+            data.writeInt(city.latitude);
+            data.writeInt(city.longitude);
+            data.writeInt(nameOffset);
+            data.writeShort(city.name.length);
+            data.writeByte(city.country.charAt(0));
+            data.writeByte(city.country.charAt(1));
+            nameOffset += city.name.length;
+        }
+        for (Entry city : mCities) {
+            data.write(city.name);
+        }
+        nodes.writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * Writes the node's children and then the node, which needs to know where they are and
+     * which cities are best below them.
+     *
+     * @param base where in the file the nodes start.
+     * @return where in the file the node starts.
+     */
+    private int writeNode(Node node, DataOutputStream out, int base) throws IOException {
+        int[] childOffsets = new int[node.children.size()];
+        int i = 0;
+        node.best.clear();
+        for (Node child : node.children.values()) {
+            childOffsets[i++] = writeNode(child, out, base);
+            node.best.addAll(child.best);
+        }
+        node.best.addAll(node.exact);
+        Collections.sort(node.best);
+        while (node.best.size() > CityIndex.MAX_COMPLETIONS) {
+            node.best.remove(node.best.size() - 1);
+        }
+
+        int offset = base + out.size();
+        out.writeByte(node.exact.size());
+        out.writeByte(node.best.size());
+        out.writeShort(node.children.size());
+        for (int rank : node.exact) {
+            out.writeInt(rank);
+        }
+        for (int rank : node.best) {
+            out.writeInt(rank);
+        }
+        i = 0;
+        for (Map.Entry<Character, Node> child : node.children.entrySet()) {
+            out.writeChar(child.getKey());
+            out.writeInt(childOffsets[i++]);
+        }
+        return offset;
+    }
+}
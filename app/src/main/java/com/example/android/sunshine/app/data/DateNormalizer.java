@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Gives the same answer as {@link WeatherContract#normalizeDate(long)} with arithmetic
+ * alone, instead of allocating and normalizing a Time for every date.  The time zone is
+ * captured when the normalizer is created, so create one per batch of rows.
+ */
+class DateNormalizer {
+    private static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+    private final TimeZone mTimeZone;
+
+    DateNormalizer() {
+        mTimeZone = TimeZone.getDefault();
+    }
+
+    /**
+     * @return local midnight at the start of the day the given time falls on.
+     */
+    long normalize(long date) {
+        // Time.getJulianDay truncates rather than flooring, so we do too.
+        long epochDay = (date + offsetAt(date)) / DAY_IN_MILLIS;
+        long utcMidnight = epochDay * DAY_IN_MILLIS;
+        // Local midnight is UTC midnight less the offset in effect at local midnight, which
+        // we can only look up by an instant, so guess the instant first.
+        long guess = utcMidnight - mTimeZone.getOffset(utcMidnight);
+        return utcMidnight - mTimeZone.getOffset(guess);
+    }
+
+    /**
+     * @return the offset in effect at the given time, floored to whole seconds the way
+     * Time.gmtoff is.
+     */
+    private long offsetAt(long date) {
+        long offset = mTimeZone.getOffset(date);
+        long remainder = offset % 1000;
+        return remainder < 0 ? offset - remainder - 1000 : offset - remainder;
+    }
+}
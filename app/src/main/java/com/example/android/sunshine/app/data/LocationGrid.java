@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A grid index over the coordinates of the locations, and the nearest-location search
+ * location/near runs on it.
+ *
+ * Every location carries the one-degree cell its coordinates fall in, numbered row by row
+ * from the south pole and kept up to date by triggers.  It is indexed, so a block of cells
+ * reads as one range of the index per row.  A search looks at a square of cells around the
+ * point, growing it until the k nearest locations it has found are closer than anything
+ * outside the square could be.  Stored locations cluster around where the user has been,
+ * so that is usually the first square or two.  The R-tree module would do the same, but
+ * it isn't in every device's SQLite.
+ */
+class LocationGrid {
+
+    static final String COLUMN_GEO_CELL = "geo_cell";
+
+    // Rows of cells from -90 to 90 degrees of latitude, the last one for the pole alone, and
+    // columns from -180 to 180 of longitude, which wrap around.
+    static final int ROWS = 181;
+    static final int COLUMNS = 360;
+
+    // Past this many columns a square reads whole rows, which is one range per search
+    // rather than two for every row.
+    static final int MAX_COLUMN_SPAN = 90;
+
+    // Latitude and longitude are never negative once offset, so CAST truncates them the
+    // way floor would, and the same way (int) does in getRow and getColumn.
+    static final String CELL_EXPRESSION = "CAST(" + LocationEntry.COLUMN_COORD_LAT +
+            " + 90 AS INTEGER) * " + COLUMNS + " + CAST(" + LocationEntry.COLUMN_COORD_LONG +
+            " + 180 AS INTEGER) % " + COLUMNS;
+
+    static final String SQL_CREATE_GEO_CELL_INDEX = "CREATE INDEX location_geo_cell ON " +
+            LocationEntry.TABLE_NAME + " (" + COLUMN_GEO_CELL + ")";
+
+    // Whatever writes a location, the cell follows its coordinates.
+    static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER location_geo_cell_insert " +
+            "AFTER INSERT ON " + LocationEntry.TABLE_NAME + " BEGIN UPDATE " +
+            LocationEntry.TABLE_NAME + " SET " + COLUMN_GEO_CELL + " = " + CELL_EXPRESSION +
+            " WHERE " + LocationEntry._ID + " = NEW." + LocationEntry._ID + "; END";
+    static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER location_geo_cell_update " +
+            "AFTER UPDATE OF " + LocationEntry.COLUMN_COORD_LAT + ", " +
+            LocationEntry.COLUMN_COORD_LONG + " ON " + LocationEntry.TABLE_NAME +
+            " BEGIN UPDATE " + LocationEntry.TABLE_NAME + " SET " + COLUMN_GEO_CELL + " = " +
+            CELL_EXPRESSION + " WHERE " + LocationEntry._ID + " = NEW." + LocationEntry._ID +
+            "; END";
+
+    // What a null projection gets.
+    static final String[] NEAR_COLUMNS = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            LocationEntry.COLUMN_DISTANCE
+    };
+
+    static final double EARTH_RADIUS_KM = 6371.0;
+
+    private static class Candidate {
+        long id;
+        double distance;
+    }
+
+    private static final Comparator<Candidate> BY_DISTANCE = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            return Double.compare(lhs.distance, rhs.distance);
+        }
+    };
+
+    private final SQLiteDatabase mDb;
+
+    LocationGrid(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * @return the k stored locations nearest the point, nearest first, with the columns
+     * asked for; COLUMN_DISTANCE among them is worked out rather than stored.
+     */
+    Cursor queryNearest(double lat, double lon, int k, String[] projection) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Asked for " + k + " nearest locations");
+        }
+        if (projection == null) {
+            projection = NEAR_COLUMNS;
+        }
+        int row = getRow(lat);
+        int column = getColumn(lon);
+        ArrayList<Candidate> candidates;
+        for (int radius = 0; ; radius = radius * 2 + 1) {
+            boolean wholeRows = 2 * radius + 1 > MAX_COLUMN_SPAN;
+            candidates = findCandidates(lat, lon, row, column, radius, wholeRows);
+            Collections.sort(candidates, BY_DISTANCE);
+            boolean wholeGrid = wholeRows && row - radius <= 0 && row + radius >= ROWS - 1;
+            if (wholeGrid || (candidates.size() >= k && candidates.get(k - 1).distance <=
+                    getSearchedDistance(lat, lon, row, column, radius, wholeRows))) {
+                break;
+            }
+        }
+
+        // Read the ones we want, with the distances we worked out written in.
+        int found = Math.min(k, candidates.size());
+        StringBuilder ids = new StringBuilder();
+        StringBuilder distance = new StringBuilder("CASE " + LocationEntry._ID);
+        for (int i = 0; i < found; i++) {
+            Candidate candidate = candidates.get(i);
+            ids.append(i > 0 ? ", " : "").append(candidate.id);
+            distance.append(" WHEN ").append(candidate.id).append(" THEN ")
+                    .append(candidate.distance);
+        }
+        distance.append(" END");
+        String distanceColumn = (found > 0 ? distance.toString() : "NULL") + " AS " +
+                LocationEntry.COLUMN_DISTANCE;
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = LocationEntry.COLUMN_DISTANCE.equals(projection[i]) ?
+                    distanceColumn : projection[i];
+        }
+        return mDb.query(LocationEntry.TABLE_NAME, columns,
+                LocationEntry._ID + " IN (" + ids + ")", null, null, null,
+                found > 0 ? distance.toString() : null);
+    }
+
+    /**
+     * @return the _id and distance of every location in the square of cells radius cells
+     * out from the given one.
+     */
+    private ArrayList<Candidate> findCandidates(double lat, double lon, int row, int column,
+                                                int radius, boolean wholeRows) {
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+        Cursor cursor = mDb.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_COORD_LAT,
+                        LocationEntry.COLUMN_COORD_LONG},
+                buildSquareSelection(row, column, radius, wholeRows), null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Candidate candidate = new Candidate();
+                candidate.id = cursor.getLong(0);
+                candidate.distance = getDistance(lat, lon, cursor.getDouble(1),
+                        cursor.getDouble(2));
+                candidates.add(candidate);
+            }
+        } finally {
+            cursor.close();
+        }
+        return candidates;
+    }
+
+    /**
+     * @return a selection of the cells in the square, as ranges of geo_cell.
+     */
+    static String buildSquareSelection(int row, int column, int radius, boolean wholeRows) {
+        int firstRow = Math.max(0, row - radius);
+        int lastRow = Math.min(ROWS - 1, row + radius);
+        if (wholeRows) {
+            return buildRange(firstRow * COLUMNS, lastRow * COLUMNS + COLUMNS - 1);
+        }
+        StringBuilder selection = new StringBuilder();
+        int firstColumn = column - radius;
+        int lastColumn = column + radius;
+        for (int r = firstRow; r <= lastRow; r++) {
+            int rowStart = r * COLUMNS;
+            if (selection.length() > 0) {
+                selection.append(" OR ");
+            }
+            if (firstColumn < 0) {
+                selection.append(buildRange(rowStart, rowStart + lastColumn)).append(" OR ")
+                        .append(buildRange(rowStart + firstColumn + COLUMNS,
+                                rowStart + COLUMNS - 1));
+            } else if (lastColumn >= COLUMNS) {
+                selection.append(buildRange(rowStart + firstColumn, rowStart + COLUMNS - 1))
+                        .append(" OR ")
+                        .append(buildRange(rowStart, rowStart + lastColumn - COLUMNS));
+            } else {
+                selection.append(buildRange(rowStart + firstColumn, rowStart + lastColumn));
+            }
+        }
+        return selection.toString();
+    }
+
+    private static String buildRange(int firstCell, int lastCell) {
+        return COLUMN_GEO_CELL + " BETWEEN " + firstCell + " AND " + lastCell;
+    }
+
+    /**
+     * @return how far from the point, at least, any location outside the square is.
+     */
+    static double getSearchedDistance(double lat, double lon, int row, int column, int radius,
+                                      boolean wholeRows) {
+        // The edges of the square in degrees, the south and west ones included.
+        double south = row - radius - 90;
+        double north = row + radius + 1 - 90;
+        double bound = Double.MAX_VALUE;
+        if (south > -90) {
+            bound = Math.min(bound, Math.toRadians(lat - south) * EARTH_RADIUS_KM);
+        }
+        if (north <= 90) {
+            bound = Math.min(bound, Math.toRadians(north - lat) * EARTH_RADIUS_KM);
+        }
+        if (!wholeRows) {
+            // Anywhere across the east or west edge but within the rows is at least this
+            // far, by the haversine formula with the other latitude at its worst.
+            double west = column - radius - 180;
+            double east = column + radius + 1 - 180;
+            // 180 is in the first column, with -180.
+            double wrapped = lon >= 180 ? lon - 360 : lon;
+            double longitude = Math.toRadians(Math.min(wrapped - west, east - wrapped));
+            double farthest = Math.min(90, Math.max(Math.abs(Math.max(-90, south)),
+                    Math.abs(Math.min(90, north))));
+            double haversine = Math.cos(Math.toRadians(lat)) *
+                    Math.cos(Math.toRadians(farthest)) *
+                    Math.pow(Math.sin(longitude / 2), 2);
+            bound = Math.min(bound,
+                    2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(Math.max(0, haversine))));
+        }
+        return bound;
+    }
+
+    /**
+     * @return the great-circle distance between two points, in kilometers.
+     */
+    static double getDistance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double haversine = Math.pow(Math.sin(dLat / 2), 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(Math.min(1, haversine)));
+    }
+
+    static int getRow(double lat) {
+        return (int) (lat + 90);
+    }
+
+    static int getColumn(double lon) {
+        return (int) (lon + 180) % COLUMNS;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LruCache;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/**
+ * Remembers the _id of recently used location settings, so turning a location setting into
+ * a location id doesn't take a query every time, and the rows of recently used locations,
+ * so weather can be read without joining the location table.
+ *
+ * There is one cache per process.  WeatherProvider keeps it correct: it adds every location
+ * it inserts, and forgets everything when locations are updated or deleted, which hardly
+ * ever happens.  That only works because the sync adapter and the provider share a process;
+ * anything that writes the location table without going through the provider must call
+ * {@link #clear()}.
+ */
+public class LocationIdCache {
+
+    // Far more locations than anybody keeps, so in practice nothing is ever evicted.
+    static final int MAX_SIZE = 64;
+
+    private static final LocationIdCache sInstance = new LocationIdCache(MAX_SIZE);
+
+    // The columns of a location other than its _id, as kept by getLocation.
+    static final String[] LOCATION_COLUMNS = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private final LruCache<String, Long> mIds;
+    private final LruCache<Long, ContentValues> mRows;
+
+    LocationIdCache(int maxSize) {
+        mIds = new LruCache<String, Long>(maxSize);
+        mRows = new LruCache<Long, ContentValues>(maxSize);
+    }
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the _id of the location, or -1 if it isn't cached.
+     */
+    public long get(String locationSetting) {
+        Long id = mIds.get(locationSetting);
+        return id != null ? id : -1;
+    }
+
+    public void put(String locationSetting, long id) {
+        mIds.put(locationSetting, id);
+    }
+
+    /**
+     * Looks the location up in the cache, and failing that in the location table.
+     *
+     * @return the _id of the location, or -1 if there is no such location.
+     */
+    long resolve(SQLiteDatabase db, String locationSetting) {
+        long id = get(locationSetting);
+        if (id != -1) {
+            return id;
+        }
+
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+                put(locationSetting, id);
+            }
+        } finally {
+            cursor.close();
+        }
+        return id;
+    }
+
+    /**
+     * Looks up the columns of the location with the given _id, in the cache and failing that
+     * in the location table.  Callers must not modify what they get back.
+     *
+     * @return the location's {@link #LOCATION_COLUMNS}, or null if there is no such location.
+     */
+    ContentValues getLocation(SQLiteDatabase db, long id) {
+        ContentValues row = mRows.get(id);
+        if (row != null) {
+            return row;
+        }
+
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                LOCATION_COLUMNS,
+                LocationEntry._ID + " = ?",
+                new String[]{Long.toString(id)},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            row = new ContentValues(LOCATION_COLUMNS.length);
+            row.put(LocationEntry.COLUMN_LOCATION_SETTING, cursor.getString(0));
+            row.put(LocationEntry.COLUMN_CITY_NAME, cursor.getString(1));
+            row.put(LocationEntry.COLUMN_COORD_LAT, cursor.getDouble(2));
+            row.put(LocationEntry.COLUMN_COORD_LONG, cursor.getDouble(3));
+            mRows.put(id, row);
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forgets every location.
+     */
+    public void clear() {
+        mIds.evictAll();
+        mRows.evictAll();
+    }
+
+    /**
+     * Forgets the location rows but keeps the ids, for when locations changed but kept
+     * their settings.
+     */
+    public void clearLocations() {
+        mRows.evictAll();
+    }
+
+    public int hitCount() {
+        return mIds.hitCount();
+    }
+
+    public int missCount() {
+        return mIds.missCount();
+    }
+}
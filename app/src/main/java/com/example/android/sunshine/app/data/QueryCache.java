@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the results of recent weather queries for a location in memory, so the forecast
+ * list, the detail view and the sync's notification asking for the same rows again don't
+ * each go back to SQLite.
+ *
+ * Only queries scoped to a location are cached: weather/{location},
+ * weather/{location}/{date} and weather/{location}/stats.  WeatherProvider invalidates them through
+ * {@link #invalidate(Uri)} with every uri it notifies, so a write drops exactly the
+ * results for the locations and days it changed.  Like {@link LocationIdCache} there is
+ * one per process, which only works because every write goes through the provider.
+ *
+ * A query that misses takes the generation before it reads the database, and its result
+ * is only kept if nothing was invalidated in the meantime; otherwise a read racing a write
+ * could cache what the write replaced.
+ */
+public class QueryCache {
+
+    // Rows across all cached results.  A location's forecast list is 14 rows or so.
+    static final int MAX_ROWS = 512;
+    // Larger results aren't worth keeping; they would push everything else out.
+    static final int MAX_ROWS_PER_RESULT = 64;
+
+    private static final QueryCache sInstance = new QueryCache(MAX_ROWS);
+
+    /**
+     * One materialized result, and what it covers: the rows of a location between two
+     * dates, both included.
+     */
+    private static class Entry {
+        final String locationSetting;
+        final long startDate;
+        final long endDate;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(String locationSetting, long startDate, long endDate, String[] columns,
+              Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        boolean covers(long changedDate) {
+            return changedDate >= startDate && changedDate <= endDate;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries;
+    private volatile boolean mEnabled = true;
+    private long mGeneration;
+
+    QueryCache(int maxRows) {
+        mEntries = new LruCache<String, Entry>(maxRows) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.rows.length + 1;
+            }
+        };
+    }
+
+    public static QueryCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Turns the cache on or off.  Turning it off also forgets everything in it.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * Reading a cursor's column types needs API 11, so older devices go without.
+     */
+    public boolean isEnabled() {
+        return mEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * The location queries take no selection, so the uri (location, date or bounds),
+     * projection and sort order are all that tell them apart.
+     */
+    static String buildKey(Uri uri, String[] projection, String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + sortOrder;
+    }
+
+    /**
+     * @return a fresh cursor over the cached result, or null if there isn't one.
+     */
+    Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? toCursor(entry) : null;
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the cursor into memory and keeps it, unless the cache was invalidated since
+     * {@link #getGeneration()} returned the given generation.
+     *
+     * @param startDate the first date the result can have, 0 for none.
+     * @param endDate the last date it can have, Long.MAX_VALUE for none.  A page that
+     *                stops at a limit still covers the days after it, which could move into
+     *                it.
+     * @return a cursor to hand out instead of the one given, which has been used up; or
+     * the one given, untouched, if the result is too large to keep.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Cursor put(String key, String locationSetting, long startDate, long endDate,
+               Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS_PER_RESULT) {
+            return cursor;
+        }
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                Object[] row = new Object[columns.length];
+                for (int j = 0; j < columns.length; j++) {
+                    switch (cursor.getType(j)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[j] = cursor.getLong(j);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[j] = cursor.getDouble(j);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[j] = cursor.getBlob(j);
+                            break;
+                        default:
+                            row[j] = cursor.getString(j);
+                            break;
+                    }
+                }
+                rows[i] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Entry entry = new Entry(locationSetting, startDate, endDate, columns, rows);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, entry);
+            }
+        }
+        return toCursor(entry);
+    }
+
+    /**
+     * Drops every result a change to the given uri could affect.
+     */
+    synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !WeatherContract.PATH_WEATHER.equals(segments.get(0))) {
+            // The whole weather table, or the locations it is joined with.  Changes to
+            // anything else don't touch what we cache: the sync stats aren't cached, and
+            // rollups dropped from the history are announced on their locations as well.
+            String path = segments.isEmpty() ? null : segments.get(0);
+            if (!WeatherContract.PATH_SYNC_STATS.equals(path) &&
+                    !WeatherContract.PATH_HISTORY.equals(path)) {
+                mEntries.evictAll();
+            }
+            return;
+        }
+
+        String locationSetting = segments.get(1);
+        boolean allDays = segments.size() < 3;
+        long date = allDays ? 0 : WeatherEntry.getDateFromUri(uri);
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            Entry entry = cached.getValue();
+            if (locationSetting.equals(entry.locationSetting) &&
+                    (allDays || entry.covers(date))) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+    }
+
+    /**
+     * Forgets every result.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    public int hitCount() {
+        return mEntries.hitCount();
+    }
+
+    public int missCount() {
+        return mEntries.missCount();
+    }
+
+    private static Cursor toCursor(Entry entry) {
+        MatrixCursor cursor = new MatrixCursor(entry.columns, entry.rows.length);
+        for (Object[] row : entry.rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the stats of the last {@link #CAPACITY} syncs in a fixed-size file, so recording a
+ * sync costs one small write and the file never grows.  The sync adapter appends to it and
+ * the provider serves it as {@link SyncStatsEntry#CONTENT_URI}.
+ *
+ * The file holds a header (the sequence number of the next record and how many records
+ * there are) followed by CAPACITY slots of fixed-size records.
+ */
+public class SyncStatsLog {
+    private static final String LOG_TAG = SyncStatsLog.class.getSimpleName();
+
+    static final String FILE_NAME = "sync_stats.ring";
+    static final int CAPACITY = 64;
+
+    // The columns of a record, in the order they are stored.
+    static final String[] COLUMNS = {
+            SyncStatsEntry.COLUMN_START_TIME,
+            SyncStatsEntry.COLUMN_STATUS,
+            SyncStatsEntry.COLUMN_LOCATIONS,
+            SyncStatsEntry.COLUMN_FAILURES,
+            SyncStatsEntry.COLUMN_BACKED_OFF,
+            SyncStatsEntry.COLUMN_CONNECT_MILLIS,
+            SyncStatsEntry.COLUMN_DOWNLOAD_MILLIS,
+            SyncStatsEntry.COLUMN_PARSE_MILLIS,
+            SyncStatsEntry.COLUMN_ADD_LOCATION_MILLIS,
+            SyncStatsEntry.COLUMN_BULK_INSERT_MILLIS,
+            SyncStatsEntry.COLUMN_DELETE_MILLIS,
+            SyncStatsEntry.COLUMN_NOTIFY_MILLIS,
+            SyncStatsEntry.COLUMN_TOTAL_MILLIS,
+            SyncStatsEntry.COLUMN_BYTES_ON_WIRE,
+            SyncStatsEntry.COLUMN_BYTES_DECODED,
+            SyncStatsEntry.COLUMN_ROWS_WRITTEN,
+            SyncStatsEntry.COLUMN_ALLOCATED_BYTES
+    };
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = COLUMNS.length * 8;
+
+    // The sync adapter writes while the provider may be reading, in the same process.
+    private static final Object sLock = new Object();
+
+    /**
+     * The stats of a single sync.  Times are accumulated in nanoseconds and stored in
+     * milliseconds.
+     */
+    public static class Record {
+        public long startTime = System.currentTimeMillis();
+        public int status;
+        public int locations;
+        public int failures;
+        public int backedOff;
+        public long connectNanos;
+        public long downloadNanos;
+        public long parseNanos;
+        public long addLocationNanos;
+        public long bulkInsertNanos;
+        public long deleteNanos;
+        public long notifyNanos;
+        public long totalNanos;
+        public long bytesOnWire;
+        public long bytesDecoded;
+        public long rowsWritten;
+        public long allocatedBytes = -1;
+
+        long[] toArray() {
+            return new long[]{
+                    startTime,
+                    status,
+                    locations,
+                    failures,
+                    backedOff,
+                    connectNanos / 1000000,
+                    downloadNanos / 1000000,
+                    parseNanos / 1000000,
+                    addLocationNanos / 1000000,
+                    bulkInsertNanos / 1000000,
+                    deleteNanos / 1000000,
+                    notifyNanos / 1000000,
+                    totalNanos / 1000000,
+                    bytesOnWire,
+                    bytesDecoded,
+                    rowsWritten,
+                    allocatedBytes
+            };
+        }
+
+        @Override
+        public String toString() {
+            long[] values = toArray();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(COLUMNS[i]).append('=').append(values[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final File mFile;
+
+    public SyncStatsLog(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Adds a record, overwriting the oldest one if the ring is full.  Stats are not worth
+     * failing a sync over, so errors are only logged.
+     */
+    public void append(Record record) {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        for (long value : record.toArray()) {
+            buffer.putLong(value);
+        }
+
+        synchronized (sLock) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "rw");
+                long next = 0;
+                long count = 0;
+                if (file.length() >= HEADER_SIZE) {
+                    next = file.readLong();
+                    count = file.readLong();
+                }
+                file.seek(HEADER_SIZE + (next % CAPACITY) * RECORD_SIZE);
+                file.write(buffer.array());
+                file.seek(0);
+                file.writeLong(next + 1);
+                file.writeLong(Math.min(count + 1, CAPACITY));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error recording sync stats", e);
+            } finally {
+                closeQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * @return the recorded syncs, newest first, as a cursor over the given columns.  The
+     * _id of a record is its sequence number.  A null projection returns every column.
+     */
+    public Cursor query(String[] projection) {
+        if (projection == null) {
+            projection = new String[COLUMNS.length + 1];
+            projection[0] = SyncStatsEntry._ID;
+            System.arraycopy(COLUMNS, 0, projection, 1, COLUMNS.length);
+        }
+        int[] columnIndex = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndex[i] = indexOf(projection[i]);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        synchronized (sLock) {
+            if (!mFile.exists()) {
+                return cursor;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "r");
+                if (file.length() < HEADER_SIZE) {
+                    return cursor;
+                }
+                long next = file.readLong();
+                long count = file.readLong();
+                byte[] record = new byte[RECORD_SIZE];
+                Object[] row = new Object[projection.length];
+                for (long sequence = next - 1; sequence >= next - count; sequence--) {
+                    file.seek(HEADER_SIZE + (sequence % CAPACITY) * RECORD_SIZE);
+                    file.readFully(record);
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = columnIndex[i] < 0 ? sequence :
+                                buffer.getLong(columnIndex[i] * 8);
+                    }
+                    cursor.addRow(row);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading sync stats", e);
+            } finally {
+                closeQuietly(file);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Forgets every recorded sync.
+     */
+    public void clear() {
+        synchronized (sLock) {
+            mFile.delete();
+        }
+    }
+
+    /**
+     * @return the position of a column in a record, or -1 for the _id.
+     */
+    private static int indexOf(String column) {
+        if (SyncStatsEntry._ID.equals(column)) {
+            return -1;
+        }
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sync stats column: " + column);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing sync stats", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.util.HashMap;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Upserts weather rows through two statements compiled once per transaction, instead of
+ * building and compiling SQL from a ContentValues for every row.
+ *
+ * A row is first offered to an UPDATE that only matches if the stored day differs from it;
+ * if that changes nothing, an INSERT OR IGNORE adds it unless the day is already stored,
+ * in which case it was unchanged.  That keeps the behaviour of
+ * WeatherProvider.upsertWeather without reading anything back.
+ *
+ * Rows are stored the way {@link WeatherEncoding} describes: measurements scaled to
+ * integers, and the description kept once per condition.  Only rows with exactly the
+ * columns the sync writes can take this path; anything else is left to upsertWeather.
+ * Needs API 11, for executeUpdateDelete.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class WeatherBulkWriter {
+
+    // The columns after location_id and date, in binding order.  Parameters ?1 and ?2 are
+    // the location and date, the value columns follow from ?3.  The description isn't one
+    // of them; it goes to the condition table.
+    static final String[] VALUE_COLUMNS = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final int FIRST_VALUE_PARAMETER = 3;
+
+    // What each value column is multiplied by to store it, 0 if it is stored as it is.
+    private static final int[] SCALES = new int[VALUE_COLUMNS.length];
+
+    static final String UPDATE_SQL;
+    static final String INSERT_SQL;
+    static final String CONDITION_UPDATE_SQL = "UPDATE " +
+            WeatherEncoding.CONDITION_TABLE_NAME + " SET " + WeatherEntry.COLUMN_SHORT_DESC +
+            " = ?2 WHERE " + WeatherEntry.COLUMN_WEATHER_ID + " = ?1 AND " +
+            WeatherEntry.COLUMN_SHORT_DESC + " IS NOT ?2";
+    static final String CONDITION_INSERT_SQL = "INSERT OR IGNORE INTO " +
+            WeatherEncoding.CONDITION_TABLE_NAME + " (" + WeatherEntry.COLUMN_WEATHER_ID +
+            ", " + WeatherEntry.COLUMN_SHORT_DESC + ") VALUES (?1, ?2)";
+    static final String FIND_SQL = "SELECT " + WeatherEntry._ID + " FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+            WeatherEntry.COLUMN_DATE + " = ?2";
+
+    static {
+        StringBuilder set = new StringBuilder();
+        StringBuilder changed = new StringBuilder();
+        StringBuilder columns = new StringBuilder(
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE);
+        StringBuilder values = new StringBuilder("?1, ?2");
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            SCALES[i] = WeatherEncoding.getScale(VALUE_COLUMNS[i]);
+            String parameter = "?" + (FIRST_VALUE_PARAMETER + i);
+            if (i > 0) {
+                set.append(", ");
+                changed.append(" OR ");
+            }
+            set.append(VALUE_COLUMNS[i]).append(" = ").append(parameter);
+            changed.append(VALUE_COLUMNS[i]).append(" IS NOT ").append(parameter);
+            columns.append(", ").append(VALUE_COLUMNS[i]);
+            values.append(", ").append(parameter);
+        }
+
+        UPDATE_SQL = "UPDATE " + WeatherEntry.TABLE_NAME + " SET " + set +
+                " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ?1 AND " +
+                WeatherEntry.COLUMN_DATE + " = ?2 AND (" + changed + ")";
+        INSERT_SQL = "INSERT OR IGNORE INTO " + WeatherEntry.TABLE_NAME +
+                " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mUpdate;
+    private final SQLiteStatement mInsert;
+    // Only compiled once someone asks for the _id of a row that wasn't inserted.
+    private SQLiteStatement mFind;
+    private final SQLiteStatement mConditionUpdate;
+    private final SQLiteStatement mConditionInsert;
+    // The conditions this writer has stored, so each is only written once.
+    private final HashMap<Long, String> mConditions = new HashMap<Long, String>();
+    private boolean mConditionChanged;
+    private final DateNormalizer mDates = new DateNormalizer();
+
+    // The row the last write was about, and its _id if it was inserted.
+    private long mLastLocationId;
+    private long mLastDate;
+    private long mLastInsertedId = -1;
+
+    /**
+     * Compiles the statements.  Call from inside the transaction that will use them, and
+     * close the writer before it ends.
+     */
+    WeatherBulkWriter(SQLiteDatabase db) {
+        mDb = db;
+        mUpdate = db.compileStatement(UPDATE_SQL);
+        mInsert = db.compileStatement(INSERT_SQL);
+        mConditionUpdate = db.compileStatement(CONDITION_UPDATE_SQL);
+        mConditionInsert = db.compileStatement(CONDITION_INSERT_SQL);
+    }
+
+    /**
+     * @return true if the row has exactly the sync's columns, with a description and numbers
+     * for everything else.
+     */
+    static boolean canWrite(ContentValues values) {
+        if (values.size() != VALUE_COLUMNS.length + 3 ||
+                !(values.get(WeatherEntry.COLUMN_LOC_KEY) instanceof Number) ||
+                !(values.get(WeatherEntry.COLUMN_DATE) instanceof Number) ||
+                !(values.get(WeatherEntry.COLUMN_SHORT_DESC) instanceof String)) {
+            return false;
+        }
+        for (String column : VALUE_COLUMNS) {
+            if (!(values.get(column) instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores a row that {@link #canWrite} accepted, normalizing its date on the way.
+     *
+     * @return WeatherProvider.UPSERT_INSERTED, UPSERT_UPDATED or UPSERT_UNCHANGED.
+     */
+    int write(ContentValues values) {
+        long locationId = ((Number) values.get(WeatherEntry.COLUMN_LOC_KEY)).longValue();
+        long date = mDates.normalize(
+                ((Number) values.get(WeatherEntry.COLUMN_DATE)).longValue());
+
+        mLastLocationId = locationId;
+        mLastDate = date;
+        mLastInsertedId = -1;
+
+        storeCondition(((Number) values.get(WeatherEntry.COLUMN_WEATHER_ID)).longValue(),
+                values.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        bind(mUpdate, locationId, date, values);
+        if (mUpdate.executeUpdateDelete() > 0) {
+            return WeatherProvider.UPSERT_UPDATED;
+        }
+        bind(mInsert, locationId, date, values);
+        mLastInsertedId = mInsert.executeInsert();
+        return mLastInsertedId != -1 ?
+                WeatherProvider.UPSERT_INSERTED : WeatherProvider.UPSERT_UNCHANGED;
+    }
+
+    /**
+     * @return true if a write replaced the description of a condition already stored, which
+     * changes every day with that condition, not just the ones written.
+     */
+    boolean hasChangedConditions() {
+        return mConditionChanged;
+    }
+
+    long getLastLocationId() {
+        return mLastLocationId;
+    }
+
+    /**
+     * @return the normalized date of the row the last {@link #write} was given.
+     */
+    long getLastDate() {
+        return mLastDate;
+    }
+
+    /**
+     * @return the _id of the row the last {@link #write} stored or left alone.  Costs a
+     * lookup unless that row was inserted.  Only the rowid layout of the weather table
+     * has an _id to return.
+     */
+    long getLastRowId() {
+        if (mLastInsertedId != -1) {
+            return mLastInsertedId;
+        }
+        if (mFind == null) {
+            mFind = mDb.compileStatement(FIND_SQL);
+        }
+        mFind.bindLong(1, mLastLocationId);
+        mFind.bindLong(2, mLastDate);
+        return mFind.simpleQueryForLong();
+    }
+
+    void close() {
+        mUpdate.close();
+        mInsert.close();
+        mConditionUpdate.close();
+        mConditionInsert.close();
+        if (mFind != null) {
+            mFind.close();
+        }
+    }
+
+    private void storeCondition(long weatherId, String description) {
+        if (description.equals(mConditions.get(weatherId))) {
+            return;
+        }
+        mConditionUpdate.bindLong(1, weatherId);
+        mConditionUpdate.bindString(2, description);
+        if (mConditionUpdate.executeUpdateDelete() > 0) {
+            mConditionChanged = true;
+        } else {
+            mConditionInsert.bindLong(1, weatherId);
+            mConditionInsert.bindString(2, description);
+            mConditionInsert.executeInsert();
+        }
+        mConditions.put(weatherId, description);
+    }
+
+    private static void bind(SQLiteStatement statement, long locationId, long date,
+                             ContentValues values) {
+        statement.bindLong(1, locationId);
+        statement.bindLong(2, date);
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            int index = FIRST_VALUE_PARAMETER + i;
+            Object value = values.get(VALUE_COLUMNS[i]);
+            if (SCALES[i] != 0) {
+                statement.bindLong(index, WeatherEncoding.encode(
+                        ((Number) value).doubleValue(), SCALES[i]));
+            } else {
+                statement.bindLong(index, ((Number) value).longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Collects the weather rows a write touched, so that WeatherProvider can notify the uris of
+ * just those locations and days instead of the whole weather table.
+ *
+ * A change to one day is announced on weather/{location}/{date}, which reaches the forecast
+ * list of that location and the detail view of that day, but not the other days or the
+ * other locations.  When too many days of a location change, it is announced on
+ * weather/{location} instead.
+ */
+class WeatherChanges {
+
+    // More days than this changing for one location is a whole new forecast, not an update
+    // to a few days, and one notification for the location does just as well.
+    static final int MAX_DAY_NOTIFICATIONS = 3;
+
+    // The changed dates of each location id.  A null set means the whole location.
+    private final Map<Long, TreeSet<Long>> mChanges = new HashMap<Long, TreeSet<Long>>();
+    // Set when something changed that we can't pin down to a location.
+    private boolean mEverything;
+
+    void add(long locationId, long date) {
+        if (!mChanges.containsKey(locationId)) {
+            mChanges.put(locationId, new TreeSet<Long>());
+        }
+        TreeSet<Long> dates = mChanges.get(locationId);
+        if (dates != null) {
+            dates.add(date);
+        }
+    }
+
+    void addLocation(long locationId) {
+        mChanges.put(locationId, null);
+    }
+
+    void addEverything() {
+        mEverything = true;
+    }
+
+    void addAll(WeatherChanges other) {
+        mEverything |= other.mEverything;
+        for (Map.Entry<Long, TreeSet<Long>> entry : other.mChanges.entrySet()) {
+            if (entry.getValue() == null) {
+                addLocation(entry.getKey());
+            } else {
+                for (Long date : entry.getValue()) {
+                    add(entry.getKey(), date);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the rows the selection matches.  Call it before the rows are changed or deleted.
+     */
+    void addSelection(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            // Every row, and quicker to say so than to read them all.
+            addEverything();
+            return;
+        }
+        // No need for DISTINCT: a location has one row per date.
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(0) || cursor.isNull(1)) {
+                    addEverything();
+                } else {
+                    add(cursor.getLong(0), cursor.getLong(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return !mEverything && mChanges.isEmpty();
+    }
+
+    /**
+     * @return the uris to notify, looking up the location settings they are built from.
+     */
+    List<Uri> getUris(SQLiteDatabase db) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (mEverything) {
+            uris.add(WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        if (mChanges.isEmpty()) {
+            return uris;
+        }
+
+        // The ids are numbers we read ourselves, so they can go straight into the SQL.
+        StringBuilder ids = new StringBuilder();
+        for (Long locationId : mChanges.keySet()) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(locationId);
+        }
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " IN (" + ids + ")", null, null, null, null);
+        int found = 0;
+        try {
+            while (cursor.moveToNext()) {
+                found++;
+                TreeSet<Long> dates = mChanges.get(cursor.getLong(0));
+                Uri locationUri = WeatherEntry.buildWeatherLocation(cursor.getString(1));
+                if (dates == null || dates.size() > MAX_DAY_NOTIFICATIONS) {
+                    uris.add(locationUri);
+                } else {
+                    for (Long date : dates) {
+                        // The dates are already normalized, so they go in as they are.
+                        uris.add(locationUri.buildUpon().appendPath(date.toString()).build());
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (found < mChanges.size()) {
+            // Weather for a location we don't have.  Nobody can be looking at it by
+            // location, but the whole table has changed all the same.
+            uris.clear();
+            uris.add(WeatherEntry.CONTENT_URI);
+        }
+        return uris;
+    }
+}
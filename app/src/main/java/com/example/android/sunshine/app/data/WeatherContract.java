@@ -43,13 +43,21 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_STATS = "sync_stats";
+    public static final String PATH_HISTORY = "history";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_TODAY = "today";
+    public static final String PATH_LATEST = "latest";
+    public static final String PATH_NEAR = "near";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
         // normalize the start date to the beginning of the (UTC) day
         Time time = new Time();
-        time.setToNow();
+        // The offset in effect at the date itself, so a local midnight on the far side of a
+        // daylight saving change still lands on its own day.
+        time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
     }
@@ -81,12 +89,62 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // location/near?lat=&lon=&k= returns the k stored locations nearest a point, nearest
+        // first, with their distance from it in kilometers.  k is 1 unless given.
+        public static final String PARAM_LAT = "lat";
+        public static final String PARAM_LON = "lon";
+        public static final String PARAM_K = "k";
+        public static final String COLUMN_DISTANCE = "distance";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildNearUri(double lat, double lon, int k) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_NEAR)
+                    .appendQueryParameter(PARAM_LAT, Double.toString(lat))
+                    .appendQueryParameter(PARAM_LON, Double.toString(lon))
+                    .appendQueryParameter(PARAM_K, Integer.toString(k)).build();
+        }
+
+        public static double getLatFromUri(Uri uri) {
+            return getCoordinateFromUri(uri, PARAM_LAT);
+        }
+
+        public static double getLonFromUri(Uri uri) {
+            return getCoordinateFromUri(uri, PARAM_LON);
+        }
+
+        public static int getKFromUri(Uri uri) {
+            String kString = uri.getQueryParameter(PARAM_K);
+            if (null != kString && kString.length() > 0)
+                return Integer.parseInt(kString);
+            else
+                return 1;
+        }
+
+        private static double getCoordinateFromUri(Uri uri, String parameter) {
+            String coordinate = uri.getQueryParameter(parameter);
+            if (null == coordinate || coordinate.length() == 0) {
+                throw new IllegalArgumentException("Missing " + parameter + " in uri: " + uri);
+            }
+            return Double.parseDouble(coordinate);
+        }
     }
 
-    /* Inner class that defines the table contents of the weather table */
+    /*
+        Inner class that defines the table contents of the weather table.
+
+        Writes notify the most specific uris they affect, so observers should register for
+        the uri they query with notifyForDescendants set, as Cursor.setNotificationUri does:
+        - a change to a few days of a location notifies weather/{location}/{date} for each
+          of those days, which reaches weather/{location} and weather too;
+        - a change to most of a location's forecast notifies weather/{location} instead;
+        - a change that can't be tied to a location (deleting everything, moving rows between
+          locations or days, weather for a location we don't have) notifies weather.
+        Locations are identified by their location setting, and dates are the normalized
+        dates stored in the table.
+     */
     public static final class WeatherEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI =
@@ -107,29 +165,68 @@ public class WeatherContract {
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
         // Short description and long description of the weather, as provided by API.
-        // e.g "clear" vs "sky is clear".
+        // e.g "clear" vs "sky is clear".  Stored once per weather id rather than per day.
         public static final String COLUMN_SHORT_DESC = "short_desc";
 
-        // Min and max temperatures for the day (stored as floats)
+        // Min and max temperatures for the day.  Read as floats, but stored in hundredths,
+        // like the other measurements below, so a selection on one compares against the
+        // stored integer.
         public static final String COLUMN_MIN_TEMP = "min";
         public static final String COLUMN_MAX_TEMP = "max";
 
-        // Humidity is stored as a float representing percentage
+        // Humidity is a float representing percentage
         public static final String COLUMN_HUMIDITY = "humidity";
 
-        // Humidity is stored as a float representing percentage
+        // Pressure is a float in hPa
         public static final String COLUMN_PRESSURE = "pressure";
 
-        // Windspeed is stored as a float representing windspeed  mph
+        // Windspeed is a float representing windspeed  mph
         public static final String COLUMN_WIND_SPEED = "wind";
 
-        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Read as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Set on the uri insert returns when the row was already stored with the same values.
+        public static final String PARAM_UNCHANGED = "unchanged";
+
+        // Query parameters that bound a weather/{location} query, besides the first date,
+        // which is COLUMN_DATE: the last date, the most rows to return, and the date a page
+        // starts after.  A limit or an after date returns rows in date order, whatever sort
+        // order is asked for, so that the last row of one page says where the next starts.
+        public static final String PARAM_END_DATE = "end_date";
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_AFTER_DATE = "after";
+
+        // weather/today and weather/latest?date= return one row for every location: its
+        // weather on that date, or on the latest day before it that it has, with the
+        // location's columns if they're asked for.  Without a date, latest gives each
+        // location's last day.  Neither name can be used as a location setting.
+        public static Uri buildWeatherTodayUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_TODAY).build();
+        }
+
+        public static Uri buildLatestWeatherUri(long date) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_LATEST)
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(date)))
+                    .build();
+        }
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        public static Uri buildUnchangedWeatherUri(long id) {
+            return buildWeatherUri(id).buildUpon()
+                    .appendQueryParameter(PARAM_UNCHANGED, "1").build();
+        }
+
+        /**
+         * @return true if the uri an insert returned says that nothing changed.
+         */
+        public static boolean isUnchangedUri(Uri uri) {
+            return "1".equals(uri.getQueryParameter(PARAM_UNCHANGED));
+        }
+
         public static Uri buildWeatherLocation(String locationSetting) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
         }
@@ -141,6 +238,50 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /**
+         * @return the uri of the days of a location from startDate to endDate, both included.
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        /**
+         * @return the uri of the first page of a location's days: at most limit of them, from
+         * startDate on.  {@link #buildNextPageUri} gives the pages after it.
+         */
+        public static Uri buildWeatherLocationPage(
+                String locationSetting, long startDate, int limit) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /**
+         * @param lastDate the date of the last row of the page.
+         * @return the uri of the page that follows it, with the same bounds and limit.
+         */
+        public static Uri buildNextPageUri(Uri pageUri, long lastDate) {
+            // getQueryParameterNames needs API 11, so the other parameters are copied as
+            // they are.
+            StringBuilder query = new StringBuilder();
+            String encodedQuery = pageUri.getEncodedQuery();
+            if (encodedQuery != null) {
+                for (String parameter : encodedQuery.split("&")) {
+                    if (parameter.length() > 0 &&
+                            !parameter.startsWith(PARAM_AFTER_DATE + "=")) {
+                        if (query.length() > 0) {
+                            query.append('&');
+                        }
+                        query.append(parameter);
+                    }
+                }
+            }
+            return pageUri.buildUpon().encodedQuery(query.toString())
+                    .appendQueryParameter(PARAM_AFTER_DATE, Long.toString(lastDate)).build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
@@ -154,6 +295,17 @@ public class WeatherContract {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
 
+        /**
+         * @return the date of a weather/latest uri, or Long.MAX_VALUE if there isn't one.
+         */
+        public static long getLatestDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(COLUMN_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+
         public static long getStartDateFromUri(Uri uri) {
             String dateString = uri.getQueryParameter(COLUMN_DATE);
             if (null != dateString && dateString.length() > 0)
@@ -161,5 +313,247 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /**
+         * @return the last date wanted, or Long.MAX_VALUE if there isn't one.
+         */
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+
+        /**
+         * @return the most rows wanted, or 0 for all of them.
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+
+        /**
+         * @return the date the page starts after, or -1 if it isn't a following page.
+         */
+        public static long getAfterDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_AFTER_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return -1;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the weather history: the days that
+        have aged out of the weather table, rolled up by week and by month.
+
+        The weather table is the hot tier: the forecast, and the last HOT_DAYS days in full.
+        Once a day is older than that, the sync's maintenance folds it into the week and the
+        month it falls in, and removes it from the weather table.  Weekly rollups are kept
+        for half a year; monthly ones until the database outgrows its budget, when the
+        oldest rollups go first.  See WeatherRetention.
+
+        Read-only.  Query history/{location}?period={PERIOD_WEEK or PERIOD_MONTH}; rows come
+        oldest first, and temperatures are floats, like the weather table's.  Maintenance
+        notifies history, and weather for the days it removes.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        public static final String TABLE_NAME = "weather_rollup";
+
+        // Days of the past the weather table keeps in full.
+        public static final int HOT_DAYS = 14;
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+
+        // How many days a row covers, one of the PERIOD_ values below
+        public static final String COLUMN_PERIOD = "period";
+        public static final int PERIOD_WEEK = 1;
+        public static final int PERIOD_MONTH = 2;
+
+        // The normalized date of the first day of the week or month
+        public static final String COLUMN_START_DATE = "start_date";
+        // How many of its days were rolled up into it
+        public static final String COLUMN_DAYS = "days";
+
+        // The lowest min and highest max temperature of those days, and the mean of their
+        // daily means, each day's mean being halfway between its min and max
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        public static final String COLUMN_MEAN_TEMP = "mean";
+
+        // ContentResolver.call method that runs one bounded chunk of the maintenance.  Needs
+        // API 11.  The Bundle it returns has the KEY_ values below.
+        public static final String METHOD_COMPACT = "compact_history";
+        // Days moved out of the weather table, and rollups dropped
+        public static final String KEY_DAYS_ROLLED_UP = "days_rolled_up";
+        public static final String KEY_ROLLUPS_DROPPED = "rollups_dropped";
+        // Whether there is more to do than one chunk did
+        public static final String KEY_HAS_MORE = "has_more";
+
+        public static Uri buildHistoryUri(String locationSetting, int period) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_PERIOD, Integer.toString(period)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static int getPeriodFromUri(Uri uri) {
+            String periodString = uri.getQueryParameter(COLUMN_PERIOD);
+            if (null != periodString && periodString.length() > 0)
+                return Integer.parseInt(periodString);
+            else
+                return PERIOD_MONTH;
+        }
+    }
+
+    /*
+        Temperature statistics for a location, by day, week or month, worked out by the
+        database rather than by reading every day.
+
+        Read-only.  Query weather/{location}/stats?from=&to=&bucket=, with from and to
+        normalized dates, both optional, and bucket one of the BUCKET_ values below.  There is
+        a row for every day, week or month that the dates touch, oldest first, whole weeks and
+        months even where the dates cut them; one without weather has no days and null
+        temperatures.  Weeks and months count the days the history has rolled up as well as
+        the ones still in the weather table.  The rows change with the location's weather, so
+        cursors are notified on weather/{location}.
+     */
+    public static final class StatsEntry {
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_WEATHER + "/" + PATH_STATS;
+
+        public static final String PARAM_FROM = "from";
+        public static final String PARAM_TO = "to";
+        public static final String PARAM_BUCKET = "bucket";
+
+        public static final String BUCKET_DAY = "day";
+        public static final String BUCKET_WEEK = "week";
+        public static final String BUCKET_MONTH = "month";
+
+        // The normalized date of the first day of the bucket
+        public static final String COLUMN_START_DATE = "start_date";
+        // How many days of it have weather
+        public static final String COLUMN_DAYS = "days";
+
+        // The lowest min and highest max temperature of those days, and the mean of their
+        // daily means, as in HistoryEntry
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        public static final String COLUMN_MEAN_TEMP = "mean";
+
+        /**
+         * @param fromDate the first date wanted, 0 for the oldest there is.
+         * @param toDate the last date wanted, Long.MAX_VALUE for the newest there is.
+         */
+        public static Uri buildStatsUri(String locationSetting, long fromDate, long toDate,
+                                        String bucket) {
+            Uri.Builder builder = WeatherEntry.CONTENT_URI.buildUpon()
+                    .appendPath(locationSetting).appendPath(PATH_STATS);
+            if (fromDate != 0) {
+                builder.appendQueryParameter(PARAM_FROM, Long.toString(normalizeDate(fromDate)));
+            }
+            if (toDate != Long.MAX_VALUE) {
+                builder.appendQueryParameter(PARAM_TO, Long.toString(normalizeDate(toDate)));
+            }
+            return builder.appendQueryParameter(PARAM_BUCKET, bucket).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getFromDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_FROM);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
+        public static long getToDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_TO);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return Long.MAX_VALUE;
+        }
+
+        public static String getBucketFromUri(Uri uri) {
+            String bucket = uri.getQueryParameter(PARAM_BUCKET);
+            if (null != bucket && bucket.length() > 0)
+                return bucket;
+            else
+                return BUCKET_DAY;
+        }
+    }
+
+    /*
+        The timings of the most recent syncs.  Read-only, and not stored in the database:
+        the provider serves them from a small ring file, so the newest sync always
+        overwrites the oldest.  Rows come newest first.
+     */
+    public static final class SyncStatsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_STATS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_STATS;
+
+        // What a sync achieved, one of the STATUS_ values below
+        public static final int STATUS_UPDATED = 0;
+        public static final int STATUS_UNCHANGED = 1;
+        public static final int STATUS_FAILED = 2;
+        public static final int STATUS_NOTHING_DUE = 3;
+        public static final int STATUS_BACKED_OFF = 4;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        public static final String COLUMN_STATUS = "status";
+        // How many locations were fetched, and how many of those failed
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_FAILURES = "failures";
+        // Locations left alone because they failed recently or the server looked down
+        public static final String COLUMN_BACKED_OFF = "backed_off";
+
+        // Time spent in each phase, in milliseconds.  Downloads may run in parallel, so
+        // connect, download and parse are the sum over all locations rather than wall time.
+        // The forecasts are written in one batch, which bulk_insert_ms covers; delete_ms is
+        // the maintenance that moves old days into the history afterwards.  Before API 11
+        // old days are simply deleted, as part of the batch.
+        public static final String COLUMN_CONNECT_MILLIS = "connect_ms";
+        public static final String COLUMN_DOWNLOAD_MILLIS = "download_ms";
+        public static final String COLUMN_PARSE_MILLIS = "parse_ms";
+        public static final String COLUMN_ADD_LOCATION_MILLIS = "add_location_ms";
+        public static final String COLUMN_BULK_INSERT_MILLIS = "bulk_insert_ms";
+        public static final String COLUMN_DELETE_MILLIS = "delete_ms";
+        public static final String COLUMN_NOTIFY_MILLIS = "notify_ms";
+        // Wall time of the whole sync
+        public static final String COLUMN_TOTAL_MILLIS = "total_ms";
+
+        // Response bytes received from the network, and after decompression
+        public static final String COLUMN_BYTES_ON_WIRE = "bytes_on_wire";
+        public static final String COLUMN_BYTES_DECODED = "bytes_decoded";
+        // Weather rows that were inserted or actually changed
+        public static final String COLUMN_ROWS_WRITTEN = "rows_written";
+        // Bytes allocated by the process during the sync, or -1 where we can't tell
+        public static final String COLUMN_ALLOCATED_BYTES = "allocated_bytes";
     }
 }
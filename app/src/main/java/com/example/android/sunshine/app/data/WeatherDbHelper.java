@@ -15,25 +15,314 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.TimeZone;
+
 /**
  * Manages a local database for weather data.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    // If you change the database schema, you must increment the database version,
+    // and add a Migration that brings existing databases up to it.
+    static final int DATABASE_VERSION = 6;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // The oldest version we know how to carry data forward from.  The schema of anything
+    // older was never recorded, so those databases are rebuilt from scratch.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    /**
+     * One step in the history of the schema: brings a database from toVersion - 1 to
+     * toVersion without losing its data.
+     */
+    abstract static class Migration {
+        final int toVersion;
+
+        Migration(int toVersion) {
+            this.toVersion = toVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // Every read finds a location's weather and then a range of its dates, so they need an
+    // index that leads with the location.  The UNIQUE (date, location_id) one, which leads
+    // with the date, is still the one that deleting old days across all locations uses.
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX weather_location_date ON " + WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ")";
+
+    // Every schema change since OLDEST_MIGRATABLE_VERSION, oldest first.  The last one
+    // must end at DATABASE_VERSION.
+    static final Migration[] MIGRATIONS = {
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Each condition keeps the description of its most recent day.
+                    db.execSQL("CREATE TABLE weather_condition (" +
+                            "weather_id INTEGER PRIMARY KEY, short_desc TEXT NOT NULL);");
+                    db.execSQL("INSERT OR IGNORE INTO weather_condition " +
+                            "SELECT weather_id, short_desc FROM weather ORDER BY _id DESC");
+
+                    // SQLite can't change a column's type, so the days move to a new table.
+                    // Keeping their _ids carries the AUTOINCREMENT sequence over, and
+                    // dropping the old table drops its index, to be made again.
+                    db.execSQL("ALTER TABLE weather RENAME TO weather_v3");
+                    db.execSQL("CREATE TABLE weather (" +
+                            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, date INTEGER NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                            "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (date, location_id) ON CONFLICT REPLACE);");
+                    db.execSQL("INSERT INTO weather (_id, location_id, date, weather_id, " +
+                            "min, max, humidity, pressure, wind, degrees) " +
+                            "SELECT _id, location_id, date, weather_id, " +
+                            "CAST(ROUND(min * 100) AS INTEGER), " +
+                            "CAST(ROUND(max * 100) AS INTEGER), " +
+                            "CAST(ROUND(humidity * 100) AS INTEGER), " +
+                            "CAST(ROUND(pressure * 100) AS INTEGER), " +
+                            "CAST(ROUND(wind * 100) AS INTEGER), " +
+                            "CAST(ROUND(degrees * 100) AS INTEGER) FROM weather_v3");
+                    db.execSQL("DROP TABLE weather_v3");
+                    db.execSQL("CREATE INDEX weather_location_date ON weather " +
+                            "(location_id, date)");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // The history starts out empty: until now the sync deleted old days.
+                    db.execSQL("CREATE TABLE weather_rollup (_id INTEGER PRIMARY KEY, " +
+                            "location_id INTEGER NOT NULL, period INTEGER NOT NULL, " +
+                            "start_date INTEGER NOT NULL, days INTEGER NOT NULL, " +
+                            "min INTEGER NOT NULL, max INTEGER NOT NULL, " +
+                            "temp_sum INTEGER NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (location_id, period, start_date));");
+                    db.execSQL("CREATE INDEX weather_rollup_start_date ON weather_rollup " +
+                            "(start_date)");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Locations get the grid cell of their coordinates, and triggers to keep
+                    // it that way.
+                    db.execSQL("ALTER TABLE location ADD COLUMN geo_cell INTEGER");
+                    db.execSQL("UPDATE location SET geo_cell = " +
+                            "CAST(coord_lat + 90 AS INTEGER) * 360 + " +
+                            "CAST(coord_long + 180 AS INTEGER) % 360");
+                    db.execSQL("CREATE INDEX location_geo_cell ON location (geo_cell)");
+                    db.execSQL("CREATE TRIGGER location_geo_cell_insert AFTER INSERT ON " +
+                            "location BEGIN UPDATE location SET geo_cell = " +
+                            "CAST(coord_lat + 90 AS INTEGER) * 360 + " +
+                            "CAST(coord_long + 180 AS INTEGER) % 360 " +
+                            "WHERE _id = NEW._id; END");
+                    db.execSQL("CREATE TRIGGER location_geo_cell_update AFTER UPDATE OF " +
+                            "coord_lat, coord_long ON location BEGIN UPDATE location SET " +
+                            "geo_cell = CAST(coord_lat + 90 AS INTEGER) * 360 + " +
+                            "CAST(coord_long + 180 AS INTEGER) % 360 " +
+                            "WHERE _id = NEW._id; END");
+                }
+            },
+    };
+
+    // Every column of the weather table but the _id, and its foreign key.  Shared by both
+    // layouts.  The measurements are integers in the units WeatherEncoding gives, and the
+    // description is in the condition table.
+    private static final String SQL_WEATHER_COLUMNS =
+            // the ID of the location entry associated with this weather data
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+
+            WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+
+            WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+            // Set up the location column as a foreign key to location table.
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), ";
+
+    /*
+        The clustered layout keeps each day in a single B-tree keyed on (location_id, date),
+        instead of a rowid table plus an index that repeats the key.  A location's days are
+        then stored next to each other and found with one descent.  It has no rowid, so
+        there is no stored _id either: clusteredIdExpression() derives one from the key,
+        unique for as long as location ids fit in 39 bits.  WITHOUT ROWID needs SQLite
+        3.8.2, which first shipped with Lollipop.
+
+        The provider and the migrations still assume the rowid layout, so for now only
+        TestWeatherLayoutBenchmark creates clustered databases, to measure the two against
+        each other.
+     */
+    static final String SQL_CREATE_CLUSTERED_WEATHER_TABLE =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                    SQL_WEATHER_COLUMNS +
+                    " PRIMARY KEY (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE) WITHOUT ROWID;";
+
+    // Deleting old days goes by date across every location.
+    static final String SQL_CREATE_WEATHER_DATE_INDEX =
+            "CREATE INDEX weather_date ON " + WeatherEntry.TABLE_NAME + " (" +
+                    WeatherEntry.COLUMN_DATE + ")";
+
+    /**
+     * @return the _id of a row in the clustered layout: the location in the high bits, and
+     * in the low 24 the local day counted from the epoch, which is the Julian day
+     * normalizeDate works out less the epoch's.  Dates are local midnights, so the zone's
+     * standard offset and half a day put each one in the middle of its own day, whatever
+     * daylight saving adds to it.
+     */
+    static String clusteredIdExpression() {
+        long offset = TimeZone.getDefault().getRawOffset() + DAY_IN_MILLIS / 2;
+        return "((" + WeatherEntry.COLUMN_LOC_KEY + " << 24) + (" + WeatherEntry.COLUMN_DATE +
+                " + " + offset + ") / " + DAY_IN_MILLIS + ")";
+    }
+
+    // Once about this many frames of the write-ahead log wait to be copied back into the
+    // database, the next write copies them.  With 4KB pages that is 512KB of log.
+    static final int CHECKPOINT_THRESHOLD_FRAMES = 128;
+
+    private final boolean mWriteAheadLogging;
+    private final boolean mClustered;
+    // The frames of the log not yet checkpointed, as far as we can tell: a frame for every
+    // row written since the last checkpoint, and the frames it had to leave for readers.
+    // Rows written together share pages, so this runs ahead of the log rather than behind.
+    private int mPendingFrames;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name the database file to use.  Tests use their own, so they don't disturb
+     *             the one the provider has open.
+     */
+    WeatherDbHelper(Context context, String name) {
+        this(context, name, true);
+    }
+
+    /**
+     * @param writeAheadLogging false to keep the rollback journal, so benchmarks can compare.
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        this(context, name, writeAheadLogging, false);
+    }
+
+    /**
+     * @param clustered true to create the weather table with the clustered layout, if this
+     *                  device's SQLite supports it.  See SQL_CREATE_CLUSTERED_WEATHER_TABLE.
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging,
+                    boolean clustered) {
+        super(context, name, null, DATABASE_VERSION);
+        mClustered = clustered && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        // The sync writes while the forecast list and detail view read.  In WAL mode
+        // readers see the last committed data instead of waiting for the writer, and the
+        // framework keeps a small pool of read connections for them.
+        mWriteAheadLogging = writeAheadLogging &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        if (mWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * @return true if a weather table this helper creates has the clustered layout.
+     */
+    boolean isClustered() {
+        return mClustered;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!mWriteAheadLogging || db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN &&
+                !db.enableWriteAheadLogging()) {
+            return;
+        }
+        // We checkpoint ourselves, after the sync has written, rather than letting SQLite
+        // do it in the middle of a write whenever the log passes a thousand pages.  The
+        // setting belongs to the connection, and only the one a transaction runs on writes.
+        db.beginTransaction();
+        try {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=0", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copies the write-ahead log back into the database once about
+     * CHECKPOINT_THRESHOLD_FRAMES of it are waiting.  The size of the log file is no guide:
+     * SQLite reuses the file from the start after a checkpoint rather than shrinking it.
+     * The checkpoint is passive, so it never waits for readers: whatever they still need
+     * stays in the log for next time.  Call it after a write, and outside any transaction.
+     *
+     * @param rowsWritten the rows the write inserted, updated or deleted.
+     */
+    void checkpointIfNeeded(SQLiteDatabase db, int rowsWritten) {
+        if (!mWriteAheadLogging || db.inTransaction()) {
+            return;
+        }
+        synchronized (this) {
+            mPendingFrames += rowsWritten;
+            if (mPendingFrames < CHECKPOINT_THRESHOLD_FRAMES) {
+                return;
+            }
+            mPendingFrames = 0;
+        }
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            if (cursor.moveToFirst()) {
+                int logFrames = cursor.getInt(1);
+                int checkpointedFrames = cursor.getInt(2);
+                Log.v(LOG_TAG, "Checkpointed " + checkpointedFrames + " of " + logFrames +
+                        " frames");
+                if (logFrames > checkpointedFrames) {
+                    synchronized (this) {
+                        mPendingFrames += logFrames - checkpointedFrames;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -45,7 +334,9 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                // The cell of the coordinates in LocationGrid, set by its triggers
+                LocationGrid.COLUMN_GEO_CELL + " INTEGER" +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -55,24 +346,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 // for a certain date and all dates *following*, so the forecast data
                 // should be sorted accordingly.
                 WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-
-                // the ID of the location entry associated with this weather data
-                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-
-                // Set up the location column as a foreign key to location table.
-                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                SQL_WEATHER_COLUMNS +
 
                 // To assure the application have just one weather entry per day
                 // per location, it's created a UNIQUE constraint with REPLACE strategy
@@ -80,19 +354,57 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
-        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_GEO_CELL_INDEX);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(LocationGrid.SQL_CREATE_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(WeatherEncoding.SQL_CREATE_CONDITION_TABLE);
+        if (mClustered) {
+            sqLiteDatabase.execSQL(SQL_CREATE_CLUSTERED_WEATHER_TABLE);
+            sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATE_INDEX);
+        } else {
+            sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+            sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        }
+        sqLiteDatabase.execSQL(WeatherRetention.SQL_CREATE_ROLLUP_TABLE);
+        sqLiteDatabase.execSQL(WeatherRetention.SQL_CREATE_ROLLUP_START_DATE_INDEX);
+
+        // Any location ids and results we remember belonged to the database this one replaces.
+        LocationIdCache.getInstance().clear();
+        QueryCache.getInstance().clear();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // This database is only a cache for online data, but throwing it away means every
+        // location has to be downloaded again on the first launch after an update.  So
+        // unless it predates the migrations, we walk it forward one version at a time.
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            Log.i(LOG_TAG, "Rebuilding version " + oldVersion + " database");
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL(
+                    "DROP TABLE IF EXISTS " + WeatherEncoding.CONDITION_TABLE_NAME);
+            sqLiteDatabase.execSQL(
+                    "DROP TABLE IF EXISTS " + WeatherContract.HistoryEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion <= oldVersion || migration.toVersion > newVersion) {
+                continue;
+            }
+            Log.i(LOG_TAG, "Migrating database to version " + migration.toVersion);
+            // SQLiteOpenHelper already runs all of onUpgrade in one transaction, so if a
+            // step fails the whole upgrade is rolled back and the database stays at the
+            // version it was, to be tried again next time it's opened.
+            sqLiteDatabase.beginTransaction();
+            try {
+                migration.migrate(sqLiteDatabase);
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+        }
     }
 }
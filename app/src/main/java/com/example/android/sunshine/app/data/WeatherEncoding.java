@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/**
+ * How the weather table stores a day compactly, and how reads get the contract's columns
+ * back.
+ *
+ * Measurements are kept as integers in fixed units, given by SCALES: hundredths of a
+ * degree, a percent, a hectopascal and so on.  SQLite stores such integers in one to three
+ * bytes, where a REAL always takes eight.
+ * Descriptions are kept once per condition in the weather_condition table, keyed by
+ * weather_id, rather than on every day; the API describes a condition the same way
+ * whichever day it is on.
+ *
+ * {@link #decodeProjection} turns the contract's columns back into the values they used to
+ * be, so projections see REAL measurements and a short_desc as before, and
+ * {@link #decodeExpression} does the same for selections and sort orders, so min < 10 still
+ * means ten degrees.
+ */
+final class WeatherEncoding {
+
+    static final String CONDITION_TABLE_NAME = "weather_condition";
+
+    static final String SQL_CREATE_CONDITION_TABLE = "CREATE TABLE " + CONDITION_TABLE_NAME +
+            " (" + WeatherEntry.COLUMN_WEATHER_ID + " INTEGER PRIMARY KEY, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL);";
+
+    // The measurements, and what each is multiplied by to store it.
+    static final String[] SCALED_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    static final int[] SCALES = {100, 100, 100, 100, 100, 100};
+
+    // What a null projection gets: every column as the contract describes it, in the order
+    // the table used to have them, and the location's after them for the join.
+    static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+    static final String[] LOCATION_COLUMNS = {
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    // A day's description, looked up by its condition's primary key.
+    static final String DESCRIPTION_EXPRESSION = "(SELECT " + WeatherEntry.COLUMN_SHORT_DESC +
+            " FROM " + CONDITION_TABLE_NAME + " WHERE " + CONDITION_TABLE_NAME + "." +
+            WeatherEntry.COLUMN_WEATHER_ID + " = " + WeatherEntry.TABLE_NAME + "." +
+            WeatherEntry.COLUMN_WEATHER_ID + ")";
+
+    private static final String CONDITION_CHANGED_SELECTION =
+            WeatherEntry.COLUMN_WEATHER_ID + " = ? AND " +
+                    WeatherEntry.COLUMN_SHORT_DESC + " IS NOT ?";
+
+    private WeatherEncoding() {
+    }
+
+    /**
+     * @return what the column's values are multiplied by to store them, or 0 if they are
+     * stored as they are.
+     */
+    static int getScale(String column) {
+        for (int i = 0; i < SCALED_COLUMNS.length; i++) {
+            if (SCALED_COLUMNS[i].equals(column)) {
+                return SCALES[i];
+            }
+        }
+        return 0;
+    }
+
+    static long encode(double value, int scale) {
+        return Math.round(value * scale);
+    }
+
+    /**
+     * @return the values as the weather table stores them: measurements scaled to integers
+     * and the description left out, for {@link #storeCondition} to keep.
+     */
+    static ContentValues encodeValues(ContentValues values) {
+        ContentValues encoded = new ContentValues(values);
+        encoded.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        for (int i = 0; i < SCALED_COLUMNS.length; i++) {
+            Object value = values.get(SCALED_COLUMNS[i]);
+            if (value instanceof Number) {
+                encoded.put(SCALED_COLUMNS[i],
+                        encode(((Number) value).doubleValue(), SCALES[i]));
+            } else if (value instanceof String) {
+                try {
+                    encoded.put(SCALED_COLUMNS[i],
+                            encode(Double.parseDouble((String) value), SCALES[i]));
+                } catch (NumberFormatException e) {
+                    // Left for the NOT NULL INTEGER column to make of it.
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Rewrites a projection over the contract's weather columns into one over what the
+     * table stores.  Columns of other tables and expressions are left as they are.
+     *
+     * @param withLocation whether the query joins the location table, which decides what a
+     *                     null projection stands for.
+     */
+    static String[] decodeProjection(String[] projection, boolean withLocation) {
+        if (projection == null) {
+            if (withLocation) {
+                projection = new String[WEATHER_COLUMNS.length + LOCATION_COLUMNS.length];
+                System.arraycopy(WEATHER_COLUMNS, 0, projection, 0, WEATHER_COLUMNS.length);
+                System.arraycopy(LOCATION_COLUMNS, 0, projection, WEATHER_COLUMNS.length,
+                        LOCATION_COLUMNS.length);
+            } else {
+                projection = WEATHER_COLUMNS;
+            }
+        }
+        String[] decoded = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            decoded[i] = decodeColumn(projection[i]);
+        }
+        return decoded;
+    }
+
+    private static String decodeColumn(String column) {
+        String name = column;
+        if (column.startsWith(WeatherEntry.TABLE_NAME + ".")) {
+            name = column.substring(WeatherEntry.TABLE_NAME.length() + 1);
+        }
+        if (WeatherEntry.COLUMN_SHORT_DESC.equals(name)) {
+            return DESCRIPTION_EXPRESSION + " AS " + name;
+        }
+        int scale = getScale(name);
+        if (scale != 0) {
+            return WeatherEntry.TABLE_NAME + "." + name + " / " + scale + ".0 AS " + name;
+        }
+        return column;
+    }
+
+    /**
+     * Rewrites a selection or sort order over the contract's weather columns into one over
+     * what the table stores, the way {@link #decodeProjection} does a projection.  Column
+     * names in quotes, names qualified by another table and function names are left as
+     * they are.
+     */
+    static String decodeExpression(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        StringBuilder decoded = null;
+        int copied = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`' || c == '[') {
+                i = skipQuoted(sql, i);
+            } else if (Character.isDigit(c) || c == '?' || c == ':' || c == '@' || c == '$') {
+                // A number, or a parameter, which may have letters in it too.
+                i++;
+                while (i < length && isNamePart(sql.charAt(i))) {
+                    i++;
+                }
+            } else if (isNameStart(c)) {
+                int start = i;
+                i = skipName(sql, i);
+                String name = sql.substring(start, i);
+                if (i < length && sql.charAt(i) == '.') {
+                    // A qualified name: only our own table's columns are ours to rewrite.
+                    boolean weather = WeatherEntry.TABLE_NAME.equalsIgnoreCase(name);
+                    int column = i + 1;
+                    i = skipName(sql, column);
+                    if (!weather) {
+                        continue;
+                    }
+                    name = sql.substring(column, i);
+                }
+                String expression = decodeName(name.toLowerCase(Locale.US));
+                if (expression == null || isCall(sql, i)) {
+                    continue;
+                }
+                if (decoded == null) {
+                    decoded = new StringBuilder(length + 64);
+                }
+                decoded.append(sql, copied, start).append(expression);
+                copied = i;
+            } else {
+                i++;
+            }
+        }
+        if (decoded == null) {
+            return sql;
+        }
+        return decoded.append(sql, copied, length).toString();
+    }
+
+    /**
+     * @return the expression that gives back the contract's value of the named weather
+     * column, or null if the table stores it as it is.
+     */
+    private static String decodeName(String name) {
+        if (WeatherEntry.COLUMN_SHORT_DESC.equals(name)) {
+            return DESCRIPTION_EXPRESSION;
+        }
+        int scale = getScale(name);
+        if (scale != 0) {
+            // The CAST gives the expression the REAL affinity the column used to have, so
+            // selection arguments, which are bound as text, are still compared as numbers.
+            return "CAST(" + WeatherEntry.TABLE_NAME + "." + name + " / " + scale +
+                    ".0 AS REAL)";
+        }
+        return null;
+    }
+
+    private static boolean isNameStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static int skipName(String sql, int i) {
+        while (i < sql.length() && isNamePart(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index just past the quoted string or name starting at i.  A doubled
+     * quote stands for itself.
+     */
+    private static int skipQuoted(String sql, int i) {
+        char quote = sql.charAt(i) == '[' ? ']' : sql.charAt(i);
+        i++;
+        while (i < sql.length()) {
+            if (sql.charAt(i) != quote) {
+                i++;
+            } else if (quote != ']' && i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                i += 2;
+            } else {
+                return i + 1;
+            }
+        }
+        return i;
+    }
+
+    // Whether the name ending at i is called, like max(date), rather than a column.
+    private static boolean isCall(String sql, int i) {
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i < sql.length() && sql.charAt(i) == '(';
+    }
+
+    /**
+     * Keeps the description of the given condition, replacing the one we had.
+     *
+     * @return true if the condition was already known by another description, which every
+     * day with that condition now shows instead.
+     */
+    static boolean storeCondition(SQLiteDatabase db, long weatherId, String description) {
+        ContentValues condition = new ContentValues();
+        condition.put(WeatherEntry.COLUMN_SHORT_DESC, description);
+        boolean changed = db.update(CONDITION_TABLE_NAME, condition,
+                CONDITION_CHANGED_SELECTION,
+                new String[]{Long.toString(weatherId), description}) > 0;
+        if (!changed) {
+            condition.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+            db.insertWithOnConflict(CONDITION_TABLE_NAME, null, condition,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        return changed;
+    }
+}
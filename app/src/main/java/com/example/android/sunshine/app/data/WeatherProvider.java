@@ -15,16 +15,33 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -33,10 +50,42 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_STATS = 103;
+    static final int WEATHER_TODAY = 104;
+    static final int WEATHER_LATEST = 105;
     static final int LOCATION = 300;
     static final int LOCATION_ID = 301;
+    static final int LOCATION_NEAR = 302;
+    static final int SYNC_STATS = 400;
+    static final int HISTORY_WITH_LOCATION = 500;
+
+    // What upsertWeather did with a row.
+    static final int UPSERT_FAILED = -1;
+    static final int UPSERT_INSERTED = 0;
+    static final int UPSERT_UPDATED = 1;
+    static final int UPSERT_UNCHANGED = 2;
+
+    /**
+     * What an applyBatch running on this thread has in flight: the changes it will announce
+     * once it commits, and the weather statements its inserts share.
+     */
+    private static class Batch {
+        final Set<Uri> notifications = new LinkedHashSet<Uri>();
+        // Merged across operations, so many days of one location make one notification.
+        final WeatherChanges weatherChanges = new WeatherChanges();
+        WeatherBulkWriter writer;
+    }
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    // A column name, optionally qualified with its table: anything else in a projection is
+    // an expression that might need the join.
+    private static final Pattern sPlainColumn =
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+    // The query builder and selections below are what every weather read runs.  They are
+    // package-private so TestQueryPlans can check how SQLite executes them.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,57 +98,243 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
-    private static final String sLocationSettingSelection =
+    // Every location, with its latest day on or before a date.  The subquery is a single
+    // descent of the (location_id, date) index for each location, and the day is then
+    // found by its _id, so the weather table is never scanned however long its history.
+    // CROSS JOIN keeps SQLite from putting the weather table on the outside.
+    static final SQLiteQueryBuilder sLatestWeatherQueryBuilder;
+
+    static{
+        sLatestWeatherQueryBuilder = new SQLiteQueryBuilder();
+        sLatestWeatherQueryBuilder.setTables(
+                WeatherContract.LocationEntry.TABLE_NAME + " CROSS JOIN " +
+                        WeatherContract.WeatherEntry.TABLE_NAME +
+                        " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
+                        "." + WeatherContract.WeatherEntry._ID + " = (SELECT latest." +
+                        WeatherContract.WeatherEntry._ID + " FROM " +
+                        WeatherContract.WeatherEntry.TABLE_NAME + " AS latest WHERE latest." +
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = " +
+                        WeatherContract.LocationEntry.TABLE_NAME + "." +
+                        WeatherContract.LocationEntry._ID + " AND latest." +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ORDER BY latest." +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " DESC LIMIT 1)");
+    }
+
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+    static final String sLocationSettingWithDateRangeSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
+
+    static final String sWeatherLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+    static final String sWeatherLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+    static final String sWeatherLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+    static final String sWeatherLocationIdWithDateRangeSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
 
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+    static final String sLocationIdWithDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " <= ? ";
 
-        String[] selectionArgs;
-        String selection;
+    // What pages are always sorted by.
+    static final String sDateOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    /**
+     * Reads the weather of one location, from the given date on or on that date only.
+     *
+     * @param date the first date wanted, 0 for all of them; or the only one if singleDay.
+     */
+    static Cursor queryWeatherByLocation(SQLiteDatabase db, String locationSetting, long date,
+                                         boolean singleDay, String[] projection,
+                                         String sortOrder) {
+        return queryWeatherByLocation(db, locationSetting, date,
+                singleDay ? date : Long.MAX_VALUE, null, projection, sortOrder);
+    }
+
+    /**
+     * Reads the weather of one location between two dates, as a bounded scan of the
+     * (location_id, date) index.
+     *
+     * Once the location setting has been resolved to an id, the weather table has all it
+     * takes to find the rows, so they are read from it alone, and any location columns in
+     * the projection are filled in from the location's cached row.  Only projections that
+     * need more than that (all columns, expressions, the location's _id) still go through
+     * the join.
+     *
+     * @param startDate the first date wanted, 0 for no bound.
+     * @param endDate the last date wanted, Long.MAX_VALUE for no bound.
+     * @param limit the most rows wanted, null for all of them.
+     */
+    static Cursor queryWeatherByLocation(SQLiteDatabase db, String locationSetting,
+                                         long startDate, long endDate, String limit,
+                                         String[] projection, String sortOrder) {
+        LocationIdCache cache = LocationIdCache.getInstance();
+        long locationId = cache.resolve(db, locationSetting);
+        if (locationId != -1) {
+            ContentValues location = cache.getLocation(db, locationId);
+            String[] weatherProjection = location != null ?
+                    buildWeatherOnlyProjection(projection, location) : null;
+            if (weatherProjection != null) {
+                return db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherEncoding.decodeProjection(weatherProjection, false),
+                        chooseSelection(startDate, endDate, sLocationIdSelection,
+                                sLocationIdWithStartDateSelection, sLocationIdAndDaySelection,
+                                sLocationIdWithDateRangeSelection),
+                        buildSelectionArgs(Long.toString(locationId), startDate, endDate),
+                        null,
+                        null,
+                        WeatherEncoding.decodeExpression(sortOrder),
+                        limit
+                );
+            }
+        }
+        return queryWeatherByLocationWithJoin(db, locationSetting, startDate, endDate, limit,
+                projection, sortOrder);
+    }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+    /**
+     * The weather of one location, read through the join with the location table.
+     */
+    static Cursor queryWeatherByLocationWithJoin(SQLiteDatabase db, String locationSetting,
+                                                 long date, boolean singleDay,
+                                                 String[] projection, String sortOrder) {
+        return queryWeatherByLocationWithJoin(db, locationSetting, date,
+                singleDay ? date : Long.MAX_VALUE, null, projection, sortOrder);
+    }
+
+    static Cursor queryWeatherByLocationWithJoin(SQLiteDatabase db, String locationSetting,
+                                                 long startDate, long endDate, String limit,
+                                                 String[] projection, String sortOrder) {
+        // Filtering on the weather table's location id, rather than on the joined location
+        // setting, lets SQLite pick the weather rows before it joins.
+        String location = locationSetting;
+        long locationId = LocationIdCache.getInstance().resolve(db, locationSetting);
+        String selection;
+        if (locationId != -1) {
+            location = Long.toString(locationId);
+            selection = chooseSelection(startDate, endDate, sWeatherLocationIdSelection,
+                    sWeatherLocationIdWithStartDateSelection, sWeatherLocationIdAndDaySelection,
+                    sWeatherLocationIdWithDateRangeSelection);
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selection = chooseSelection(startDate, endDate, sLocationSettingSelection,
+                    sLocationSettingWithStartDateSelection, sLocationSettingAndDaySelection,
+                    sLocationSettingWithDateRangeSelection);
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
+        return sWeatherByLocationSettingQueryBuilder.query(db,
+                WeatherEncoding.decodeProjection(projection, true),
                 selection,
-                selectionArgs,
+                buildSelectionArgs(location, startDate, endDate),
                 null,
                 null,
-                sortOrder
+                WeatherEncoding.decodeExpression(sortOrder),
+                limit
         );
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+    /**
+     * @return whichever of the selections the dates need: all days, from a date on, a
+     * single day or a range.  Each takes the location, then the dates buildSelectionArgs
+     * gives.
+     */
+    private static String chooseSelection(long startDate, long endDate, String allDays,
+                                          String fromDate, String singleDay,
+                                          String dateRange) {
+        if (endDate == Long.MAX_VALUE) {
+            return startDate == 0 ? allDays : fromDate;
+        }
+        return startDate == endDate ? singleDay : dateRange;
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+    private static String[] buildSelectionArgs(String location, long startDate,
+                                               long endDate) {
+        if (endDate == Long.MAX_VALUE) {
+            return startDate == 0 ? new String[]{location} :
+                    new String[]{location, Long.toString(startDate)};
+        }
+        return startDate == endDate ? new String[]{location, Long.toString(startDate)} :
+                new String[]{location, Long.toString(startDate), Long.toString(endDate)};
+    }
+
+    /**
+     * Rewrites a projection over the weather and location join into one over the weather
+     * table alone, with the location's columns as literals taken from its row.
+     *
+     * @return the rewritten projection, or null if it needs the join.
+     */
+    static String[] buildWeatherOnlyProjection(String[] projection, ContentValues location) {
+        if (projection == null) {
+            // All the columns of both tables.
+            return null;
+        }
+        String[] weatherProjection = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (!sPlainColumn.matcher(column).matches()) {
+                return null;
+            }
+            String name = column;
+            String table = null;
+            int dot = column.indexOf('.');
+            if (dot != -1) {
+                table = column.substring(0, dot);
+                name = column.substring(dot + 1);
+            }
+
+            if (location.containsKey(name) && (table == null ||
+                    WeatherContract.LocationEntry.TABLE_NAME.equals(table))) {
+                weatherProjection[i] = toSqlLiteral(location.get(name)) + " AS " + name;
+            } else if (table == null || WeatherContract.WeatherEntry.TABLE_NAME.equals(table)) {
+                weatherProjection[i] = column;
+            } else {
+                // Location columns we don't keep, like its _id.
+                return null;
+            }
+        }
+        return weatherProjection;
+    }
+
+    private static String toSqlLiteral(Object value) {
+        if (value == null) {
+            return "NULL";
+        } else if (value instanceof String) {
+            return DatabaseUtils.sqlEscapeString((String) value);
+        } else {
+            // Double.toString gives back exactly the double SQLite stored.
+            return value.toString();
+        }
     }
 
     static UriMatcher buildUriMatcher() {
@@ -114,11 +349,24 @@ public class WeatherProvider extends ContentProvider {
 
         // For each type of URI you want to add, create a corresponding code.
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
+        // Ahead of "weather/*", which would otherwise take them for location settings.
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" +
+                WeatherContract.PATH_TODAY, WEATHER_TODAY);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" +
+                WeatherContract.PATH_LATEST, WEATHER_LATEST);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_STATS, WEATHER_STATS);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", LOCATION_ID);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.PATH_NEAR, LOCATION_NEAR);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_STATS, SYNC_STATS);
+
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*", HISTORY_WITH_LOCATION);
 
         return matcher;
     }
@@ -135,28 +383,53 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
+        Uri notificationUri = uri;
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                retCursor = queryCached(uri, projection, sortOrder, true);
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = queryCached(uri, projection, sortOrder, false);
+                break;
+            }
+            // "weather/*/stats"
+            case WEATHER_STATS: {
+                retCursor = getStats(uri, projection);
+                // The weather it is worked out from is notified below the location.
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.StatsEntry.getLocationSettingFromUri(uri));
+                break;
+            }
+            // "weather/today"
+            case WEATHER_TODAY: {
+                retCursor = getLatestWeather(
+                        new DateNormalizer().normalize(System.currentTimeMillis()),
+                        projection, selection, selectionArgs, sortOrder);
+                notificationUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                break;
+            }
+            // "weather/latest"
+            case WEATHER_LATEST: {
+                retCursor = getLatestWeather(
+                        WeatherContract.WeatherEntry.getLatestDateFromUri(uri),
+                        projection, selection, selectionArgs, sortOrder);
+                notificationUri = WeatherContract.WeatherEntry.CONTENT_URI;
                 break;
             }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
+                        WeatherEncoding.decodeProjection(projection, false),
+                        WeatherEncoding.decodeExpression(selection),
                         selectionArgs,
                         null,
                         null,
-                        sortOrder
+                        WeatherEncoding.decodeExpression(sortOrder)
                 );
                 break;
             }
@@ -173,6 +446,15 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/near"
+            case LOCATION_NEAR: {
+                retCursor = new LocationGrid(mOpenHelper.getReadableDatabase()).queryNearest(
+                        WeatherContract.LocationEntry.getLatFromUri(uri),
+                        WeatherContract.LocationEntry.getLonFromUri(uri),
+                        WeatherContract.LocationEntry.getKFromUri(uri),
+                        projection);
+                break;
+            }
             // "location"
             case LOCATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -186,14 +468,147 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_stats"
+            case SYNC_STATS: {
+                // Read-only, and served from the stats ring rather than the database.
+                retCursor = new SyncStatsLog(getContext()).query(projection);
+                break;
+            }
+            // "history/*"
+            case HISTORY_WITH_LOCATION: {
+                retCursor = getHistory(uri, projection);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
+    /**
+     * Serves a query for one location from the QueryCache, running it on a miss.
+     *
+     * @param singleDay whether this is the weather/{location}/{date} query rather than
+     *                  weather/{location}.
+     */
+    private Cursor queryCached(Uri uri, String[] projection, String sortOrder,
+                               boolean singleDay) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long startDate;
+        long endDate;
+        String limit = null;
+        String cacheKey = QueryCache.buildKey(uri, projection, sortOrder);
+        if (singleDay) {
+            startDate = endDate = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        } else {
+            startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+            endDate = WeatherContract.WeatherEntry.getEndDateFromUri(uri);
+            long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+            int rows = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+            if (afterDate != -1 || rows > 0) {
+                // A page: the days after the last one of the page before, in date order.
+                // Dates are whole numbers, so "after" is the same bound as "from the next".
+                startDate = Math.max(startDate, afterDate + 1);
+                sortOrder = sDateOrder;
+            }
+            if (rows > 0) {
+                limit = Integer.toString(rows);
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        QueryCache cache = QueryCache.getInstance();
+        if (!cache.isEnabled()) {
+            return queryWeatherByLocation(db, locationSetting, startDate, endDate, limit,
+                    projection, sortOrder);
+        }
+
+        Cursor cursor = cache.get(cacheKey);
+        if (cursor != null) {
+            return cursor;
+        }
+        long generation = cache.getGeneration();
+        cursor = queryWeatherByLocation(db, locationSetting, startDate, endDate, limit,
+                projection, sortOrder);
+        return cache.put(cacheKey, locationSetting, startDate, endDate, cursor, generation);
+    }
+
+    /**
+     * One row for every location that has weather: its day on the given date, or the latest
+     * one before it.  A selection, on either table, is applied on top.
+     */
+    private Cursor getLatestWeather(long date, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        // The date goes first, for the ? in the join.
+        String[] args = new String[1 + (selectionArgs != null ? selectionArgs.length : 0)];
+        args[0] = Long.toString(date);
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+        return sLatestWeatherQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                WeatherEncoding.decodeProjection(projection, true),
+                WeatherEncoding.decodeExpression(selection),
+                args,
+                null,
+                null,
+                WeatherEncoding.decodeExpression(sortOrder)
+        );
+    }
+
+    /**
+     * The statistics of one location, served from the QueryCache like its weather, and
+     * dropped from it by the same writes.  Always in date order, so there is no sort order.
+     */
+    private Cursor getStats(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.StatsEntry.getLocationSettingFromUri(uri);
+        QueryCache cache = QueryCache.getInstance();
+        String cacheKey = QueryCache.buildKey(uri, projection, null);
+        if (cache.isEnabled()) {
+            Cursor cursor = cache.get(cacheKey);
+            if (cursor != null) {
+                return cursor;
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long generation = cache.getGeneration();
+        DateNormalizer dates = new DateNormalizer();
+        long fromDate = WeatherContract.StatsEntry.getFromDateFromUri(uri);
+        long toDate = WeatherContract.StatsEntry.getToDateFromUri(uri);
+        WeatherStats stats = new WeatherStats(db,
+                LocationIdCache.getInstance().resolve(db, locationSetting),
+                fromDate != 0 ? dates.normalize(fromDate) : 0,
+                toDate != Long.MAX_VALUE ? dates.normalize(toDate) : Long.MAX_VALUE,
+                WeatherContract.StatsEntry.getBucketFromUri(uri));
+        Cursor cursor = stats.query(projection);
+        if (!cache.isEnabled()) {
+            return cursor;
+        }
+        return cache.put(cacheKey, locationSetting, stats.getStartDate(), stats.getEndDate(),
+                cursor, generation);
+    }
+
+    /**
+     * The rollups of one location and period, oldest first.  Always in date order, so the
+     * sort order is ignored.
+     */
+    private Cursor getHistory(Uri uri, String[] projection) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long locationId = LocationIdCache.getInstance().resolve(db,
+                WeatherContract.HistoryEntry.getLocationSettingFromUri(uri));
+        return db.query(WeatherContract.HistoryEntry.TABLE_NAME,
+                WeatherRetention.decodeProjection(projection),
+                WeatherRetention.HISTORY_SELECTION,
+                new String[]{Long.toString(locationId), Integer.toString(
+                        WeatherContract.HistoryEntry.getPeriodFromUri(uri))},
+                null,
+                null,
+                WeatherRetention.HISTORY_SORT_ORDER
+        );
+    }
+
     @Override
     public String getType(Uri uri) {
 
@@ -207,10 +622,21 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_STATS:
+                return WeatherContract.StatsEntry.CONTENT_TYPE;
+            case WEATHER_TODAY:
+            case WEATHER_LATEST:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
             case LOCATION_ID:
                 return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case LOCATION_NEAR:
+                return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_STATS:
+                return WeatherContract.SyncStatsEntry.CONTENT_TYPE;
+            case HISTORY_WITH_LOCATION:
+                return WeatherContract.HistoryEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -224,58 +650,173 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
-                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                normalizeDate(values, new DateNormalizer());
+                WeatherChanges changes = new WeatherChanges();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+                        WeatherBulkWriter.canWrite(values)) {
+                    // Inserting a day we already have updates it, like bulkInsert does.
+                    returnUri = storeWeather(db, values, changes);
+                } else {
+                    if (storeCondition(db, values)) {
+                        changes.addEverything();
+                    }
+                    long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            WeatherEncoding.encodeValues(values));
+                    if ( _id > 0 )
+                        returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                    else
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    addChangedRow(changes, values);
+                }
+                notifyChanges(db, changes);
+                return returnUri;
             }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
-                else
+                    LocationIdCache.getInstance().put(values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
+                } else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
+    /**
+     * Stores a weather row that {@link WeatherBulkWriter#canWrite} accepted, through the
+     * running batch's statements if there is one.
+     *
+     * @param changes where to add the row if it changed.
+     * @return the row's uri, marked unchanged if it was already stored with these values.
+     */
+    private Uri storeWeather(SQLiteDatabase db, ContentValues values, WeatherChanges changes) {
+        Batch batch = mBatch.get();
+        WeatherBulkWriter writer;
+        if (batch == null) {
+            writer = new WeatherBulkWriter(db);
+        } else {
+            if (batch.writer == null) {
+                batch.writer = new WeatherBulkWriter(db);
+            }
+            writer = batch.writer;
+        }
+        try {
+            int result = writer.write(values);
+            if (writer.hasChangedConditions()) {
+                changes.addEverything();
+            }
+            long _id = writer.getLastRowId();
+            if (result == UPSERT_UNCHANGED) {
+                return WeatherContract.WeatherEntry.buildUnchangedWeatherUri(_id);
+            }
+            changes.add(writer.getLastLocationId(), writer.getLastDate());
+            return WeatherContract.WeatherEntry.buildWeatherUri(_id);
+        } finally {
+            if (batch == null) {
+                writer.close();
+            }
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        WeatherChanges changes = null;
+        List<Uri> notifications = new ArrayList<Uri>();
         switch (match) {
             case WEATHER:
+                // Find out which locations and days are going before they're gone.
+                changes = new WeatherChanges();
+                String weatherSelection = WeatherEncoding.decodeExpression(selection);
+                changes.addSelection(db, weatherSelection, selectionArgs);
                 rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.WeatherEntry.TABLE_NAME, weatherSelection, selectionArgs);
                 break;
             case LOCATION:
-                rowsDeleted = db.delete(
-                        WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = deleteLocations(db, selection, selectionArgs, notifications);
+                if (rowsDeleted != 0) {
+                    LocationIdCache.getInstance().clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (selection == null || rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyChanges(db, changes);
+            } else {
+                notifyChange(uri);
+            }
+            for (Uri notification : notifications) {
+                notifyChange(notification);
+            }
+            mOpenHelper.checkpointIfNeeded(db, rowsDeleted);
         }
         return rowsDeleted;
     }
 
-    private void normalizeDate(ContentValues values) {
+    /**
+     * Deletes locations together with their weather and history.  Location ids get reused,
+     * so anything left behind would turn up as the days of the next location given the id.
+     *
+     * @param notifications where to add the uris of the weather and history that went too.
+     */
+    private int deleteLocations(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                List<Uri> notifications) {
+        db.beginTransaction();
+        try {
+            // Find out which locations are going, and their uris, before they're gone.
+            StringBuilder ids = new StringBuilder();
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID,
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                    selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    if (ids.length() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(cursor.getLong(0));
+                    notifications.add(
+                            WeatherContract.WeatherEntry.buildWeatherLocation(cursor.getString(1)));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            int rowsDeleted = db.delete(
+                    WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+            if (ids.length() > 0) {
+                // The ids are numbers we read ourselves, so they can go straight into the SQL.
+                db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN (" + ids + ")", null);
+                if (db.delete(WeatherContract.HistoryEntry.TABLE_NAME,
+                        WeatherContract.HistoryEntry.COLUMN_LOC_KEY + " IN (" + ids + ")",
+                        null) > 0) {
+                    notifications.add(WeatherContract.HistoryEntry.CONTENT_URI);
+                }
+            }
+            db.setTransactionSuccessful();
+            return rowsDeleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void normalizeDate(ContentValues values, DateNormalizer dates) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, dates.normalize(dateValue));
         }
     }
 
@@ -285,26 +826,210 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsUpdated;
+        WeatherChanges changes = null;
 
         switch (match) {
             case WEATHER:
-                normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                normalizeDate(values, new DateNormalizer());
+                selection = WeatherEncoding.decodeExpression(selection);
+                changes = new WeatherChanges();
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) ||
+                        values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // Rows moving between locations or days; simpler to tell everybody.
+                    changes.addEverything();
+                } else {
+                    changes.addSelection(db, selection, selectionArgs);
+                }
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+                    // Descriptions belong to the condition, not to the day.
+                    if (!values.containsKey(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+                        throw new IllegalArgumentException(
+                                "A description can only be updated with its weather_id");
+                    }
+                    if (storeCondition(db, values)) {
+                        changes.addEverything();
+                    }
+                }
+                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherEncoding.encodeValues(values), selection, selectionArgs);
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // Only a changed location setting can make a cached id wrong, but any
+                // change makes the cached rows stale.
+                if (rowsUpdated != 0) {
+                    if (values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                        LocationIdCache.getInstance().clear();
+                    } else {
+                        LocationIdCache.getInstance().clearLocations();
+                    }
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changes != null) {
+                notifyChanges(db, changes);
+            } else {
+                notifyChange(uri);
+            }
         }
         return rowsUpdated;
     }
 
+    /**
+     * Applies the operations in a single transaction: either all of them are stored or, if
+     * one fails, none are.  Observers hear about the changes once, after the commit, with
+     * a single notification per uri.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatch.get() != null) {
+            // Already inside a batch on this thread, which this one simply joins.
+            return super.applyBatch(operations);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = new Batch();
+        ContentProviderResult[] results;
+        boolean committed = false;
+        mBatch.set(batch);
+        db.beginTransaction();
+        try {
+            try {
+                results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                if (batch.writer != null) {
+                    batch.writer.close();
+                }
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            mBatch.remove();
+            if (!committed) {
+                // Locations the batch inserted were rolled back with it.
+                LocationIdCache.getInstance().clear();
+            }
+        }
+
+        batch.notifications.addAll(batch.weatherChanges.getUris(db));
+        for (Uri uri : coalesceNotifications(batch.notifications)) {
+            sendNotification(uri);
+        }
+        mOpenHelper.checkpointIfNeeded(db, results.length);
+        return results;
+    }
+
+    /**
+     * Runs HistoryEntry.METHOD_COMPACT: one chunk of the maintenance that moves old days
+     * from the weather table into the history.  The sync calls it until there is nothing
+     * more to do.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!WeatherContract.HistoryEntry.METHOD_COMPACT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherChanges changes = new WeatherChanges();
+        WeatherRetention.Result result =
+                new WeatherRetention(db).compact(System.currentTimeMillis(), changes);
+        if (result.daysRolledUp + result.rollupsDropped > 0) {
+            notifyChanges(db, changes);
+            notifyChange(WeatherContract.HistoryEntry.CONTENT_URI);
+            // Each day rolled up is deleted, and updates or inserts its week and month.
+            mOpenHelper.checkpointIfNeeded(db, 3 * result.daysRolledUp + result.rollupsDropped);
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(WeatherContract.HistoryEntry.KEY_DAYS_ROLLED_UP, result.daysRolledUp);
+        bundle.putInt(WeatherContract.HistoryEntry.KEY_ROLLUPS_DROPPED, result.rollupsDropped);
+        bundle.putBoolean(WeatherContract.HistoryEntry.KEY_HAS_MORE, result.hasMore);
+        return bundle;
+    }
+
+    /**
+     * Notifies the uris of the locations and days that changed.
+     */
+    private void notifyChanges(SQLiteDatabase db, WeatherChanges changes) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.weatherChanges.addAll(changes);
+            return;
+        }
+        for (Uri uri : changes.getUris(db)) {
+            notifyChange(uri);
+        }
+    }
+
+    private static void addChangedRow(WeatherChanges changes, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            changes.addEverything();
+        } else {
+            changes.add(locationId, date);
+        }
+    }
+
+    /**
+     * Tells observers about a change, or holds on to it until the running batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.notifications.add(uri);
+        } else {
+            sendNotification(uri);
+        }
+    }
+
+    /**
+     * Drops the cached results the change affects, then tells observers to requery.
+     */
+    private void sendNotification(Uri uri) {
+        QueryCache.getInstance().invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * A notification reaches the observers of every uri below the one notified, so there is
+     * no need to send one for a uri whose ancestor is already being notified.
+     *
+     * @return the uris that still need a notification, in the order they were first changed.
+     */
+    static List<Uri> coalesceNotifications(Set<Uri> uris) {
+        List<Uri> result = new ArrayList<Uri>(uris.size());
+        for (Uri uri : uris) {
+            boolean covered = false;
+            for (Uri other : uris) {
+                if (other != uri && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!ancestor.getAuthority().equals(uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorSegments = ancestor.getPathSegments();
+        List<String> segments = uri.getPathSegments();
+        return ancestorSegments.size() < segments.size() &&
+                ancestorSegments.equals(segments.subList(0, ancestorSegments.size()));
+    }
+
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -312,23 +1037,182 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER:
                 db.beginTransaction();
-                int returnCount = 0;
+                int inserted = 0;
+                int updated = 0;
+                int unchanged = 0;
+                WeatherChanges changes = new WeatherChanges();
+                DateNormalizer dates = new DateNormalizer();
+                // Rows shaped like the sync's go through statements compiled once for the
+                // whole batch.  Anything else takes the slower, general path.
+                WeatherBulkWriter writer =
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ?
+                                new WeatherBulkWriter(db) : null;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                        int result;
+                        if (writer != null && WeatherBulkWriter.canWrite(value)) {
+                            result = writer.write(value);
+                            if (result == UPSERT_INSERTED || result == UPSERT_UPDATED) {
+                                changes.add(writer.getLastLocationId(), writer.getLastDate());
+                            }
+                        } else {
+                            normalizeDate(value, dates);
+                            if (storeCondition(db, value)) {
+                                changes.addEverything();
+                            }
+                            result = upsertWeather(db, WeatherEncoding.encodeValues(value));
+                            if (result == UPSERT_INSERTED || result == UPSERT_UPDATED) {
+                                addChangedRow(changes, value);
+                            }
+                        }
+                        switch (result) {
+                            case UPSERT_INSERTED:
+                                inserted++;
+                                break;
+                            case UPSERT_UPDATED:
+                                updated++;
+                                break;
+                            case UPSERT_UNCHANGED:
+                                unchanged++;
+                                break;
                         }
                     }
+                    if (writer != null && writer.hasChangedConditions()) {
+                        changes.addEverything();
+                    }
                     db.setTransactionSuccessful();
                 } finally {
+                    if (writer != null) {
+                        writer.close();
+                    }
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                Log.v(LOG_TAG, "bulkInsert: " + inserted + " inserted, " + updated +
+                        " updated, " + unchanged + " unchanged");
+                // If the forecast we were given is the one we already had, nobody needs
+                // to requery.
+                int returnCount = inserted + updated;
+                if (!changes.isEmpty()) {
+                    notifyChanges(db, changes);
+                    mOpenHelper.checkpointIfNeeded(db, returnCount);
+                }
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
+
+    /**
+     * Keeps the description of a row's condition, if it has both.
+     *
+     * @return true if that changed the description of a condition we already had.
+     */
+    private static boolean storeCondition(SQLiteDatabase db, ContentValues values) {
+        Long weatherId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        String description = values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        return weatherId != null && description != null &&
+                WeatherEncoding.storeCondition(db, weatherId, description);
+    }
+
+    /**
+     * Stores a weather row, already encoded.  If we already have weather for that location
+     * and day, the existing row is updated in place, and only in the columns that actually
+     * changed, so it keeps its _id.  Rows without a location or a date are simply inserted.
+     *
+     * @return UPSERT_INSERTED, UPSERT_UPDATED, UPSERT_UNCHANGED or UPSERT_FAILED.
+     */
+    private int upsertWeather(SQLiteDatabase db, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values) != -1 ?
+                    UPSERT_INSERTED : UPSERT_FAILED;
+        }
+
+        // Read back just the columns we were given, plus the _id.
+        Set<Map.Entry<String, Object>> valueSet = values.valueSet();
+        String[] projection = new String[valueSet.size() + 1];
+        projection[0] = WeatherContract.WeatherEntry._ID;
+        int i = 1;
+        for (Map.Entry<String, Object> entry : valueSet) {
+            projection[i++] = entry.getKey();
+        }
+
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values) != -1 ?
+                        UPSERT_INSERTED : UPSERT_FAILED;
+            }
+
+            ContentValues changed = new ContentValues();
+            for (i = 1; i < projection.length; i++) {
+                Object value = values.get(projection[i]);
+                if (!isStoredValue(cursor, i, value)) {
+                    putValue(changed, projection[i], value);
+                }
+            }
+            if (changed.size() == 0) {
+                return UPSERT_UNCHANGED;
+            }
+            db.update(WeatherContract.WeatherEntry.TABLE_NAME, changed,
+                    WeatherContract.WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(cursor.getLong(0))});
+            return UPSERT_UPDATED;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if the cursor column already holds the given value.  Numbers are compared
+     * as doubles, which is exact for the integers the weather table stores.
+     */
+    private static boolean isStoredValue(Cursor cursor, int index, Object value) {
+        if (value == null) {
+            return cursor.isNull(index);
+        } else if (cursor.isNull(index)) {
+            return false;
+        } else if (value instanceof Number) {
+            return cursor.getDouble(index) == ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return (cursor.getInt(index) != 0) == (Boolean) value;
+        } else if (value instanceof byte[]) {
+            return Arrays.equals(cursor.getBlob(index), (byte[]) value);
+        } else {
+            return value.toString().equals(cursor.getString(index));
+        }
+    }
+
+    private static void putValue(ContentValues values, String key, Object value) {
+        if (value == null) {
+            values.putNull(key);
+        } else if (value instanceof String) {
+            values.put(key, (String) value);
+        } else if (value instanceof Double) {
+            values.put(key, (Double) value);
+        } else if (value instanceof Float) {
+            values.put(key, (Float) value);
+        } else if (value instanceof Long) {
+            values.put(key, (Long) value);
+        } else if (value instanceof Integer) {
+            values.put(key, (Integer) value);
+        } else if (value instanceof Short) {
+            values.put(key, (Short) value);
+        } else if (value instanceof Byte) {
+            values.put(key, (Byte) value);
+        } else if (value instanceof Boolean) {
+            values.put(key, (Boolean) value);
+        } else if (value instanceof byte[]) {
+            values.put(key, (byte[]) value);
+        } else {
+            values.put(key, value.toString());
+        }
+    }
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+
+/**
+ * Moves days between the weather table, the hot tier, and the rollups of the history, the
+ * cold tier.  See {@link HistoryEntry}.
+ *
+ * Each call to {@link #compact} does a bounded amount of work in its own transaction: it
+ * rolls up and removes at most chunkRows days, and drops at most chunkRows rollups, so the
+ * sync never holds the database long enough for the forecast list to notice.  Whatever is
+ * left over is reported, for the caller to come back for.
+ *
+ * Rollups keep sums rather than means, in the hundredths WeatherEncoding stores, so a
+ * week or month that is rolled up over several chunks, or several syncs, ends up exactly
+ * as if it had been rolled up at once.  Needs API 11, for executeUpdateDelete.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class WeatherRetention {
+    private static final String LOG_TAG = WeatherRetention.class.getSimpleName();
+
+    // The sum over the days of a rollup of min + max, each day's mean being half that.
+    static final String COLUMN_TEMP_SUM = "temp_sum";
+
+    static final String SQL_CREATE_ROLLUP_TABLE = "CREATE TABLE " + HistoryEntry.TABLE_NAME +
+            " (" + HistoryEntry._ID + " INTEGER PRIMARY KEY, " +
+            HistoryEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            HistoryEntry.COLUMN_PERIOD + " INTEGER NOT NULL, " +
+            HistoryEntry.COLUMN_START_DATE + " INTEGER NOT NULL, " +
+            HistoryEntry.COLUMN_DAYS + " INTEGER NOT NULL, " +
+            HistoryEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+            HistoryEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+            COLUMN_TEMP_SUM + " INTEGER NOT NULL, " +
+            " FOREIGN KEY (" + HistoryEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + HistoryEntry.COLUMN_LOC_KEY + ", " + HistoryEntry.COLUMN_PERIOD +
+            ", " + HistoryEntry.COLUMN_START_DATE + "));";
+
+    // Expiring weeks and dropping the oldest rollups go by date across every location.
+    static final String SQL_CREATE_ROLLUP_START_DATE_INDEX =
+            "CREATE INDEX weather_rollup_start_date ON " + HistoryEntry.TABLE_NAME + " (" +
+                    HistoryEntry.COLUMN_START_DATE + ")";
+
+    // Weekly rollups older than this many weeks are dropped; their months remain.
+    static final int WEEKLY_ROLLUP_WEEKS = 26;
+
+    // Once the pages in use take more than this, the oldest rollups are dropped.
+    static final long DEFAULT_MAX_DATABASE_BYTES = 4 * 1024 * 1024;
+
+    static final int DEFAULT_CHUNK_ROWS = 256;
+
+    // The oldest days past the cutoff, in the order the UNIQUE (date, location_id) index
+    // already has them.
+    static final String SELECT_OLD_DAYS_SQL = "SELECT " + WeatherEntry._ID + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP +
+            " FROM " + WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_DATE +
+            " < ? ORDER BY " + WeatherEntry.COLUMN_DATE + " LIMIT ?";
+    static final String DELETE_DAY_SQL = "DELETE FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry._ID + " = ?";
+
+    static final String ROLLUP_UPDATE_SQL = "UPDATE " + HistoryEntry.TABLE_NAME + " SET " +
+            HistoryEntry.COLUMN_DAYS + " = " + HistoryEntry.COLUMN_DAYS + " + ?4, " +
+            HistoryEntry.COLUMN_MIN_TEMP + " = MIN(" + HistoryEntry.COLUMN_MIN_TEMP + ", ?5), " +
+            HistoryEntry.COLUMN_MAX_TEMP + " = MAX(" + HistoryEntry.COLUMN_MAX_TEMP + ", ?6), " +
+            COLUMN_TEMP_SUM + " = " + COLUMN_TEMP_SUM + " + ?7 WHERE " +
+            HistoryEntry.COLUMN_LOC_KEY + " = ?1 AND " + HistoryEntry.COLUMN_PERIOD +
+            " = ?2 AND " + HistoryEntry.COLUMN_START_DATE + " = ?3";
+    static final String ROLLUP_INSERT_SQL = "INSERT INTO " + HistoryEntry.TABLE_NAME + " (" +
+            HistoryEntry.COLUMN_LOC_KEY + ", " + HistoryEntry.COLUMN_PERIOD + ", " +
+            HistoryEntry.COLUMN_START_DATE + ", " + HistoryEntry.COLUMN_DAYS + ", " +
+            HistoryEntry.COLUMN_MIN_TEMP + ", " + HistoryEntry.COLUMN_MAX_TEMP + ", " +
+            COLUMN_TEMP_SUM + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7)";
+
+    // The rollups one chunk drops: the weekly ones, or those of any period, that start
+    // before a date, oldest first.
+    private static final String EXPIRING_WEEKS = "SELECT " + HistoryEntry._ID + " FROM " +
+            HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.COLUMN_START_DATE + " < ? AND " +
+            HistoryEntry.COLUMN_PERIOD + " = " + HistoryEntry.PERIOD_WEEK + " ORDER BY " +
+            HistoryEntry.COLUMN_START_DATE + " LIMIT ?";
+    private static final String OLDEST_ROLLUPS = "SELECT " + HistoryEntry._ID + " FROM " +
+            HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.COLUMN_START_DATE +
+            " < ? ORDER BY " + HistoryEntry.COLUMN_START_DATE + " LIMIT ?";
+    static final String EXPIRE_WEEKS_SQL = "DELETE FROM " + HistoryEntry.TABLE_NAME +
+            " WHERE " + HistoryEntry._ID + " IN (" + EXPIRING_WEEKS + ")";
+    static final String DROP_OLDEST_SQL = "DELETE FROM " + HistoryEntry.TABLE_NAME +
+            " WHERE " + HistoryEntry._ID + " IN (" + OLDEST_ROLLUPS + ")";
+    // The locations of the rollups those would drop, once for each rollup.
+    static final String EXPIRING_WEEK_LOCATIONS_SQL = "SELECT " + HistoryEntry.COLUMN_LOC_KEY +
+            " FROM " + HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry._ID + " IN (" +
+            EXPIRING_WEEKS + ")";
+    static final String OLDEST_ROLLUP_LOCATIONS_SQL = "SELECT " +
+            HistoryEntry.COLUMN_LOC_KEY + " FROM " + HistoryEntry.TABLE_NAME + " WHERE " +
+            HistoryEntry._ID + " IN (" + OLDEST_ROLLUPS + ")";
+
+    // What a null projection gets.
+    static final String[] HISTORY_COLUMNS = {
+            HistoryEntry._ID,
+            HistoryEntry.COLUMN_LOC_KEY,
+            HistoryEntry.COLUMN_PERIOD,
+            HistoryEntry.COLUMN_START_DATE,
+            HistoryEntry.COLUMN_DAYS,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_MEAN_TEMP
+    };
+
+    static final String HISTORY_SELECTION = HistoryEntry.COLUMN_LOC_KEY + " = ? AND " +
+            HistoryEntry.COLUMN_PERIOD + " = ? ";
+    static final String HISTORY_SORT_ORDER = HistoryEntry.COLUMN_START_DATE + " ASC";
+
+    private static final int TEMP_SCALE = WeatherEncoding.getScale(WeatherEntry.COLUMN_MIN_TEMP);
+
+    /**
+     * What one call to {@link #compact} did.
+     */
+    static class Result {
+        int daysRolledUp;
+        int rollupsDropped;
+        // Whether a chunk ran out before the work did.
+        boolean hasMore;
+    }
+
+    // One week or month of a location, as far as this chunk has seen it.
+    private static class Rollup {
+        long locationId;
+        int period;
+        long startDate;
+        int days;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long tempSum;
+    }
+
+    private final SQLiteDatabase mDb;
+    private final long mMaxDatabaseBytes;
+    private final int mChunkRows;
+
+    WeatherRetention(SQLiteDatabase db) {
+        this(db, DEFAULT_MAX_DATABASE_BYTES, DEFAULT_CHUNK_ROWS);
+    }
+
+    /**
+     * @param maxDatabaseBytes the budget for the pages in use, so tests can go over it.
+     * @param chunkRows the most days, and the most rollups, one call moves or drops.
+     */
+    WeatherRetention(SQLiteDatabase db, long maxDatabaseBytes, int chunkRows) {
+        mDb = db;
+        mMaxDatabaseBytes = maxDatabaseBytes;
+        mChunkRows = chunkRows;
+    }
+
+    /**
+     * Runs one chunk of the maintenance, in a transaction of its own:
+     * - if the database is over budget, drops the oldest rollups, or if there are none,
+     *   rolls up every day before today;
+     * - rolls up the days before the last HOT_DAYS, oldest first, and removes them;
+     * - drops the weekly rollups older than WEEKLY_ROLLUP_WEEKS.
+     *
+     * @param now the current time, in milliseconds since the epoch.
+     * @param changes where to add the days removed from the weather table, and the
+     *                locations whose rollups were dropped, since their statistics change.
+     */
+    Result compact(long now, WeatherChanges changes) {
+        Calendar calendar = Calendar.getInstance();
+        long today = new DateNormalizer().normalize(now);
+        long hotCutoff = addDays(calendar, today, -HistoryEntry.HOT_DAYS);
+        long weekCutoff = addDays(calendar, today, -7 * WEEKLY_ROLLUP_WEEKS);
+
+        Result result = new Result();
+        mDb.beginTransaction();
+        try {
+            boolean overBudget = getUsedBytes() > mMaxDatabaseBytes;
+            long cutoff = hotCutoff;
+            if (overBudget) {
+                result.rollupsDropped = drop(DROP_OLDEST_SQL, OLDEST_ROLLUP_LOCATIONS_SQL,
+                        today, changes);
+                if (result.rollupsDropped == 0) {
+                    // Nothing cold left to give up, so the hot tier shrinks to the forecast.
+                    cutoff = today;
+                }
+            }
+            result.daysRolledUp = rollUp(cutoff, changes, calendar);
+            result.rollupsDropped += drop(EXPIRE_WEEKS_SQL, EXPIRING_WEEK_LOCATIONS_SQL,
+                    weekCutoff, changes);
+            result.hasMore = result.daysRolledUp == mChunkRows ||
+                    result.rollupsDropped == mChunkRows ||
+                    (overBudget && result.daysRolledUp + result.rollupsDropped > 0);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (result.daysRolledUp + result.rollupsDropped > 0) {
+            Log.v(LOG_TAG, "compact: " + result.daysRolledUp + " days rolled up, " +
+                    result.rollupsDropped + " rollups dropped");
+        }
+        return result;
+    }
+
+    /**
+     * Rolls up the oldest chunkRows days before the cutoff into their weeks and months,
+     * and removes them.
+     *
+     * @return the number of days removed.
+     */
+    private int rollUp(long cutoff, WeatherChanges changes, Calendar calendar) {
+        LinkedHashMap<String, Rollup> rollups = new LinkedHashMap<String, Rollup>();
+        SQLiteStatement delete = mDb.compileStatement(DELETE_DAY_SQL);
+        int days = 0;
+        Cursor cursor = mDb.rawQuery(SELECT_OLD_DAYS_SQL,
+                new String[]{Long.toString(cutoff), Integer.toString(mChunkRows)});
+        try {
+            while (cursor.moveToNext()) {
+                long locationId = cursor.getLong(1);
+                long date = cursor.getLong(2);
+                long min = cursor.getLong(3);
+                long max = cursor.getLong(4);
+                add(rollups, locationId, HistoryEntry.PERIOD_WEEK,
+                        getWeekStart(calendar, date), min, max);
+                add(rollups, locationId, HistoryEntry.PERIOD_MONTH,
+                        getMonthStart(calendar, date), min, max);
+
+                delete.bindLong(1, cursor.getLong(0));
+                delete.executeUpdateDelete();
+                changes.add(locationId, date);
+                days++;
+            }
+        } finally {
+            cursor.close();
+            delete.close();
+        }
+
+        if (!rollups.isEmpty()) {
+            storeRollups(rollups);
+        }
+        return days;
+    }
+
+    private void storeRollups(LinkedHashMap<String, Rollup> rollups) {
+        SQLiteStatement update = mDb.compileStatement(ROLLUP_UPDATE_SQL);
+        SQLiteStatement insert = mDb.compileStatement(ROLLUP_INSERT_SQL);
+        try {
+            for (Rollup rollup : rollups.values()) {
+                bind(update, rollup);
+                if (update.executeUpdateDelete() == 0) {
+                    bind(insert, rollup);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            update.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Drops at most chunkRows rollups that start before the given date, oldest first.
+     *
+     * @param sql EXPIRE_WEEKS_SQL, or DROP_OLDEST_SQL for any period.
+     * @param locationsSql the query for the locations of the rollups sql drops.
+     * @return the number of rollups dropped.
+     */
+    private int drop(String sql, String locationsSql, long before, WeatherChanges changes) {
+        String[] args = {Long.toString(before), Integer.toString(mChunkRows)};
+        Cursor cursor = mDb.rawQuery(locationsSql, args);
+        try {
+            while (cursor.moveToNext()) {
+                changes.addLocation(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        SQLiteStatement statement = mDb.compileStatement(sql);
+        try {
+            statement.bindLong(1, before);
+            statement.bindLong(2, mChunkRows);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return the bytes taken by the pages in use.  Pages freed by a delete are reused
+     * before the file grows again, so this is what keeps the file within budget.
+     */
+    private long getUsedBytes() {
+        long pageCount = DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null);
+        long pageSize = DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+        return (pageCount - freePages) * pageSize;
+    }
+
+    /**
+     * Rewrites a projection of the contract's history columns into one over the rollup
+     * table, as it stores them.
+     */
+    static String[] decodeProjection(String[] projection) {
+        if (projection == null) {
+            projection = HISTORY_COLUMNS;
+        }
+        String[] decoded = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (HistoryEntry.COLUMN_MIN_TEMP.equals(column) ||
+                    HistoryEntry.COLUMN_MAX_TEMP.equals(column)) {
+                decoded[i] = column + " / " + TEMP_SCALE + ".0 AS " + column;
+            } else if (HistoryEntry.COLUMN_MEAN_TEMP.equals(column)) {
+                decoded[i] = COLUMN_TEMP_SUM + " / (" + HistoryEntry.COLUMN_DAYS + " * " +
+                        (2 * TEMP_SCALE) + ".0) AS " + column;
+            } else {
+                decoded[i] = column;
+            }
+        }
+        return decoded;
+    }
+
+    private static void add(LinkedHashMap<String, Rollup> rollups, long locationId,
+                            int period, long startDate, long min, long max) {
+        String key = locationId + "/" + period + "/" + startDate;
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            rollup = new Rollup();
+            rollup.locationId = locationId;
+            rollup.period = period;
+            rollup.startDate = startDate;
+            rollups.put(key, rollup);
+        }
+        rollup.days++;
+        rollup.min = Math.min(rollup.min, min);
+        rollup.max = Math.max(rollup.max, max);
+        rollup.tempSum += min + max;
+    }
+
+    private static void bind(SQLiteStatement statement, Rollup rollup) {
+        statement.bindLong(1, rollup.locationId);
+        statement.bindLong(2, rollup.period);
+        statement.bindLong(3, rollup.startDate);
+        statement.bindLong(4, rollup.days);
+        statement.bindLong(5, rollup.min);
+        statement.bindLong(6, rollup.max);
+        statement.bindLong(7, rollup.tempSum);
+    }
+
+    /*
+        Dates are local midnights, which calendar arithmetic keeps them at, even across a
+        daylight saving change that adding multiples of 24 hours would trip over.
+     */
+
+    /**
+     * @return the normalized date of the first day of the week the date falls in, by the
+     * week the locale starts on.
+     */
+    static long getWeekStart(Calendar calendar, long date) {
+        calendar.setTimeInMillis(date);
+        int daysIntoWeek = (calendar.get(Calendar.DAY_OF_WEEK) -
+                calendar.getFirstDayOfWeek() + 7) % 7;
+        return addDays(calendar, date, -daysIntoWeek);
+    }
+
+    /**
+     * @return the normalized date of the first day of the month the date falls in.
+     */
+    static long getMonthStart(Calendar calendar, long date) {
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long addDays(Calendar calendar, long date, int days) {
+        calendar.setTimeInMillis(date);
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return calendar.getTimeInMillis();
+    }
+}
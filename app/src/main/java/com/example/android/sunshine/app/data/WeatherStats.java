@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+
+/**
+ * Works out the statistics of one location by day, week or month for weather/{location}/stats.
+ * See {@link StatsEntry}.
+ *
+ * Each bucket is a single aggregate over a bounded range of the (location_id, date) index.
+ * For weeks and months the rollup of the same period is added in, found by its UNIQUE
+ * (location_id, period, start_date) index.  The two add up because rollups keep sums in the
+ * same hundredths the weather table stores.  A query's buckets are run as one compound
+ * SELECT of MAX_BUCKETS at a time.  There is no GROUP BY for SQLite to sort, and nothing
+ * but the result rows ever reaches the heap.
+ */
+class WeatherStats {
+
+    // Buckets per statement, well under SQLite's 500 terms in a compound SELECT.
+    static final int MAX_BUCKETS = 100;
+
+    // What a null projection gets.
+    static final String[] STATS_COLUMNS = {
+            StatsEntry.COLUMN_START_DATE,
+            StatsEntry.COLUMN_DAYS,
+            StatsEntry.COLUMN_MIN_TEMP,
+            StatsEntry.COLUMN_MAX_TEMP,
+            StatsEntry.COLUMN_MEAN_TEMP
+    };
+
+    // Where the weather of a location starts and ends when the uri leaves it open.
+    static final String FIRST_DAY_SQL = "SELECT MIN(" + WeatherEntry.COLUMN_DATE + ") FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ?";
+    static final String LAST_DAY_SQL = "SELECT MAX(" + WeatherEntry.COLUMN_DATE + ") FROM " +
+            WeatherEntry.TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ?";
+    static final String FIRST_ROLLUP_SQL = "SELECT MIN(" + HistoryEntry.COLUMN_START_DATE +
+            ") FROM " + HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.COLUMN_LOC_KEY +
+            " = ? AND " + HistoryEntry.COLUMN_PERIOD + " = ?";
+    static final String LAST_ROLLUP_SQL = "SELECT MAX(" + HistoryEntry.COLUMN_START_DATE +
+            ") FROM " + HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.COLUMN_LOC_KEY +
+            " = ? AND " + HistoryEntry.COLUMN_PERIOD + " = ?";
+
+    private static final int TEMP_SCALE = WeatherEncoding.getScale(WeatherEntry.COLUMN_MIN_TEMP);
+
+    private final SQLiteDatabase mDb;
+    private final long mLocationId;
+    // The HistoryEntry period the buckets are, or 0 for days, which have no rollups.
+    private final int mPeriod;
+    private final long mStartDate;
+    private final long mEndDate;
+    // The first date of each bucket, then the day after the last one.
+    private final long[] mBounds;
+
+    /**
+     * @param locationId the location, -1 for one that isn't known.
+     * @param fromDate the first normalized date wanted, 0 for the oldest there is.
+     * @param toDate the last normalized date wanted, Long.MAX_VALUE for the newest there is.
+     * @param bucket one of the StatsEntry BUCKET_ values.
+     */
+    WeatherStats(SQLiteDatabase db, long locationId, long fromDate, long toDate,
+                 String bucket) {
+        mDb = db;
+        mLocationId = locationId;
+        if (StatsEntry.BUCKET_DAY.equals(bucket)) {
+            mPeriod = 0;
+        } else if (StatsEntry.BUCKET_WEEK.equals(bucket)) {
+            mPeriod = HistoryEntry.PERIOD_WEEK;
+        } else if (StatsEntry.BUCKET_MONTH.equals(bucket)) {
+            mPeriod = HistoryEntry.PERIOD_MONTH;
+        } else {
+            throw new IllegalArgumentException("Unknown stats bucket: " + bucket);
+        }
+
+        // The buckets only span the days there is weather for, however wide the range
+        // asked for, so a range from 1970 doesn't run a bucket for every empty day since.
+        long first = 0;
+        long last = 0;
+        if (locationId != -1) {
+            first = earliest(queryDate(FIRST_DAY_SQL, false), queryDate(FIRST_ROLLUP_SQL, true));
+            last = Math.max(queryDate(LAST_DAY_SQL, false), queryDate(LAST_ROLLUP_SQL, true));
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        ArrayList<Long> bounds = new ArrayList<Long>();
+        long start = 0;
+        // With no weather to go by, there are no buckets.
+        if (first != 0) {
+            first = Math.max(first, fromDate);
+            last = Math.min(last, toDate);
+            start = getBucketStart(calendar, first);
+            while (start <= last) {
+                bounds.add(start);
+                start = getNextBucketStart(calendar, start);
+            }
+        }
+        bounds.add(start);
+        mBounds = new long[bounds.size()];
+        for (int i = 0; i < mBounds.length; i++) {
+            mBounds[i] = bounds.get(i);
+        }
+
+        // The result depends on the whole range asked for, since weather written later
+        // where there is none yet adds buckets.  An open end covers all the dates past it.
+        if (fromDate == 0 || mBounds.length < 2) {
+            mStartDate = fromDate;
+        } else {
+            mStartDate = Math.min(fromDate, mBounds[0]);
+        }
+        if (toDate == Long.MAX_VALUE || mBounds.length < 2) {
+            mEndDate = toDate;
+        } else {
+            mEndDate = Math.max(toDate, mBounds[mBounds.length - 1] - 1);
+        }
+    }
+
+    /**
+     * @return the first date whose weather the statistics depend on.
+     */
+    long getStartDate() {
+        return mStartDate;
+    }
+
+    /**
+     * @return the last date whose weather the statistics depend on.
+     */
+    long getEndDate() {
+        return mEndDate;
+    }
+
+    Cursor query(String[] projection) {
+        if (projection == null) {
+            projection = STATS_COLUMNS;
+        }
+        int buckets = mBounds.length - 1;
+        if (buckets <= 0) {
+            return new MatrixCursor(projection, 0);
+        }
+        String[] args = mPeriod == 0 ? new String[]{Long.toString(mLocationId)} :
+                new String[]{Long.toString(mLocationId), Integer.toString(mPeriod)};
+        Cursor[] cursors = new Cursor[(buckets + MAX_BUCKETS - 1) / MAX_BUCKETS];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = mDb.rawQuery(buildQuery(projection, i * MAX_BUCKETS,
+                    Math.min(buckets, (i + 1) * MAX_BUCKETS)), args);
+        }
+        return cursors.length == 1 ? cursors[0] : new MergeCursor(cursors);
+    }
+
+    /**
+     * Builds the statement for buckets first to end, not included.  It takes the location
+     * id as ?1 and, for weeks and months, the period as ?2; the dates are written in.
+     *
+     * SQLite runs the terms of a UNION ALL in the order they're written, which keeps the
+     * buckets in date order without asking it to sort them.
+     */
+    String buildQuery(String[] projection, int first, int end) {
+        StringBuilder sql = new StringBuilder();
+        for (int bucket = first; bucket < end; bucket++) {
+            long start = mBounds[bucket];
+            if (bucket > first) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT ");
+            for (int i = 0; i < projection.length; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(buildColumn(projection[i], start)).append(" AS ")
+                        .append(projection[i]);
+            }
+            sql.append(" FROM ").append(WeatherEntry.TABLE_NAME).append(" WHERE ")
+                    .append(WeatherEntry.COLUMN_LOC_KEY).append(" = ?1 AND ")
+                    .append(WeatherEntry.COLUMN_DATE).append(" >= ").append(start)
+                    .append(" AND ").append(WeatherEntry.COLUMN_DATE).append(" < ")
+                    .append(mBounds[bucket + 1]);
+        }
+        return sql.toString();
+    }
+
+    private String buildColumn(String column, long start) {
+        boolean rollups = mPeriod != 0;
+        String days = "COUNT(*)";
+        if (rollups) {
+            days += " + IFNULL(" + buildRollup(HistoryEntry.COLUMN_DAYS, start) + ", 0)";
+        }
+
+        if (StatsEntry.COLUMN_START_DATE.equals(column)) {
+            return Long.toString(start);
+        } else if (StatsEntry.COLUMN_DAYS.equals(column)) {
+            return days;
+        } else if (StatsEntry.COLUMN_MIN_TEMP.equals(column) ||
+                StatsEntry.COLUMN_MAX_TEMP.equals(column)) {
+            String function = StatsEntry.COLUMN_MIN_TEMP.equals(column) ? "MIN" : "MAX";
+            String extreme = function + "(" + column + ")";
+            if (rollups) {
+                // The two-argument MIN and MAX are null if either is, so take whichever
+                // there is when there aren't both.
+                String rollup = buildRollup(column, start);
+                extreme = "COALESCE(" + function + "(" + extreme + ", " + rollup + "), " +
+                        extreme + ", " + rollup + ")";
+            }
+            return extreme + " / " + TEMP_SCALE + ".0";
+        } else if (StatsEntry.COLUMN_MEAN_TEMP.equals(column)) {
+            String sum = "SUM(" + WeatherEntry.COLUMN_MIN_TEMP + " + " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ")";
+            if (rollups) {
+                sum = "IFNULL(" + sum + ", 0) + IFNULL(" +
+                        buildRollup(WeatherRetention.COLUMN_TEMP_SUM, start) + ", 0)";
+            }
+            // No days divides by zero, which SQLite answers with null.
+            return "(" + sum + ") / ((" + days + ") * " + (2 * TEMP_SCALE) + ".0)";
+        }
+        throw new IllegalArgumentException("Unknown stats column: " + column);
+    }
+
+    private static String buildRollup(String column, long start) {
+        return "(SELECT " + column + " FROM " + HistoryEntry.TABLE_NAME + " WHERE " +
+                HistoryEntry.COLUMN_LOC_KEY + " = ?1 AND " + HistoryEntry.COLUMN_PERIOD +
+                " = ?2 AND " + HistoryEntry.COLUMN_START_DATE + " = " + start + ")";
+    }
+
+    /**
+     * @return the date the query gives, or 0 if it gives none.
+     */
+    private long queryDate(String sql, boolean rollups) {
+        if (rollups && mPeriod == 0) {
+            return 0;
+        }
+        String[] args = rollups ?
+                new String[]{Long.toString(mLocationId), Integer.toString(mPeriod)} :
+                new String[]{Long.toString(mLocationId)};
+        // A MIN or MAX over no rows is null, which comes back as 0.
+        return DatabaseUtils.longForQuery(mDb, sql, args);
+    }
+
+    private static long earliest(long date, long otherDate) {
+        if (date == 0 || otherDate == 0) {
+            return date == 0 ? otherDate : date;
+        }
+        return Math.min(date, otherDate);
+    }
+
+    private long getBucketStart(Calendar calendar, long date) {
+        switch (mPeriod) {
+            case HistoryEntry.PERIOD_WEEK:
+                return WeatherRetention.getWeekStart(calendar, date);
+            case HistoryEntry.PERIOD_MONTH:
+                return WeatherRetention.getMonthStart(calendar, date);
+            default:
+                return date;
+        }
+    }
+
+    private long getNextBucketStart(Calendar calendar, long start) {
+        calendar.setTimeInMillis(start);
+        switch (mPeriod) {
+            case HistoryEntry.PERIOD_WEEK:
+                calendar.add(Calendar.DAY_OF_MONTH, 7);
+                break;
+            case HistoryEntry.PERIOD_MONTH:
+                calendar.add(Calendar.MONTH, 1);
+                break;
+            default:
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                break;
+        }
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Parses the OpenWeatherMap daily forecast response and hands every day to a {@link Listener}
+ * as soon as it has been read.
+ *
+ * The streaming parser reads straight from the connection, so neither the full response
+ * string nor a JSONObject tree is ever built.  The tree parser is kept for devices that
+ * predate {@link JsonReader} (API 11).
+ */
+public class ForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    /**
+     * Receives the parsed forecast.  The city may be reported before or after the days,
+     * depending on the order the server wrote the document in.
+     */
+    public interface Listener {
+        public void onCity(String cityName, double lat, double lon);
+
+        /**
+         * @param dayIndex zero-based position of the day in the forecast, today being 0.
+         * @param day the values for that day.  The instance is reused for the next day, so
+         *            copy out anything that needs to be kept.
+         */
+        public void onDay(int dayIndex, DayForecast day);
+    }
+
+    /**
+     * The values we keep for a single day of the forecast.
+     */
+    public static final class DayForecast {
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        void clear() {
+            pressure = 0;
+            humidity = 0;
+            windSpeed = 0;
+            windDirection = 0;
+            high = 0;
+            low = 0;
+            description = null;
+            weatherId = 0;
+        }
+    }
+
+    private final DayForecast mDay = new DayForecast();
+
+    // The fields every day must have, as readDay finds them.  The tree parser's getters
+    // insist on the same ones, so both parsers turn down the same forecasts rather than
+    // storing zeros for what a day left out.
+    private static final String[] REQUIRED_DAY_FIELDS = {
+            OWM_PRESSURE, OWM_HUMIDITY, OWM_WINDSPEED, OWM_WIND_DIRECTION,
+            OWM_TEMPERATURE + "." + OWM_MAX, OWM_TEMPERATURE + "." + OWM_MIN,
+            OWM_WEATHER + "." + OWM_DESCRIPTION, OWM_WEATHER + "." + OWM_WEATHER_ID
+    };
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_MAX = 1 << 4;
+    private static final int FIELD_MIN = 1 << 5;
+    private static final int FIELD_DESCRIPTION = 1 << 6;
+    private static final int FIELD_WEATHER_ID = 1 << 7;
+
+    // The same for the city, as readCity finds them.
+    private static final String[] REQUIRED_CITY_FIELDS = {
+            OWM_CITY_NAME, OWM_COORD + "." + OWM_LATITUDE, OWM_COORD + "." + OWM_LONGITUDE
+    };
+    private static final int FIELD_CITY_NAME = 1;
+    private static final int FIELD_LATITUDE = 1 << 1;
+    private static final int FIELD_LONGITUDE = 1 << 2;
+
+    /**
+     * Streams the forecast out of the given reader.
+     *
+     * @return the number of days reported to the listener.
+     * @throws JSONException if the document is not a forecast we understand.
+     * @throws IOException if the underlying reader fails.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public int parse(Reader in, Listener listener) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            int days = 0;
+            boolean sawCity = false;
+            boolean sawList = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_CITY.equals(name)) {
+                    readCity(reader, listener);
+                    sawCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readDay(reader);
+                        listener.onDay(days++, mDay);
+                    }
+                    reader.endArray();
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!sawCity) {
+                throw new JSONException("No value for " + OWM_CITY);
+            }
+            if (!sawList) {
+                throw new JSONException("No value for " + OWM_LIST);
+            }
+            return days;
+        } catch (MalformedJsonException e) {
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException e) {
+            // JsonReader reports an unexpected token type this way.
+            throw new JSONException(e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the forecast out of the given stream and feeds it to the listener.  On devices
+     * without {@link JsonReader} the response is read into a String and parsed as a
+     * JSONObject tree instead.
+     *
+     * @return the number of days reported to the listener.
+     */
+    public int parse(InputStream inputStream, Listener listener)
+            throws IOException, JSONException {
+        Reader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                return parse(reader, listener);
+            }
+            StringBuilder buffer = new StringBuilder();
+            char[] chunk = new char[4096];
+            int read;
+            while ((read = reader.read(chunk)) != -1) {
+                buffer.append(chunk, 0, read);
+            }
+            if (buffer.length() == 0) {
+                // Stream was empty.  No point in parsing.
+                return 0;
+            }
+            return parse(buffer.toString(), listener);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @throws JSONException if the city is missing one of REQUIRED_CITY_FIELDS.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readCity(JsonReader reader, Listener listener)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        int fields = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+                fields |= FIELD_CITY_NAME;
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                        fields |= FIELD_LATITUDE;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                        fields |= FIELD_LONGITUDE;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        checkFields(fields, REQUIRED_CITY_FIELDS);
+        listener.onCity(cityName, lat, lon);
+    }
+
+    /**
+     * @throws JSONException if the day is missing one of REQUIRED_DAY_FIELDS.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void readDay(JsonReader reader) throws IOException, JSONException {
+        DayForecast day = mDay;
+        day.clear();
+        int fields = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+                fields |= FIELD_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = reader.nextInt();
+                fields |= FIELD_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+                fields |= FIELD_WINDSPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+                fields |= FIELD_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                        fields |= FIELD_MAX;
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                        fields |= FIELD_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (first && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        fields |= readCondition(reader, day);
+                    } else {
+                        reader.skipValue();
+                    }
+                    first = false;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        checkFields(fields, REQUIRED_DAY_FIELDS);
+    }
+
+    /**
+     * @param fields a bit for each of the required fields that was found, in order.
+     * @throws JSONException naming the first of the required fields that wasn't.
+     */
+    private static void checkFields(int fields, String[] required) throws JSONException {
+        for (int i = 0; i < required.length; i++) {
+            if ((fields & (1 << i)) == 0) {
+                throw new JSONException("No value for " + required[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the FIELD_ bits of the fields found.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int readCondition(JsonReader reader, DayForecast day) throws IOException {
+        int fields = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name)) {
+                day.description = reader.nextString();
+                fields |= FIELD_DESCRIPTION;
+            } else if (OWM_WEATHER_ID.equals(name)) {
+                day.weatherId = reader.nextInt();
+                fields |= FIELD_WEATHER_ID;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return fields;
+    }
+
+    /**
+     * Parses a forecast that has already been read into memory, by building the JSONObject
+     * tree.  This is what the sync used to do for every response; it is still needed on
+     * devices without {@link JsonReader}.
+     *
+     * @return the number of days reported to the listener.
+     */
+    public int parse(String forecastJsonStr, Listener listener) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        listener.onCity(cityName,
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        DayForecast day = mDay;
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            day.clear();
+
+            day.pressure = dayForecast.getDouble(OWM_PRESSURE);
+            day.humidity = dayForecast.getInt(OWM_HUMIDITY);
+            day.windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+            day.windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            day.description = weatherObject.getString(OWM_DESCRIPTION);
+            day.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            day.high = temperatureObject.getDouble(OWM_MAX);
+            day.low = temperatureObject.getDouble(OWM_MIN);
+
+            listener.onDay(i, day);
+        }
+        return weatherArray.length();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the forecast server answers with something other than a forecast or a
+ * "not modified".
+ */
+public class HttpStatusException extends IOException {
+    private final int mStatusCode;
+    private final long mRetryAfterSeconds;
+
+    /**
+     * @param statusCode the HTTP status the server answered with.
+     * @param retryAfterSeconds how long the server asked us to wait, or 0 if it didn't say.
+     */
+    public HttpStatusException(int statusCode, long retryAfterSeconds) {
+        super("Server answered " + statusCode);
+        mStatusCode = statusCode;
+        mRetryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public long getRetryAfterSeconds() {
+        return mRetryAfterSeconds;
+    }
+
+    /**
+     * @return true if asking again later could get a different answer.  Client errors
+     * other than timeouts and rate limiting will keep failing however often we ask.
+     */
+    public boolean isTransient() {
+        return mStatusCode >= 500 || mStatusCode == 408 || mStatusCode == 429;
+    }
+}
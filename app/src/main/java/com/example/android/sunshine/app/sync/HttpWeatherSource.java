@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The default {@link WeatherSource}: downloads the daily forecast from OpenWeatherMap and
+ * streams it through a {@link ForecastParser}.
+ *
+ * Requests are conditional when validators from a previous download are supplied, and ask
+ * for a gzipped response.  We decompress ourselves rather than letting HttpURLConnection do
+ * it, so we can count both the bytes that crossed the network and the bytes we parsed.
+ */
+public class HttpWeatherSource implements WeatherSource {
+    private static final String LOG_TAG = HttpWeatherSource.class.getSimpleName();
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    static final String QUERY_PARAM = "q";
+    static final String FORMAT_PARAM = "mode";
+    static final String UNITS_PARAM = "units";
+    static final String DAYS_PARAM = "cnt";
+
+    static final String FORMAT = "json";
+    static final String UNITS = "metric";
+
+    private final String mBaseUrl;
+
+    public HttpWeatherSource() {
+        this(FORECAST_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl where to send forecast requests.  Tests point this at a local server.
+     */
+    public HttpWeatherSource(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    @Override
+    public Result fetchForecast(String locationQuery, int numDays, String eTag,
+                                String lastModified, ForecastParser.Listener listener)
+            throws IOException, JSONException {
+        Result result = new Result();
+
+        // These need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+
+        long start = System.nanoTime();
+        try {
+            Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM, locationQuery)
+                    .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                    .appendQueryParameter(UNITS_PARAM, UNITS)
+                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                    .build();
+
+            URL url = new URL(builtUri.toString());
+
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            if (eTag != null) {
+                urlConnection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            urlConnection.connect();
+
+            int responseCode = urlConnection.getResponseCode();
+            long bodyStart = System.nanoTime();
+            result.connectNanos = bodyStart - start;
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                result.status = STATUS_NOT_MODIFIED;
+                result.eTag = eTag;
+                result.lastModified = lastModified;
+                return result;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(responseCode, getRetryAfterSeconds(urlConnection));
+            }
+
+            CountingInputStream wire = new CountingInputStream(urlConnection.getInputStream());
+            inputStream = wire;
+            CountingInputStream decoded = wire;
+            if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                decoded = new CountingInputStream(new GZIPInputStream(wire));
+                inputStream = decoded;
+            }
+
+            // Parse the forecast straight off the wire, so we never hold the whole
+            // response in memory.
+            result.days = new ForecastParser().parse(decoded, listener);
+            result.status = STATUS_OK;
+            result.eTag = urlConnection.getHeaderField("ETag");
+            result.lastModified = urlConnection.getHeaderField("Last-Modified");
+            result.bytesOnWire = wire.getCount();
+            result.bytesDecoded = decoded.getCount();
+            // The parser pulls the body off the network as it goes, so whatever time wasn't
+            // spent waiting in a read was spent parsing.
+            result.downloadNanos = wire.getReadNanos();
+            result.parseNanos = System.nanoTime() - bodyStart - result.downloadNanos;
+            return result;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return the delay the server asked for in its Retry-After header, or 0.  Only the
+     * delay-seconds form is understood; a date is ignored.
+     */
+    private static long getRetryAfterSeconds(HttpURLConnection urlConnection) {
+        String retryAfter = urlConnection.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, and the time spent reading them.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+        private long mReadNanos;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long start = System.nanoTime();
+            long skipped = super.skip(byteCount);
+            mReadNanos += System.nanoTime() - start;
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -2,25 +2,32 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
+import android.content.pm.ApplicationInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
@@ -30,28 +37,46 @@ import android.util.Log;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.SyncStatsLog;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HistoryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
-    // Interval at which to sync with the weather, in milliseconds.
+    // Interval at which to sync with the weather, in seconds, until the SyncScheduler has
+    // seen enough syncs to choose one.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+    // How many days of forecast to ask for.
+    static final int NUM_DAYS = 14;
+
+    // Set this extra to sync every stored location rather than just the preferred one.
+    // When it is missing, the "sync all saved locations" preference decides.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "all_locations";
+    // The number of locations that may be downloaded at the same time during one sync.
+    public static final String SYNC_EXTRAS_MAX_CONCURRENCY = "max_concurrency";
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    // The most chunks of history maintenance one sync runs.  Anything left over, after a
+    // long time offline say, waits for the next sync.
+    static final int MAX_COMPACTION_CHUNKS = 16;
+
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
@@ -69,140 +94,518 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    private final WeatherSource mWeatherSource;
+    private final SyncFailurePolicy mFailurePolicy;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, new HttpWeatherSource());
+    }
+
+    SunshineSyncAdapter(Context context, boolean autoInitialize, WeatherSource weatherSource) {
         super(context, autoInitialize);
+        mWeatherSource = weatherSource;
+        mFailurePolicy = new SyncFailurePolicy(context);
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        Context context = getContext();
+        long syncStart = System.nanoTime();
+        SyncStatsLog.Record stats = new SyncStatsLog.Record();
+        boolean countAllocations = startAllocationCounting();
         // Getting the zipcode to send to the API
-        String locationQuery = Utility.getPreferredLocation(getContext());
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        String preferredLocation = Utility.getPreferredLocation(context);
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean allLocations = extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS,
+                prefs.getBoolean(context.getString(R.string.pref_sync_all_locations_key),
+                        Boolean.parseBoolean(
+                                context.getString(R.string.pref_sync_all_locations_default))));
+
+        ArrayList<String> locations;
+        if (allLocations) {
+            locations = getStoredLocationSettings(preferredLocation);
+        } else {
+            locations = new ArrayList<String>(1);
+            locations.add(preferredLocation);
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        int maxConcurrency = Math.max(1,
+                extras.getInt(SYNC_EXTRAS_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY));
+
+        // A periodic sync runs as often as the most demanding location needs, so it only
+        // refreshes the locations that are due.  A sync the user asked for refreshes them all,
+        // except those that failed recently: asking again straight away would only fail again.
+        SyncScheduler scheduler = new SyncScheduler(context);
+        boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        long now = System.currentTimeMillis();
+        ArrayList<String> due = new ArrayList<String>(locations.size());
+        for (String locationQuery : locations) {
+            if (mFailurePolicy.isBackingOff(locationQuery, now)) {
+                stats.backedOff++;
+            } else if (manual || scheduler.isDue(locationQuery, now) ||
+                    !hasCurrentForecast(locationQuery)) {
+                due.add(locationQuery);
+            }
+        }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        stats.locations = due.size();
+        // Every fresh forecast goes into one batch, which the provider stores in a single
+        // transaction once all the downloads are done.
+        WriteBatch batch = new WriteBatch();
+        if (due.isEmpty()) {
+            Log.d(LOG_TAG, "No location is due for a sync");
+        } else if (due.size() == 1 || maxConcurrency == 1) {
+            for (String locationQuery : due) {
+                addToBatch(fetchLocation(locationQuery), batch, stats, syncResult);
             }
+        } else {
+            syncInParallel(due, maxConcurrency, batch, stats, syncResult);
+        }
+
+        // Days that were stored with different values than we already had.
+        int written = 0;
+        if (!batch.locations.isEmpty()) {
+            written = applyBatch(batch, stats, syncResult);
+        }
+        if (written > 0) {
+            long start = System.nanoTime();
+            notifyWeather();
+            stats.notifyNanos = System.nanoTime() - start;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            compactHistory(stats, syncResult);
+        }
 
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        scheduler.reschedule(locations);
+
+        if (written == 0 && (stats.failures > 0 || stats.backedOff > 0)) {
+            // Tell the framework not to bother before something could have changed.
+            long retryAt = mFailurePolicy.getEarliestRetry(locations, System.currentTimeMillis());
+            if (retryAt > 0) {
+                syncResult.delayUntil = retryAt / 1000;
             }
+        }
+
+        if (written > 0) {
+            stats.status = SyncStatsEntry.STATUS_UPDATED;
+        } else if (stats.failures > 0) {
+            stats.status = SyncStatsEntry.STATUS_FAILED;
+        } else if (stats.backedOff > 0 && stats.backedOff + due.size() == locations.size()) {
+            stats.status = SyncStatsEntry.STATUS_BACKED_OFF;
+        } else if (due.isEmpty()) {
+            stats.status = SyncStatsEntry.STATUS_NOTHING_DUE;
+        } else {
+            stats.status = SyncStatsEntry.STATUS_UNCHANGED;
+        }
+        if (countAllocations) {
+            stats.allocatedBytes = stopAllocationCounting();
+        }
+        stats.totalNanos = System.nanoTime() - syncStart;
+        new SyncStatsLog(context).append(stats);
+        context.getContentResolver().notifyChange(SyncStatsEntry.CONTENT_URI, null);
+        Log.d(LOG_TAG, "Sync stats: " + stats);
+
+        Log.d(LOG_TAG, "Sync Complete. " + batch.locations.size() + " of " + due.size() +
+                " locations stored, " + written + " days changed");
+    }
+
+    /**
+     * Downloads the locations on a bounded pool of worker threads.  Only the downloads run
+     * in parallel: every forecast is added to the batch from this thread, one location at a
+     * time, as soon as its download finishes.
+     */
+    private void syncInParallel(ArrayList<String> locations, int maxConcurrency,
+                                WriteBatch batch, SyncStatsLog.Record stats,
+                                SyncResult syncResult) {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(maxConcurrency, locations.size()));
+        CompletionService<LocationSync> completionService =
+                new ExecutorCompletionService<LocationSync>(pool);
+
+        for (final String locationQuery : locations) {
+            completionService.submit(new Callable<LocationSync>() {
+                @Override
+                public LocationSync call() {
+                    return fetchLocation(locationQuery);
+                }
+            });
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return;
+        try {
+            for (int i = 0; i < locations.size(); i++) {
+                try {
+                    addToBatch(completionService.take().get(), batch, stats, syncResult);
+                } catch (ExecutionException e) {
+                    // fetchLocation handles its own errors, so this is a bug.
+                    Log.e(LOG_TAG, "Error fetching forecast", e.getCause());
+                }
             }
-            forecastJsonStr = buffer.toString();
+        } catch (InterruptedException e) {
+            // The sync was cancelled.  The forecasts downloaded so far are still stored.
+            Log.d(LOG_TAG, "Sync interrupted after " + batch.locations.size() + " locations");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The outcome of downloading the forecast for one location.
+     */
+    static class LocationSync {
+        final String locationSetting;
+        final ForecastCollector collector;
+        WeatherSource.Result result;
+        // Why the download failed, if it did.
+        Exception error;
+        // Whether the download wasn't even tried because the circuit breaker is open.
+        boolean circuitOpen;
+        // Where this location's weather rows are in its WriteBatch.
+        int firstOperation;
+        int operationCount;
+
+        LocationSync(String locationSetting, ForecastCollector collector) {
+            this.locationSetting = locationSetting;
+            this.collector = collector;
+        }
+    }
+
+    /**
+     * Downloads and parses the forecast for a location, without touching the database
+     * beyond a read.  Safe to call from any thread.
+     *
+     * @return the downloaded forecast.  Its result is null if the download failed or was
+     * not tried.
+     */
+    LocationSync fetchLocation(String locationQuery) {
+        LocationSync sync = new LocationSync(locationQuery, new ForecastCollector(NUM_DAYS));
+
+        if (!mFailurePolicy.allowRequest(locationQuery, System.currentTimeMillis())) {
+            sync.circuitOpen = true;
+            return sync;
+        }
+
+        ValidatorCache validators = new ValidatorCache(getContext());
+        String eTag = null;
+        String lastModified = null;
+        // Only ask whether the forecast changed if we still have it.  Otherwise a wiped
+        // database would keep getting "not modified" and never be filled again.
+        if (hasCurrentForecast(locationQuery)) {
+            eTag = validators.getETag(locationQuery);
+            lastModified = validators.getLastModified(locationQuery);
+        }
+
+        try {
+            sync.result = mWeatherSource.fetchForecast(locationQuery, NUM_DAYS, eTag,
+                    lastModified, sync.collector);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            return;
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            // to store it.
+            sync.error = e;
+            return sync;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            sync.error = e;
+            return sync;
+        }
+
+        Log.d(LOG_TAG, "Fetched " + locationQuery + ": " + sync.result.bytesOnWire +
+                " bytes on the wire, " + sync.result.bytesDecoded + " bytes decoded");
+        return sync;
+    }
+
+    /**
+     * The writes a sync has collected so far, and the locations they are for.
+     */
+    static class WriteBatch {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final ArrayList<LocationSync> locations = new ArrayList<LocationSync>();
+    }
+
+    /**
+     * Adds a downloaded forecast to the batch.  Only ever called from the sync thread, so
+     * there is a single writer no matter how many downloads run at once.
+     *
+     * @param stats where to add the time and bytes this location took.
+     * @param syncResult where to count what went wrong with this location.
+     * @return true if a fresh forecast was added, even if none of its days have changed.
+     */
+    boolean addToBatch(LocationSync sync, WriteBatch batch, SyncStatsLog.Record stats,
+                       SyncResult syncResult) {
+        String locationQuery = sync.locationSetting;
+        WeatherSource.Result result = sync.result;
+        ForecastCollector collector = sync.collector;
+
+        if (sync.circuitOpen) {
+            stats.backedOff++;
+            return false;
+        }
+        if (result == null) {
+            stats.failures++;
+            // Permanent failures (a forecast we can't parse, a location the server refuses)
+            // are reported as hard errors, which the framework won't retry on its own.
+            // Transient ones are soft errors, which it backs off from.
+            if (SyncFailurePolicy.classify(sync.error) == SyncFailurePolicy.FAILURE_PERMANENT) {
+                syncResult.stats.numParseExceptions++;
+            } else {
+                syncResult.stats.numIoExceptions++;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            mFailurePolicy.recordFailure(locationQuery, sync.error, System.currentTimeMillis());
+            return false;
+        }
+        mFailurePolicy.recordSuccess(locationQuery);
+        stats.connectNanos += result.connectNanos;
+        stats.downloadNanos += result.downloadNanos;
+        stats.parseNanos += result.parseNanos;
+        stats.bytesOnWire += result.bytesOnWire;
+        stats.bytesDecoded += result.bytesDecoded;
+
+        if (result.status == WeatherSource.STATUS_NOT_MODIFIED) {
+            // What we have is still current, so there is nothing to parse or write.
+            Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+            new SyncScheduler(getContext()).recordSync(locationQuery, 0, NUM_DAYS);
+            syncResult.stats.numSkippedEntries += NUM_DAYS;
+            return false;
+        }
+        if (collector.size() == 0 || collector.mCityName == null) {
+            // Stream was empty.  Nothing to store.
+            return false;
+        }
+
+        ArrayList<ContentProviderOperation> operations = batch.operations;
+        long start = System.nanoTime();
+        long locationId = findLocationId(locationQuery);
+        int locationOperation = -1;
+        if (locationId == -1) {
+            // A new location: its weather rows take the id its insert comes back with.
+            Log.v(LOG_TAG, "inserting " + collector.mCityName + ", with coord: " +
+                    collector.mCityLatitude + ", " + collector.mCityLongitude);
+            locationOperation = operations.size();
+            operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                    .withValues(buildLocationValues(locationQuery, collector.mCityName,
+                            collector.mCityLatitude, collector.mCityLongitude))
+                    .build());
+        }
+        stats.addLocationNanos += System.nanoTime() - start;
+
+        sync.firstOperation = operations.size();
+        sync.operationCount = collector.size();
+        for (int i = 0; i < collector.size(); i++) {
+            ContentProviderOperation.Builder insert =
+                    ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                            .withValues(collector.get(i));
+            if (locationOperation != -1) {
+                insert.withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, locationOperation);
+            } else {
+                insert.withValue(WeatherEntry.COLUMN_LOC_KEY, locationId);
             }
+            operations.add(insert.build());
         }
+        batch.locations.add(sync);
+        return true;
+    }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+    /**
+     * Stores every forecast in the batch, all in one transaction, so observers are told
+     * about the sync once rather than once per location.
+     *
+     * @return the number of days that changed.  Days stored with the values we already had
+     * don't count, so a sync that brought nothing new returns 0.
+     */
+    private int applyBatch(WriteBatch batch, SyncStatsLog.Record stats, SyncResult syncResult) {
+        Context context = getContext();
+        ArrayList<ContentProviderOperation> operations = batch.operations;
+
+        int deleteOperation = -1;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // Without ContentResolver.call there is no history to move old days into, so
+            // they are deleted so we don't build up an endless history.
+            deleteOperation = operations.size();
+            operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[]{Long.toString(getStartOfYesterday())})
+                    .build());
+        }
 
-        // These are the names of the JSON objects that need to be extracted.
+        ContentProviderResult[] results;
+        long start = System.nanoTime();
+        try {
+            results = context.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Error storing forecasts", e);
+            syncResult.databaseError = true;
+            return 0;
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing forecasts", e);
+            syncResult.databaseError = true;
+            return 0;
+        } finally {
+            stats.bulkInsertNanos += System.nanoTime() - start;
+        }
+        if (deleteOperation != -1) {
+            syncResult.stats.numDeletes += results[deleteOperation].count;
+        }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        SyncScheduler scheduler = new SyncScheduler(context);
+        ValidatorCache validators = new ValidatorCache(context);
+        int written = 0;
+        for (LocationSync sync : batch.locations) {
+            // Days we already had with the same values were left alone by the provider.
+            int changed = 0;
+            for (int i = 0; i < sync.operationCount; i++) {
+                if (!WeatherEntry.isUnchangedUri(results[sync.firstOperation + i].uri)) {
+                    changed++;
+                }
+            }
+            stats.rowsWritten += changed;
+            written += changed;
+            syncResult.stats.numEntries += sync.operationCount;
+            syncResult.stats.numUpdates += changed;
+            syncResult.stats.numSkippedEntries += sync.operationCount - changed;
+
+            // The forecast is stored, so it's now safe to ask the server about it next time.
+            validators.put(sync.locationSetting, sync.result.eTag, sync.result.lastModified);
+            scheduler.recordSync(sync.locationSetting, changed, sync.operationCount);
+
+            Log.d(LOG_TAG, "Stored " + sync.locationSetting + ". " + changed + " of " +
+                    sync.operationCount + " days changed");
+        }
+        return written;
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    /**
+     * Moves the days that have aged out of the weather table into the history, and keeps
+     * the database within its budget.  The provider does this a chunk at a time, each in a
+     * short transaction of its own, so the forecast list never waits long behind it.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void compactHistory(SyncStatsLog.Record stats, SyncResult syncResult) {
+        ContentResolver resolver = getContext().getContentResolver();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < MAX_COMPACTION_CHUNKS; i++) {
+                Bundle result = resolver.call(HistoryEntry.CONTENT_URI,
+                        HistoryEntry.METHOD_COMPACT, null, null);
+                if (result == null) {
+                    break;
+                }
+                syncResult.stats.numDeletes += result.getInt(HistoryEntry.KEY_DAYS_ROLLED_UP) +
+                        result.getInt(HistoryEntry.KEY_ROLLUPS_DROPPED);
+                if (!result.getBoolean(HistoryEntry.KEY_HAS_MORE)) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            // The forecasts are already stored; the history can catch up next time.
+            Log.e(LOG_TAG, "Error compacting the history", e);
+            syncResult.databaseError = true;
+        } finally {
+            stats.deleteNanos += System.nanoTime() - start;
+        }
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Counting allocations slows everything down, so we only do it in debuggable builds.
+     *
+     * @return true if allocations are now being counted.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean startAllocationCounting() {
+        if ((getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            return false;
+        }
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        return true;
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * @return the bytes the process allocated since startAllocationCounting.  Downloads
+     * run on other threads, so this counts the whole process rather than this thread.
+     */
+    @SuppressWarnings("deprecation")
+    private static long stopAllocationCounting() {
+        Debug.stopAllocCounting();
+        return Debug.getGlobalAllocSize();
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    /**
+     * @return the location settings of every stored location, starting with the preferred
+     * one even if it hasn't been stored yet.
+     */
+    private ArrayList<String> getStoredLocationSettings(String preferredLocation) {
+        ArrayList<String> locations = new ArrayList<String>();
+        locations.add(preferredLocation);
+
+        Cursor cursor = getContext().getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                String locationSetting = cursor.getString(0);
+                if (!preferredLocation.equals(locationSetting)) {
+                    locations.add(locationSetting);
+                }
+            }
+            cursor.close();
+        }
+        return locations;
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * @return the normalized date of yesterday.  Anything on or before it is old data.
+     */
+    private static long getStartOfYesterday() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return new Time().setJulianDay(julianToday - 1);
+    }
 
+    /**
+     * @return true if we have a forecast for today for the given location.
+     */
+    private boolean hasCurrentForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                        System.currentTimeMillis()),
+                new String[]{WeatherEntry.COLUMN_DATE},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /**
+     * Turns each parsed day straight into the ContentValues we hand to the provider.
+     * The location id is only known once the city has been stored, so it is filled in last.
+     */
+    static class ForecastCollector implements ForecastParser.Listener {
+        private final ArrayList<ContentValues> mValues;
+        private final Time mDayTime;
+        private final int mJulianStartDay;
 
-            long locationId = addLocation(locationQuery, cityName, cityLatitude, cityLongitude);
+        String mCityName;
+        double mCityLatitude;
+        double mCityLongitude;
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        ForecastCollector(int expectedDays) {
+            mValues = new ArrayList<ContentValues>(expectedDays);
 
             // OWM returns daily forecasts based upon the local time of the city that is being
             // asked for, which means that we need to know the GMT offset to translate this data
@@ -216,85 +619,51 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             dayTime.setToNow();
 
             // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            mJulianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
             // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-            }
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, cvArray);
+            mDayTime = new Time();
+        }
 
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
-                        WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            mCityName = cityName;
+            mCityLatitude = lat;
+            mCityLongitude = lon;
+        }
 
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + cVVector.size() + " Inserted");
+        @Override
+        public void onDay(int dayIndex, ForecastParser.DayForecast day) {
+            ContentValues weatherValues = new ContentValues(10);
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherEntry.COLUMN_DATE, getDateForDay(dayIndex));
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, day.windDirection);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, day.high);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, day.low);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, day.description);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+            mValues.add(weatherValues);
+        }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
+        long getDateForDay(int dayIndex) {
+            return mDayTime.setJulianDay(mJulianStartDay + dayIndex);
         }
 
-        // This will only happen if there was an error getting or parsing the forecast.
-        return;
+        int size() {
+            return mValues.size();
+        }
+
+        /**
+         * @return the values for a day, without a location id.
+         */
+        ContentValues get(int dayIndex) {
+            return mValues.get(dayIndex);
+        }
     }
 
 
@@ -383,18 +752,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @return the row ID of the location with this setting, or -1 if we don't have it yet.
      */
-    public long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        Log.v(LOG_TAG, "inserting " + cityName + ", with coord: " + lat + ", " + lon);
+    private long findLocationId(String locationSetting) {
+        // We nearly always sync locations we already have, and the provider keeps the cache
+        // up to date, so most of the time there is no need to ask the database.
+        LocationIdCache cache = LocationIdCache.getInstance();
+        long locationId = cache.get(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
 
         // First, check if the location with this city name exists in the db
         Cursor locationCursor = getContext().getContentResolver().query(
@@ -407,33 +774,27 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         if (locationCursor.moveToFirst()) {
             int locationIdIndex = locationCursor.getColumnIndex(LocationEntry._ID);
             locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+            cache.put(locationSetting, locationId);
         }
-
         locationCursor.close();
-        // Wait, that worked?  Yes!
         return locationId;
     }
 
+    private static ContentValues buildLocationValues(String locationSetting, String cityName,
+                                                     double lat, double lon) {
+        // Now that the content provider is set up, inserting rows of data is pretty simple.
+        // First create a ContentValues object to hold the data you want to insert.
+        ContentValues locationValues = new ContentValues();
+
+        // Then add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
+
 
     /**
      * Helper method to schedule the sync adapter periodic execution
@@ -467,6 +828,21 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to have the sync adapter refresh every stored location immediately
+     * @param context The context used to access the account service
+     * @param maxConcurrency The number of locations that may be downloaded at the same time
+     */
+    public static void syncAllLocationsImmediately(Context context, int maxConcurrency) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        bundle.putInt(SYNC_EXTRAS_MAX_CONCURRENCY, maxConcurrency);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides when a location that failed to sync may be tried again, and stops all requests
+ * for a while when the forecast server looks down.
+ *
+ * Failures are either transient (the network, a 5xx, rate limiting), which are retried with
+ * exponential backoff and jitter, or permanent (a 4xx, a response we can't parse), which
+ * will fail the same way until something changes, so are retried much more slowly.
+ *
+ * Enough transient failures in a row, across all locations, open the circuit breaker: no
+ * requests are made until it has been open for a while, then a single request is let
+ * through to probe the server.  If that fails the circuit opens again, for longer.  Only
+ * the probe's own outcome closes or reopens it: requests that went out before it opened
+ * may still come back, and say nothing about the server now.
+ *
+ * Everything is kept in the "sync_failures" preferences, so a restart doesn't forget it.
+ */
+public class SyncFailurePolicy {
+    private static final String LOG_TAG = SyncFailurePolicy.class.getSimpleName();
+
+    static final String PREFS_NAME = "sync_failures";
+
+    public static final int FAILURE_TRANSIENT = 0;
+    public static final int FAILURE_PERMANENT = 1;
+
+    // Backoff for a location, in milliseconds, before jitter.  Doubles with every failure.
+    static final long INITIAL_BACKOFF_MILLIS = 1000L * 60;
+    static final long MAX_BACKOFF_MILLIS = 1000L * 60 * 60 * 6;
+    static final long INITIAL_PERMANENT_BACKOFF_MILLIS = 1000L * 60 * 60 * 6;
+    static final long MAX_PERMANENT_BACKOFF_MILLIS = 1000L * 60 * 60 * 24;
+
+    // Transient failures in a row that open the circuit, and for how long, doubling every
+    // time a probe fails.
+    static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    static final long INITIAL_CIRCUIT_OPEN_MILLIS = 1000L * 60 * 5;
+    static final long MAX_CIRCUIT_OPEN_MILLIS = 1000L * 60 * 60;
+    // A probe that hasn't reported back in this long is taken as lost, and another is let
+    // through, so a sync that died mid-request can't hold the circuit open for good.
+    static final long PROBE_TIMEOUT_MILLIS = 1000L * 60 * 5;
+
+    private static final String KEY_FAILURES = ".failures";
+    private static final String KEY_RETRY_AT = ".retry_at";
+    private static final String KEY_CIRCUIT_FAILURES = "circuit_failures";
+    private static final String KEY_CIRCUIT_OPENS = "circuit_opens";
+    private static final String KEY_CIRCUIT_OPEN_UNTIL = "circuit_open_until";
+
+    /**
+     * The one request allowed through a half-open circuit.
+     */
+    private static final class Probe {
+        final String locationSetting;
+        final long startedAt;
+
+        Probe(String locationSetting, long startedAt) {
+            this.locationSetting = locationSetting;
+            this.startedAt = startedAt;
+        }
+    }
+
+    // The probe on its way, if any.  The circuit is shared by every instance, and so is
+    // this; it only lives as long as the process, as does any request it stands for.
+    private static final AtomicReference<Probe> sProbe = new AtomicReference<Probe>();
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+
+    public SyncFailurePolicy(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return FAILURE_TRANSIENT or FAILURE_PERMANENT.
+     */
+    public static int classify(Exception e) {
+        if (e instanceof HttpStatusException) {
+            return ((HttpStatusException) e).isTransient() ? FAILURE_TRANSIENT : FAILURE_PERMANENT;
+        }
+        if (e instanceof JSONException) {
+            return FAILURE_PERMANENT;
+        }
+        return FAILURE_TRANSIENT;
+    }
+
+    /**
+     * @return true if the location failed recently and shouldn't be tried yet.
+     */
+    public boolean isBackingOff(String locationSetting, long now) {
+        return now < getRetryAt(locationSetting);
+    }
+
+    /**
+     * @return when the location may be tried again, or 0 if it may be tried now.
+     */
+    public long getRetryAt(String locationSetting) {
+        return mPrefs.getLong(locationSetting + KEY_RETRY_AT, 0);
+    }
+
+    /**
+     * Asks whether a request for a location may go out now.  Always true while the circuit
+     * is closed.  Once an open circuit has waited long enough, true for exactly one
+     * location, the probe, whose outcome then closes or reopens it.  Safe to call from any
+     * thread.
+     */
+    public synchronized boolean allowRequest(String locationSetting, long now) {
+        long openUntil = mPrefs.getLong(KEY_CIRCUIT_OPEN_UNTIL, 0);
+        if (openUntil == 0) {
+            return true;
+        }
+        if (now < openUntil) {
+            return false;
+        }
+        Probe probe = sProbe.get();
+        if (probe != null && now - probe.startedAt < PROBE_TIMEOUT_MILLIS) {
+            return false;
+        }
+        if (!sProbe.compareAndSet(probe, new Probe(locationSetting, now))) {
+            return false;
+        }
+        Log.d(LOG_TAG, "Circuit half open, probing the server with " + locationSetting);
+        return true;
+    }
+
+    /**
+     * @return when the circuit will let a request through again, or 0 if it is closed.
+     */
+    public synchronized long getCircuitOpenUntil() {
+        return mPrefs.getLong(KEY_CIRCUIT_OPEN_UNTIL, 0);
+    }
+
+    /**
+     * Remembers that a location synced, which resets its backoff.  If it was the probe, or
+     * the circuit is closed, it also closes the circuit and starts the count of failures
+     * in a row again.
+     */
+    public synchronized void recordSuccess(String locationSetting) {
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .remove(locationSetting + KEY_FAILURES)
+                .remove(locationSetting + KEY_RETRY_AT);
+        if (finishProbe(locationSetting) || !isCircuitOpen()) {
+            closeCircuit(editor);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Remembers that a location failed to sync, and works out when to try it again.
+     *
+     * @return when the location may be tried again.
+     */
+    public synchronized long recordFailure(String locationSetting, Exception e, long now) {
+        int kind = classify(e);
+        int failures = mPrefs.getInt(locationSetting + KEY_FAILURES, 0) + 1;
+
+        long delay;
+        if (kind == FAILURE_PERMANENT) {
+            delay = backoff(INITIAL_PERMANENT_BACKOFF_MILLIS, MAX_PERMANENT_BACKOFF_MILLIS,
+                    failures);
+        } else {
+            delay = backoff(INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, failures);
+        }
+        // Half of the delay is fixed and the other half random, so locations that failed
+        // together don't all come back at the same moment.
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        if (e instanceof HttpStatusException) {
+            delay = Math.max(delay, 1000 * ((HttpStatusException) e).getRetryAfterSeconds());
+        }
+        long retryAt = now + delay;
+
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putInt(locationSetting + KEY_FAILURES, failures)
+                .putLong(locationSetting + KEY_RETRY_AT, retryAt);
+
+        // While the circuit is open, only the probe decides what happens to it; anything
+        // else is a request from before it opened.
+        boolean probe = finishProbe(locationSetting);
+        if (probe || !isCircuitOpen()) {
+            if (kind == FAILURE_PERMANENT) {
+                // The server answered, so it isn't down.
+                closeCircuit(editor);
+            } else if (probe) {
+                // The probe failed: open again, for longer.
+                openCircuit(editor, mPrefs.getInt(KEY_CIRCUIT_OPENS, 0) + 1, now);
+            } else {
+                int circuitFailures = mPrefs.getInt(KEY_CIRCUIT_FAILURES, 0) + 1;
+                editor.putInt(KEY_CIRCUIT_FAILURES, circuitFailures);
+                if (circuitFailures >= CIRCUIT_FAILURE_THRESHOLD) {
+                    openCircuit(editor, 1, now);
+                }
+            }
+        }
+        editor.commit();
+
+        Log.d(LOG_TAG, locationSetting + (kind == FAILURE_PERMANENT ? " failed permanently" :
+                " failed") + " " + failures + " times, retrying in " + delay / 1000 + "s");
+        return retryAt;
+    }
+
+    /**
+     * @return the earliest time a sync of any of the given locations could get anywhere, or
+     * 0 if one of them could be synced now.
+     */
+    public synchronized long getEarliestRetry(List<String> locationSettings, long now) {
+        long earliest = Long.MAX_VALUE;
+        for (String locationSetting : locationSettings) {
+            earliest = Math.min(earliest, getRetryAt(locationSetting));
+        }
+        earliest = Math.max(earliest, mPrefs.getLong(KEY_CIRCUIT_OPEN_UNTIL, 0));
+        return earliest == Long.MAX_VALUE || earliest <= now ? 0 : earliest;
+    }
+
+    /**
+     * Forgets every failure and closes the circuit.
+     */
+    public synchronized void clear() {
+        sProbe.set(null);
+        mPrefs.edit().clear().commit();
+    }
+
+    private boolean isCircuitOpen() {
+        return mPrefs.getLong(KEY_CIRCUIT_OPEN_UNTIL, 0) != 0;
+    }
+
+    /**
+     * @return true if the location was the probe, which is then over.
+     */
+    private static boolean finishProbe(String locationSetting) {
+        Probe probe = sProbe.get();
+        return probe != null && probe.locationSetting.equals(locationSetting) &&
+                sProbe.compareAndSet(probe, null);
+    }
+
+    private static long backoff(long initial, long max, int failures) {
+        // Stop shifting well before the long overflows.
+        long delay = initial << Math.min(failures - 1, 20);
+        return Math.min(delay, max);
+    }
+
+    private void openCircuit(SharedPreferences.Editor editor, int opens, long now) {
+        long openMillis = backoff(INITIAL_CIRCUIT_OPEN_MILLIS, MAX_CIRCUIT_OPEN_MILLIS, opens);
+        editor.putInt(KEY_CIRCUIT_OPENS, opens)
+                .putLong(KEY_CIRCUIT_OPEN_UNTIL, now + openMillis)
+                .putInt(KEY_CIRCUIT_FAILURES, 0);
+        Log.i(LOG_TAG, "Forecast server looks down, not asking it for " +
+                openMillis / 1000 + "s");
+    }
+
+    private void closeCircuit(SharedPreferences.Editor editor) {
+        editor.remove(KEY_CIRCUIT_FAILURES)
+                .remove(KEY_CIRCUIT_OPENS)
+                .remove(KEY_CIRCUIT_OPEN_UNTIL);
+    }
+}
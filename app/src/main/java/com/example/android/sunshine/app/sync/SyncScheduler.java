@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how often each location needs syncing, instead of refreshing everything every
+ * SYNC_INTERVAL whether or not the forecast moves.
+ *
+ * Every location gets its own interval, worked out from:
+ * <ul>
+ *     <li>how old its data is: stale data is refreshed at the shortest interval,</li>
+ *     <li>how much its last few syncs changed: a stable forecast is checked less often,
+ *     a volatile one more often,</li>
+ *     <li>whether the app is in the foreground, and</li>
+ *     <li>how recently the user looked at it: a location nobody has viewed for days can
+ *     wait, one on screen should never be staler than it used to be.</li>
+ * </ul>
+ * The framework only lets us have one periodic sync, so it runs at the shortest of those
+ * intervals, and each periodic sync skips the locations that aren't due yet.  The interval
+ * chosen for every location, and why, is kept in the "sync_schedule" preferences.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    static final String PREFS_NAME = "sync_schedule";
+
+    // Bounds for any interval, in seconds.  The base is what every location used to get.
+    static final int BASE_INTERVAL = SunshineSyncAdapter.SYNC_INTERVAL;
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    // Data older than this is refreshed at MIN_INTERVAL, whatever else we know.
+    static final long STALE_AFTER_MILLIS = 1000L * MAX_INTERVAL;
+    // A location viewed within this time is treated as being watched.
+    static final long RECENTLY_VIEWED_MILLIS = 1000L * 60 * 60 * 24;
+    // A location not viewed for this long can be refreshed as slowly as we allow.
+    static final long IDLE_AFTER_MILLIS = RECENTLY_VIEWED_MILLIS * 3;
+
+    // How many syncs the volatility is averaged over.
+    static final int VOLATILITY_HISTORY = 4;
+    // Fraction of days changed per sync, averaged, below which the forecast is stable and
+    // above which it is volatile.
+    static final float STABLE_VOLATILITY = 0.1f;
+    static final float VOLATILE_VOLATILITY = 0.5f;
+
+    private static final String KEY_LAST_SYNC = ".last_sync";
+    private static final String KEY_LAST_VIEWED = ".last_viewed";
+    private static final String KEY_VOLATILITY = ".volatility";
+    private static final String KEY_INTERVAL = ".interval";
+    private static final String KEY_REASON = ".reason";
+    static final String KEY_SCHEDULED_INTERVAL = "scheduled_interval";
+    static final String KEY_SCHEDULED_REASON = "scheduled_reason";
+
+    // How many of our activities are started, and so showing.  Only lives as long as the
+    // process, which is what we want: a dead process isn't in the foreground.
+    private static final AtomicInteger sStartedActivities = new AtomicInteger();
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public SyncScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Called from every activity's onStart.  The next activity starts before the one it
+     * covers stops, so moving between them never counts as leaving the app.
+     */
+    public static void activityStarted() {
+        sStartedActivities.incrementAndGet();
+    }
+
+    /**
+     * Called from every activity's onStop.
+     */
+    public static void activityStopped() {
+        int started;
+        do {
+            started = sStartedActivities.get();
+        } while (started > 0 && !sStartedActivities.compareAndSet(started, started - 1));
+    }
+
+    static boolean isForeground() {
+        return sStartedActivities.get() > 0;
+    }
+
+    /**
+     * Forgets the activities that are showing, so tests start from the background.
+     */
+    static void clearStartedActivities() {
+        sStartedActivities.set(0);
+    }
+
+    /**
+     * Remembers that the user just looked at the weather for a location.
+     */
+    public void recordViewed(String locationSetting) {
+        mPrefs.edit().putLong(locationSetting + KEY_LAST_VIEWED, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Remembers a successful sync of a location.
+     *
+     * @param changedDays how many days of the forecast were different from what we had.
+     *                    0 when the server said nothing had changed.
+     * @param totalDays how many days the forecast covers.
+     */
+    public void recordSync(String locationSetting, int changedDays, int totalDays) {
+        float changed = totalDays > 0 ? (float) changedDays / totalDays : 0f;
+
+        String history = mPrefs.getString(locationSetting + KEY_VOLATILITY, "");
+        String[] previous = TextUtils.isEmpty(history) ? new String[0] : history.split(",");
+        StringBuilder sb = new StringBuilder(Float.toString(changed));
+        for (int i = 0; i < previous.length && i < VOLATILITY_HISTORY - 1; i++) {
+            sb.append(',').append(previous[i]);
+        }
+
+        mPrefs.edit()
+                .putLong(locationSetting + KEY_LAST_SYNC, System.currentTimeMillis())
+                .putString(locationSetting + KEY_VOLATILITY, sb.toString())
+                .commit();
+    }
+
+    /**
+     * @return the average fraction of days that changed over the last few syncs, or -1 if
+     * the location has never been synced.
+     */
+    float getVolatility(String locationSetting) {
+        String history = mPrefs.getString(locationSetting + KEY_VOLATILITY, "");
+        if (TextUtils.isEmpty(history)) {
+            return -1f;
+        }
+        String[] values = history.split(",");
+        float sum = 0f;
+        for (String value : values) {
+            sum += Float.parseFloat(value);
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * The interval chosen for a location, and why.
+     */
+    static class Decision {
+        final int intervalSeconds;
+        final String reason;
+
+        Decision(int intervalSeconds, String reason) {
+            this.intervalSeconds = intervalSeconds;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Works out how often a location should be synced from now on.
+     */
+    Decision decide(String locationSetting, long now) {
+        long lastSync = mPrefs.getLong(locationSetting + KEY_LAST_SYNC, 0);
+        if (lastSync == 0 || now - lastSync >= STALE_AFTER_MILLIS) {
+            return new Decision(MIN_INTERVAL, "data is stale");
+        }
+
+        StringBuilder reason = new StringBuilder();
+        int interval = BASE_INTERVAL;
+
+        float volatility = getVolatility(locationSetting);
+        if (volatility >= VOLATILE_VOLATILITY) {
+            interval /= 2;
+            reason.append("volatile forecast");
+        } else if (volatility >= 0 && volatility < STABLE_VOLATILITY) {
+            interval *= 2;
+            reason.append("stable forecast");
+        } else {
+            reason.append("forecast changing normally");
+        }
+
+        long lastViewed = mPrefs.getLong(locationSetting + KEY_LAST_VIEWED, 0);
+        if (isForeground()) {
+            // Whatever is on screen should be at least as fresh as it always was.
+            if (interval > BASE_INTERVAL) {
+                interval = BASE_INTERVAL;
+                reason.append(", app in foreground");
+            }
+        } else if (now - lastViewed < RECENTLY_VIEWED_MILLIS) {
+            if (interval > BASE_INTERVAL) {
+                interval = BASE_INTERVAL;
+                reason.append(", viewed recently");
+            }
+        } else if (now - lastViewed >= IDLE_AFTER_MILLIS) {
+            interval *= 2;
+            reason.append(", not viewed for days");
+        }
+
+        interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+        return new Decision(interval, reason.toString());
+    }
+
+    /**
+     * @return true if a location should be refreshed by a sync starting now.  A location is
+     * due once its interval has passed, give or take the flex the framework may add.
+     */
+    public boolean isDue(String locationSetting, long now) {
+        long lastSync = mPrefs.getLong(locationSetting + KEY_LAST_SYNC, 0);
+        if (lastSync == 0) {
+            return true;
+        }
+        int interval = mPrefs.getInt(locationSetting + KEY_INTERVAL, BASE_INTERVAL);
+        return now - lastSync >= 1000L * (interval - interval / 3);
+    }
+
+    /**
+     * Chooses the interval for every given location, records it, and moves the periodic
+     * sync to the shortest of them if that changed.
+     *
+     * @return the interval the periodic sync now runs at, in seconds.
+     */
+    public int reschedule(List<String> locationSettings) {
+        long now = System.currentTimeMillis();
+        int shortest = MAX_INTERVAL;
+        String shortestReason = "nothing to sync";
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String locationSetting : locationSettings) {
+            Decision decision = decide(locationSetting, now);
+            editor.putInt(locationSetting + KEY_INTERVAL, decision.intervalSeconds);
+            editor.putString(locationSetting + KEY_REASON, decision.reason);
+            Log.d(LOG_TAG, locationSetting + ": every " + decision.intervalSeconds / 60 +
+                    " minutes, " + decision.reason);
+            if (decision.intervalSeconds < shortest) {
+                shortest = decision.intervalSeconds;
+                shortestReason = locationSetting + ": " + decision.reason;
+            }
+        }
+
+        int scheduled = mPrefs.getInt(KEY_SCHEDULED_INTERVAL, BASE_INTERVAL);
+        editor.putInt(KEY_SCHEDULED_INTERVAL, shortest);
+        editor.putString(KEY_SCHEDULED_REASON, shortestReason);
+        editor.commit();
+
+        if (shortest != scheduled) {
+            Log.i(LOG_TAG, "Syncing every " + shortest / 60 + " minutes, because of " +
+                    shortestReason);
+            SunshineSyncAdapter.configurePeriodicSync(mContext, shortest, shortest / 3);
+        }
+        return shortest;
+    }
+
+    /**
+     * @return the interval a location is synced at, and why, for display or debugging.
+     */
+    public String describe(String locationSetting) {
+        return mPrefs.getInt(locationSetting + KEY_INTERVAL, BASE_INTERVAL) / 60 +
+                " minutes: " + mPrefs.getString(locationSetting + KEY_REASON, "default");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the HTTP validators (ETag and Last-Modified) of the last forecast we stored for
+ * each location setting, so the next sync can ask the server whether anything changed.
+ *
+ * Validators are kept in their own preferences file rather than the database, so they
+ * survive independently of the weather cache.  Only save them once the forecast they
+ * describe has actually been written.
+ */
+public class ValidatorCache {
+
+    static final String PREFS_NAME = "forecast_validators";
+
+    private static final String ETAG_SUFFIX = ".etag";
+    private static final String LAST_MODIFIED_SUFFIX = ".last_modified";
+
+    private final SharedPreferences mPrefs;
+
+    public ValidatorCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public String getETag(String locationSetting) {
+        return mPrefs.getString(locationSetting + ETAG_SUFFIX, null);
+    }
+
+    public String getLastModified(String locationSetting) {
+        return mPrefs.getString(locationSetting + LAST_MODIFIED_SUFFIX, null);
+    }
+
+    /**
+     * Stores the validators for a location.  A null value removes that validator.
+     */
+    public void put(String locationSetting, String eTag, String lastModified) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (eTag != null) {
+            editor.putString(locationSetting + ETAG_SUFFIX, eTag);
+        } else {
+            editor.remove(locationSetting + ETAG_SUFFIX);
+        }
+        if (lastModified != null) {
+            editor.putString(locationSetting + LAST_MODIFIED_SUFFIX, lastModified);
+        } else {
+            editor.remove(locationSetting + LAST_MODIFIED_SUFFIX);
+        }
+        editor.commit();
+    }
+
+    public void remove(String locationSetting) {
+        put(locationSetting, null, null);
+    }
+
+    public void clear() {
+        mPrefs.edit().clear().commit();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Where the sync adapter gets its forecasts from.  {@link HttpWeatherSource} talks to
+ * OpenWeatherMap; tests can supply their own.
+ *
+ * Implementations must be safe to call from several threads at once, since a sync of every
+ * stored location downloads them in parallel.
+ */
+public interface WeatherSource {
+
+    // The forecast arrived and was handed to the listener.
+    public static final int STATUS_OK = 0;
+    // The server told us our copy is still current.  Nothing was parsed.
+    public static final int STATUS_NOT_MODIFIED = 1;
+
+    /**
+     * What happened during a single fetch.
+     */
+    public static class Result {
+        public int status;
+        public int days;
+        // Validators to store once the forecast has been written.
+        public String eTag;
+        public String lastModified;
+        // Body bytes received from the network, before decompression.
+        public long bytesOnWire;
+        // Body bytes handed to the parser, after decompression.
+        public long bytesDecoded;
+        // Time until the response headers arrived.
+        public long connectNanos;
+        // Time spent waiting for the body to arrive.
+        public long downloadNanos;
+        // Time spent decompressing and parsing the body, including the listener's work.
+        public long parseNanos;
+    }
+
+    /**
+     * Fetches the forecast for a location.
+     *
+     * @param locationSetting the location setting to ask about.
+     * @param numDays how many days of forecast to request.
+     * @param eTag the ETag of the forecast we already have, or null.
+     * @param lastModified the Last-Modified date of the forecast we already have, or null.
+     * @param listener receives the forecast as it is parsed.  Not called when the source
+     *                 reports the forecast as not modified.
+     * @throws IOException if the forecast could not be retrieved.  An {@link HttpStatusException}
+     *                     if the server answered with an error.
+     * @throws JSONException if the forecast could not be understood.
+     */
+    public Result fetchForecast(String locationSetting, int numDays, String eTag,
+                                String lastModified, ForecastParser.Listener listener)
+            throws IOException, JSONException;
+}